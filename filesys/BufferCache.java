@@ -0,0 +1,428 @@
+// BufferCache.java
+//	The kernel buffer cache: a fixed number of sector buffers in front
+//	of the disk, with the same synchronous interface as SynchDisk, so
+//	the file headers, directories, bitmap and file data read through it
+//	without knowing.
+//
+//	Buffers are found by sector through a hash table, and replaced in
+//	LRU order.  Writes only go to the buffer, which is written to the
+//	disk later: when it is evicted, when the flush daemon wakes up
+//	(every FlushInterval ticks, and when the machine goes idle), or
+//	when the machine halts.  Consecutive dirty sectors are written in a
+//	single request, and a read that misses brings the sectors right
+//	after it that are missing too in the same request.
+//
+//	Each buffer has its own busy flag: a thread copying data in or out
+//	of a buffer, or reading or writing it on the disk, holds it, and
+//	other threads wanting that sector wait for it while everybody else
+//	goes on.  The bookkeeping is done with interrupts off, like in
+//	SynchDisk.
+//
+//	The swap area does not go through the cache (see uncached()): pages
+//	are already cached in main memory.
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+class BufferCache extends SynchDisk implements Runnable {
+
+  // ticks between two rounds of the flush daemon
+  public static final int FlushInterval = 100000;
+  // most sectors read in a single request on a miss
+  private static final int MaxReadAhead = 16;
+
+  private SynchDisk disk;		// the disk we cache
+  private HashMap lookup;		// sector -> buffer
+  private LinkedHashMap lru;		// same, least recently used first
+  private LinkedList free;		// buffers holding nothing
+  private Semaphore bufferReleased;	// waiting for any buffer to be free
+  private int waitingForBuffer = 0;
+
+  // the flush daemon sleeps here
+  private Semaphore wakeUp;
+  private boolean sleeping = false;
+  private int lastFlush = 0;		// when it last woke up
+
+  // statistics
+  private int readHits = 0;
+  private int readMisses = 0;
+  private int readRequests = 0;
+  private int writes = 0;
+  private int sectorsWritten = 0;
+  private int writeRequests = 0;
+
+  //----------------------------------------------------------------------
+  // BufferCache
+  // 	Put a cache of "numBuffers" sectors in front of "disk".
+  //----------------------------------------------------------------------
+
+  public BufferCache(SynchDisk disk, int numBuffers) {
+    Debug.ASSERT(numBuffers >= MaxReadAhead,
+		 "The buffer cache needs at least " + MaxReadAhead + " buffers");
+    this.disk = disk;
+    lookup = new HashMap(numBuffers * 2);
+    lru = new LinkedHashMap(numBuffers * 2, 0.75f, true);
+    free = new LinkedList();
+    for (int i = 0; i < numBuffers; i++)
+      free.add(new Buffer());
+    bufferReleased = new Semaphore("buffer released", 0);
+    wakeUp = new Semaphore("buffer flusher", 0);
+  }
+
+  //----------------------------------------------------------------------
+  // start
+  // 	Start the flush daemon.
+  //----------------------------------------------------------------------
+
+  public void start() {
+    NachosThread flusher = new NachosThread("buffer flusher");
+    // runs no user program, it must not pass for process 0
+    flusher.setSpaceId(-1);
+    // never finishes, the machine halts without waiting for it
+    flusher.setDaemon(true);
+    flusher.fork(this);
+  }
+
+  public void setScheduler(DiskScheduler scheduler) {
+    disk.setScheduler(scheduler);
+  }
+
+  public int getNumSectors() {
+    return disk.getNumSectors();
+  }
+
+  public SynchDisk uncached() {
+    return disk.uncached();
+  }
+
+  //----------------------------------------------------------------------
+  // readSector/readSectors
+  // 	Copy sectors out of their buffers, reading the ones not in the
+  //	cache from the disk.
+  //----------------------------------------------------------------------
+
+  public void readSector(int sectorNumber, byte[] data, int index) {
+    readSectors(sectorNumber, 1, data, index);
+  }
+
+  public void readSectors(int firstSector, int count, byte[] data, int index) {
+    int i = 0;
+
+    while (i < count) {
+      Buffer buffer = getBuffer(firstSector + i, true);
+      if (buffer.valid) {
+	readHits++;
+	System.arraycopy(buffer.data, 0, data, index + i * Disk.SectorSize,
+			 Disk.SectorSize);
+	releaseBuffer(buffer);
+	i++;
+	continue;
+      }
+
+      // bring the missing sectors after it along, as long as we can get
+      // their buffers without waiting
+      List run = new ArrayList();
+      run.add(buffer);
+      while (i + run.size() < count && run.size() < MaxReadAhead) {
+	Buffer next = getBuffer(firstSector + i + run.size(), false);
+	if (next == null)
+	  break;
+	if (next.valid) {
+	  releaseBuffer(next);
+	  break;
+	}
+	run.add(next);
+      }
+
+      byte[] sectors = new byte[run.size() * Disk.SectorSize];
+      disk.readSectors(firstSector + i, run.size(), sectors, 0);
+      readMisses += run.size();
+      readRequests++;
+      for (int j = 0; j < run.size(); j++) {
+	Buffer b = (Buffer)run.get(j);
+	System.arraycopy(sectors, j * Disk.SectorSize, b.data, 0, Disk.SectorSize);
+	b.valid = true;
+	System.arraycopy(sectors, j * Disk.SectorSize,
+			 data, index + (i + j) * Disk.SectorSize, Disk.SectorSize);
+	releaseBuffer(b);
+      }
+      i += run.size();
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // writeSector/writeSectors
+  // 	Copy sectors into their buffers, and leave them dirty.
+  //----------------------------------------------------------------------
+
+  public void writeSector(int sectorNumber, byte[] data, int index) {
+    writeSectors(sectorNumber, 1, data, index);
+  }
+
+  public void writeSectors(int firstSector, int count, byte[] data, int index) {
+    for (int i = 0; i < count; i++) {
+      // the whole sector is overwritten, no need to read it
+      Buffer buffer = getBuffer(firstSector + i, true);
+      System.arraycopy(data, index + i * Disk.SectorSize, buffer.data, 0,
+		       Disk.SectorSize);
+      buffer.valid = true;
+      buffer.dirty = true;
+      writes++;
+      releaseBuffer(buffer);
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // getBuffer
+  // 	Return the buffer of "sector", busy.  If the sector is not in the
+  //	cache, the least recently used buffer is given to it (writing it
+  //	back first if it is dirty), and it is not valid.
+  //
+  //	If "wait" is false, return null instead of waiting for a busy
+  //	buffer or for a write back.
+  //----------------------------------------------------------------------
+
+  private Buffer getBuffer(int sector, boolean wait) {
+    Integer key = new Integer(sector);
+    int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+
+    while (true) {
+      Buffer buffer = (Buffer)lookup.get(key);
+      if (buffer != null) {
+	lru.get(key);			// now the most recent
+	if (!buffer.busy) {
+	  buffer.busy = true;
+	  Interrupt.setLevel(oldLevel);
+	  return buffer;
+	}
+	if (!wait)
+	  break;
+	buffer.waiting++;
+	buffer.released.P();
+	continue;			// it may hold another sector now
+      }
+
+      Buffer victim = findVictim();
+      if (victim == null) {
+	// every buffer is busy
+	if (!wait)
+	  break;
+	waitingForBuffer++;
+	bufferReleased.P();
+	continue;
+      }
+      if (victim.dirty) {
+	if (!wait)
+	  break;
+	Interrupt.setLevel(oldLevel);
+	writeBack(victim);
+	Interrupt.setLevel(Interrupt.IntOff);
+	continue;			// somebody may have taken it
+      }
+
+      if (victim.sector != -1) {
+	lookup.remove(new Integer(victim.sector));
+	lru.remove(new Integer(victim.sector));
+      } else
+	free.remove(victim);
+      victim.sector = sector;
+      victim.valid = false;
+      victim.busy = true;
+      lookup.put(key, victim);
+      lru.put(key, victim);
+      Interrupt.setLevel(oldLevel);
+      return victim;
+    }
+
+    Interrupt.setLevel(oldLevel);
+    return null;
+  }
+
+  // a buffer holding nothing, or the least recently used one that is not
+  // busy, or null.  Called with interrupts off.
+  private Buffer findVictim() {
+    if (!free.isEmpty())
+      return (Buffer)free.getFirst();
+    for (Iterator i = lru.values().iterator(); i.hasNext();) {
+      Buffer buffer = (Buffer)i.next();
+      if (!buffer.busy)
+	return buffer;
+    }
+    return null;
+  }
+
+  //----------------------------------------------------------------------
+  // releaseBuffer
+  // 	Done with a buffer, wake up whoever is waiting for it (or for any
+  //	buffer).
+  //----------------------------------------------------------------------
+
+  private void releaseBuffer(Buffer buffer) {
+    int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+    buffer.busy = false;
+    for (; buffer.waiting > 0; buffer.waiting--)
+      buffer.released.V();
+    for (; waitingForBuffer > 0; waitingForBuffer--)
+      bufferReleased.V();
+    Interrupt.setLevel(oldLevel);
+  }
+
+  //----------------------------------------------------------------------
+  // writeBack
+  // 	Write a dirty buffer to the disk, along with the dirty buffers of
+  //	the sectors right after it, in a single request.  Busy buffers are
+  //	left for later.
+  //----------------------------------------------------------------------
+
+  private void writeBack(Buffer first) {
+    List run = new ArrayList();
+    int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+
+    if (!first.busy && first.dirty) {
+      Buffer buffer = first;
+      while (buffer != null && !buffer.busy && buffer.dirty) {
+	buffer.busy = true;
+	run.add(buffer);
+	buffer = (Buffer)lookup.get(new Integer(first.sector + run.size()));
+      }
+    }
+    Interrupt.setLevel(oldLevel);
+    if (run.isEmpty())
+      return;
+
+    byte[] sectors = new byte[run.size() * Disk.SectorSize];
+    for (int i = 0; i < run.size(); i++) {
+      Buffer buffer = (Buffer)run.get(i);
+      System.arraycopy(buffer.data, 0, sectors, i * Disk.SectorSize,
+		       Disk.SectorSize);
+      // nobody can write it while it is busy, so it is clean once written
+      buffer.dirty = false;
+    }
+    disk.writeSectors(first.sector, run.size(), sectors, 0);
+    sectorsWritten += run.size();
+    writeRequests++;
+
+    for (int i = 0; i < run.size(); i++)
+      releaseBuffer((Buffer)run.get(i));
+  }
+
+  //----------------------------------------------------------------------
+  // flushAll
+  // 	Write every dirty buffer that is not busy to the disk, in sector
+  //	order.
+  //----------------------------------------------------------------------
+
+  private void flushAll() {
+    List dirty = new ArrayList();
+    int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+    for (Iterator i = lookup.values().iterator(); i.hasNext();) {
+      Buffer buffer = (Buffer)i.next();
+      if (buffer.dirty)
+	dirty.add(buffer);
+    }
+    Interrupt.setLevel(oldLevel);
+
+    Collections.sort(dirty, new Comparator() {
+	public int compare(Object a, Object b) {
+	  return ((Buffer)a).sector - ((Buffer)b).sector;
+	}
+      });
+    // the runs are written by their first buffer, the others are clean
+    // by the time we get to them
+    for (Iterator i = dirty.iterator(); i.hasNext();)
+      writeBack((Buffer)i.next());
+  }
+
+  //----------------------------------------------------------------------
+  // timerTick
+  // 	Called on every timer interrupt, wakes the flush daemon up every
+  //	FlushInterval ticks.
+  //----------------------------------------------------------------------
+
+  public void timerTick() {
+    if (sleeping && Nachos.stats.totalTicks - lastFlush >= FlushInterval)
+      wakeFlusher();
+  }
+
+  //----------------------------------------------------------------------
+  // nothingToRun
+  // 	Called when the machine is about to go idle with no interrupt
+  //	pending.  Wake the flush daemon up if there is anything dirty, so
+  //	it gets to the disk before the machine halts.
+  //
+  //	Return true if the daemon was woken up.
+  //----------------------------------------------------------------------
+
+  public boolean nothingToRun() {
+    if (!sleeping)
+      return false;
+    for (Iterator i = lookup.values().iterator(); i.hasNext();)
+      if (((Buffer)i.next()).dirty) {
+	wakeFlusher();
+	return true;
+      }
+    return false;
+  }
+
+  private void wakeFlusher() {
+    sleeping = false;
+    wakeUp.V();
+  }
+
+  public void run() {
+    while (true) {
+      sleeping = true;
+      wakeUp.P();
+
+      lastFlush = Nachos.stats.totalTicks;
+      flushAll();
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // flush
+  // 	Write everything dirty to the disk, when the machine halts.
+  //----------------------------------------------------------------------
+
+  public void flush() {
+    flushAll();
+    disk.flush();
+  }
+
+  //----------------------------------------------------------------------
+  // printStats
+  // 	Print how well the cache did, then the statistics of the disk.
+  //----------------------------------------------------------------------
+
+  public void printStats() {
+    int reads = readHits + readMisses;
+
+    Debug.println('z', "Buffer cache----------------");
+    Debug.print('z', "Buffers " + (lookup.size() + free.size()) + "\n");
+    Debug.print('z', "Sectors read " + reads + ", hits " + readHits
+		+ ", read from the disk in " + readRequests + " requests\n");
+    if (reads > 0)
+      Debug.print('z', "Hit rate " + (100 * readHits / reads) + "%\n");
+    Debug.print('z', "Sectors written " + writes + ", to the disk "
+		+ sectorsWritten + " in " + writeRequests + " requests\n");
+    disk.printStats();
+  }
+
+  // A sector buffer
+  private static class Buffer {
+    int sector = -1;			// -1 if none
+    byte[] data = new byte[Disk.SectorSize];
+    boolean valid = false;		// data holds the sector
+    boolean dirty = false;		// not written to the disk yet
+    boolean busy = false;		// somebody is using it
+    int waiting = 0;			// threads waiting for it
+    Semaphore released = new Semaphore("buffer", 0);
+  }
+
+}
@@ -0,0 +1,185 @@
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which of the requests waiting for the disk goes next.
+ *
+ * <ul>
+ * <li><code>FCFS</code> serves the requests in arrival order.</li>
+ * <li><code>SSTF</code> picks the request on the track closest to the head.</li>
+ * <li><code>SCAN</code> (the elevator) keeps moving the head in the same direction while there are requests
+ * ahead of it, and turns around at the last one.</li>
+ * <li><code>CLOOK</code> only serves requests on its way up: once there is nothing above the head, it goes back to
+ * the lowest track with a request.</li>
+ * <li><code>SPTF</code> asks the disk how long it would take to position the head on each request right now, seek
+ * and rotational delay, and picks the quickest. A request that has been waiting for more than
+ * <code>MAX_WAIT</code> ticks goes first, so requests far from the head are not starved.</li>
+ * </ul>
+ *
+ * Whatever the policy, requests for the same sector are never reordered: a request is only eligible if no earlier
+ * one is waiting for any of its sectors, so a read always sees the writes issued before it. Ties are broken by
+ * arrival order.
+ */
+public class DiskScheduler {
+    public static final int FCFS = 0;
+    public static final int SSTF = 1;
+    public static final int SCAN = 2;
+    public static final int CLOOK = 3;
+    public static final int SPTF = 4;
+
+    // names used on the command line and in the statistics
+    private static final String[] NAMES = {"fcfs", "sstf", "scan", "clook", "sptf"};
+
+    // ticks a request can wait before SPTF serves it no matter where it is (a few full seeks and rotations)
+    public static final int MAX_WAIT = 100000;
+
+    private int policy;
+    // direction the elevator is moving in
+    private boolean goingUp = true;
+    // requests served because of MAX_WAIT
+    private int aged = 0;
+
+    public DiskScheduler(int policy) {
+        Debug.ASSERT(policy >= 0 && policy < NAMES.length, "[DiskScheduler] Unknown policy.");
+        this.policy = policy;
+    }
+
+    /**
+     * Gets a policy from its name.
+     *
+     * @param name One of fcfs, sstf, scan, clook or sptf.
+     *
+     * @return The policy.
+     */
+    public static int getPolicy(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        Debug.ASSERT(false, "[DiskScheduler.getPolicy] Unknown disk scheduling policy " + name);
+        return -1;
+    }
+
+    public String getName() {
+        return NAMES[policy];
+    }
+
+    /**
+     * Picks the next request to send to the disk.
+     *
+     * @param pending Requests waiting, in arrival order. Must not be empty.
+     * @param disk The disk, to know where its head is.
+     *
+     * @return The request chosen, still in <code>pending</code>.
+     */
+    public SynchDisk.Request next(List pending, Disk disk) {
+        SynchDisk.Request oldest = (SynchDisk.Request)pending.get(0);
+        if (policy == FCFS) {
+            return oldest;
+        }
+        if (policy == SPTF) {
+            if (Nachos.stats.totalTicks - oldest.arrival > MAX_WAIT) {
+                aged++;
+                return oldest;
+            }
+            return quickest(pending, disk);
+        }
+
+        int headTrack = disk.getHeadTrack();
+
+        // nearest eligible request above (or on) the head, below it, and the lowest one
+        SynchDisk.Request up = null;
+        SynchDisk.Request down = null;
+        SynchDisk.Request lowest = null;
+        Set sectorsSeen = new HashSet();
+        for (Iterator i = pending.iterator(); i.hasNext();) {
+            SynchDisk.Request request = (SynchDisk.Request)i.next();
+            if (!eligible(request, sectorsSeen)) {
+                // an earlier request for this sector goes first
+                continue;
+            }
+            int track = disk.trackOf(request.sector);
+            if (track >= headTrack) {
+                if (up == null || track < disk.trackOf(up.sector)) {
+                    up = request;
+                }
+            } else if (down == null || track > disk.trackOf(down.sector)) {
+                down = request;
+            }
+            if (lowest == null || track < disk.trackOf(lowest.sector)) {
+                lowest = request;
+            }
+        }
+
+        switch (policy) {
+        case SSTF:
+            if (up == null) {
+                return down;
+            }
+            if (down == null) {
+                return up;
+            }
+            return (disk.trackOf(up.sector) - headTrack <= headTrack - disk.trackOf(down.sector) ? up : down);
+        case SCAN:
+            // requests on the head's track are served first, whichever the direction
+            if (up != null && disk.trackOf(up.sector) == headTrack) {
+                return up;
+            }
+            // turn around when there is nothing left ahead
+            if (goingUp && up == null) {
+                goingUp = false;
+            } else if (!goingUp && down == null) {
+                goingUp = true;
+            }
+            return (goingUp ? up : down);
+        default:
+            return (up != null ? up : lowest);
+        }
+    }
+
+    /**
+     * Finds the eligible request the head can get to first.
+     */
+    private SynchDisk.Request quickest(List pending, Disk disk) {
+        SynchDisk.Request best = null;
+        int bestTime = 0;
+        Set sectorsSeen = new HashSet();
+        for (Iterator i = pending.iterator(); i.hasNext();) {
+            SynchDisk.Request request = (SynchDisk.Request)i.next();
+            if (!eligible(request, sectorsSeen)) {
+                continue;
+            }
+            int time = disk.positioningTime(request.sector, request.writing);
+            if (best == null || time < bestTime) {
+                best = request;
+                bestTime = time;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Determines whether no earlier request (whose sectors are in <code>sectorsSeen</code>) overlaps a request, and
+     * adds its sectors to the set.
+     */
+    private boolean eligible(SynchDisk.Request request, Set sectorsSeen) {
+        boolean overlaps = false;
+        for (int sector = request.sector; sector < request.sector + request.count; sector++) {
+            if (!sectorsSeen.add(new Integer(sector))) {
+                overlaps = true;
+            }
+        }
+        return !overlaps;
+    }
+
+    /**
+     * Gets how many requests SPTF served out of order because they had waited too long.
+     */
+    public int getAged() {
+        return aged;
+    }
+
+} // class
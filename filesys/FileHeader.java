@@ -102,8 +102,9 @@ class FileHeader {
     // sector where this header is located
     private int sector;
     
-    // lock to use whenever we want to make a file bigger, because we are using the same freemap
-    private final static Lock freeMapLock = new Lock("FreeMap");
+    // lock held from the moment the freemap (or the directory) is read until it is written back, otherwise
+    // two threads could hand out the same sectors... extend and deallocate expect the caller to hold it
+    static final Lock freeMapLock = new Lock("FreeMap");
     
     // on the creation, flag the file as empty and make all the references point to -1
     public FileHeader() {
@@ -164,18 +165,15 @@ class FileHeader {
      * @return true if success, false otherwise.
      */
     public boolean extend(BitMap freeMap, int extraSectors) {
-        freeMapLock.acquire();
         // check if we are not going over the limit
         if ((fileLength() / Disk.SectorSize) + extraSectors > MAX_DATA_SECTORS) {
             Debug.printf('f', "[FileHeader.extend] Cannot add %d sectors. Max file size would be overpassed.\n", new Integer(extraSectors));
-            freeMapLock.release();
             return false;
         }
         
         // check if there are enough sectors available
         if (freeMap.numClear() < extraSectors) {
             Debug.printf('f', "[FileHeader.extend] Cannot add %d sectors. Not enough space on disk.\n", new Integer(extraSectors));
-            freeMapLock.release();
             return false;
         }
         
@@ -229,7 +227,6 @@ class FileHeader {
         this.numSectors += extraSectors + referenceSectors.size();
         
         // if something went wrong, rollback will be true
-        freeMapLock.release();
         return (!rollback);
     }
     
@@ -294,7 +291,7 @@ class FileHeader {
                         // we found an available reference in this block! we don't need to add a reference block
                         // now, write back to the disk this info
                         Disk.extInt(sector, levelOneReferencesRaw, i * REF_SIZE);
-                        Nachos.synchDisk.writeSector(dataSectors[location], levelOneReferencesRaw, 0);
+                        Nachos.synchDisk.logSector(dataSectors[location], levelOneReferencesRaw, 0);
                         Debug.printf('f', "[FileHeader.addSector] Modified L1 block in sector %d\n", new Integer(dataSectors[location]));
                         return true;
                     }
@@ -324,7 +321,7 @@ class FileHeader {
                         allocatedReferenceSectors.add(new Integer(levelOneReferenceBlock));
                         // modify the l2 block
                         Disk.extInt(levelOneReferenceBlock, levelTwoReferencesRaw, i * REF_SIZE);
-                        Nachos.synchDisk.writeSector(dataSectors[location], levelTwoReferencesRaw, 0);
+                        Nachos.synchDisk.logSector(dataSectors[location], levelTwoReferencesRaw, 0);
                         // we will now write to disk the l1 reference block
                         byte[] levelOneReferencesRaw = new byte[Disk.SectorSize];
                         for (int j = 0; j < REFERENCES_IN_SECTOR; j++) {
@@ -332,7 +329,7 @@ class FileHeader {
                         }
                         // it is a new block, therefore, should be referenced in the first position
                         Disk.extInt(sector, levelOneReferencesRaw, 0);
-                        Nachos.synchDisk.writeSector(levelOneReferenceBlock, levelOneReferencesRaw, 0);
+                        Nachos.synchDisk.logSector(levelOneReferenceBlock, levelOneReferencesRaw, 0);
                         Debug.printf('f', "[FileHeader.addSector] Modified L2 block in sector %d\n", new Integer(dataSectors[location]));
                         Debug.printf('f', "[FileHeader.addSector] Created L1 ref block in sector %d\n", new Integer(levelOneReferenceBlock));
                         // we are done
@@ -347,7 +344,7 @@ class FileHeader {
                         if (dataBlock == -1) {
                             // this means that we found an empty slot...
                             Disk.extInt(sector, levelOneReferencesRaw, j * REF_SIZE);
-                            Nachos.synchDisk.writeSector(levelOneReferenceBlock, levelOneReferencesRaw, 0);
+                            Nachos.synchDisk.logSector(levelOneReferenceBlock, levelOneReferencesRaw, 0);
                             Debug.printf('f', "[FileHeader.addSector] Modified L1 block in sector %d\n", new Integer(levelOneReferenceBlock));
                             return true;
                         }
@@ -377,7 +374,7 @@ class FileHeader {
             // add the address of the data sector, since it is new, add it in the first slot
             Disk.extInt(sector, levelOneReferencesRaw, 0);
             dataSectors[location] = levelOneReferenceBlock;
-            Nachos.synchDisk.writeSector(dataSectors[location], levelOneReferencesRaw, 0);
+            Nachos.synchDisk.logSector(dataSectors[location], levelOneReferencesRaw, 0);
             Debug.printf('f', "[FileHeader.addSector] Created L1 block in sector %d\n", new Integer(levelOneReferenceBlock));
             Debug.printf('f', "[FileHeader.addSector] Modified L1 index %d\n", new Integer(location));
         } else {
@@ -407,8 +404,8 @@ class FileHeader {
             Disk.extInt(levelOneReferenceBlock, levelTwoReferencesRaw, 0);
             Disk.extInt(sector, levelOneReferencesRaw, 0);
             // and write back to disk
-            Nachos.synchDisk.writeSector(levelTwoReferenceBlock, levelTwoReferencesRaw, 0);
-            Nachos.synchDisk.writeSector(levelOneReferenceBlock, levelOneReferencesRaw, 0);
+            Nachos.synchDisk.logSector(levelTwoReferenceBlock, levelTwoReferencesRaw, 0);
+            Nachos.synchDisk.logSector(levelOneReferenceBlock, levelOneReferencesRaw, 0);
             Debug.printf('f', "[FileHeader.addSector] Created L2 block in sector %d\n", new Integer(levelTwoReferenceBlock));
             Debug.printf('f', "[FileHeader.addSector] Created L1 block in sector %d\n", new Integer(levelOneReferenceBlock));
             Debug.printf('f', "[FileHeader.addSector] Modified L2 index %d\n", new Integer(location));
@@ -428,12 +425,14 @@ class FileHeader {
     //	"fileSize" is size of the new file
     //----------------------------------------------------------------------
     public boolean allocate(BitMap freeMap, int fileSize) { 
-    	totalSize = fileSize;
     	int newSectors = fileSize / Disk.SectorSize;
         if (fileSize % Disk.SectorSize != 0) {
             newSectors++;
         }
-    	return extend(freeMap, newSectors);
+        // extend counts the length already set as sectors the file has
+    	boolean allocated = extend(freeMap, newSectors);
+    	totalSize = fileSize;
+    	return allocated;
     }
 
     //----------------------------------------------------------------------
@@ -444,7 +443,6 @@ class FileHeader {
     //----------------------------------------------------------------------
     public void deallocate(BitMap freeMap) {
         // we need to keep track of how many sectors we have deallocated
-        freeMapLock.acquire();
         int totalDeallocatedSectors = 0;
         
         // start with the level 0 sectors
@@ -479,6 +477,7 @@ class FileHeader {
             // now, unmark the reference sector
             Debug.ASSERT(freeMap.test(dataSectors[i]));  // ought to be marked!
             freeMap.clear(dataSectors[i]);
+            Nachos.synchDisk.metadataFreed(dataSectors[i]);
         }
         // level 2
         for (int i = NUM_L0_REFS + NUM_L1_REFS; totalDeallocatedSectors < numSectors; i++, totalDeallocatedSectors++) {
@@ -509,14 +508,15 @@ class FileHeader {
                 // clear the l1 reference sector
                 Debug.ASSERT(freeMap.test(levelOneReferenceSector));
                 freeMap.clear(levelOneReferenceSector);
+                Nachos.synchDisk.metadataFreed(levelOneReferenceSector);
             }
             
             // unmark the l2 reference sector
             Debug.ASSERT(freeMap.test(dataSectors[i]));  // ought to be marked!
             freeMap.clear(dataSectors[i]);
+            Nachos.synchDisk.metadataFreed(dataSectors[i]);
         }
         
-        freeMapLock.release();
         // make sure we deallocated all we needed to
         Debug.ASSERT(totalDeallocatedSectors == numSectors);
     	
@@ -550,7 +550,7 @@ class FileHeader {
     	// marshall
     	toDiskFormat(buffer, 0);
     	// write sector
-    	Nachos.synchDisk.writeSector(sector, buffer, 0); 
+    	Nachos.synchDisk.logSector(sector, buffer, 0); 
     }
 
     //----------------------------------------------------------------------
@@ -611,6 +611,52 @@ class FileHeader {
         return sector;
     }
 
+    //----------------------------------------------------------------------
+    // byteToSectors
+    // 	Same as byteToSector, for "numSectors" sectors of the file starting
+    //	at the one holding byte "offset".  Consecutive sectors usually hang
+    //	from the same reference block, so each reference block is only
+    //	read once instead of once per sector.
+    //----------------------------------------------------------------------
+    public int[] byteToSectors(int offset, int numSectors) {
+        int[] sectors = new int[numSectors];
+        // last reference blocks read, and their contents
+        int levelOneCached = -1;
+        byte[] levelOneReferencesRaw = new byte[Disk.SectorSize];
+        int levelTwoCached = -1;
+        byte[] levelTwoReferencesRaw = new byte[Disk.SectorSize];
+        
+        for (int i = 0; i < numSectors; i++) {
+            int dataBlockIndex = offset / Disk.SectorSize + i;
+            if (dataBlockIndex < NUM_L0_REFS) {
+                sectors[i] = dataSectors[dataBlockIndex];
+                continue;
+            }
+            dataBlockIndex -= NUM_L0_REFS;
+            int levelOneReferenceSector;
+            if (dataBlockIndex < NUM_L1_REFS * REFERENCES_IN_SECTOR) {
+                // level 1 indirection
+                levelOneReferenceSector = dataSectors[dataBlockIndex / REFERENCES_IN_SECTOR + NUM_L0_REFS];
+            } else {
+                // level 2 indirection
+                dataBlockIndex -= NUM_L1_REFS * REFERENCES_IN_SECTOR;
+                int levelOneReferenceIndex = dataBlockIndex / REFERENCES_IN_SECTOR;
+                int levelTwoReferenceSector = dataSectors[levelOneReferenceIndex / REFERENCES_IN_SECTOR + NUM_L0_REFS + NUM_L1_REFS];
+                if (levelTwoReferenceSector != levelTwoCached) {
+                    Nachos.synchDisk.readSector(levelTwoReferenceSector, levelTwoReferencesRaw, 0);
+                    levelTwoCached = levelTwoReferenceSector;
+                }
+                levelOneReferenceSector = Disk.intInt(levelTwoReferencesRaw, (levelOneReferenceIndex % REFERENCES_IN_SECTOR) * REF_SIZE);
+            }
+            if (levelOneReferenceSector != levelOneCached) {
+                Nachos.synchDisk.readSector(levelOneReferenceSector, levelOneReferencesRaw, 0);
+                levelOneCached = levelOneReferenceSector;
+            }
+            sectors[i] = Disk.intInt(levelOneReferencesRaw, (dataBlockIndex % REFERENCES_IN_SECTOR) * REF_SIZE);
+        }
+        return sectors;
+    }
+
     //----------------------------------------------------------------------
     // fileLength
     // 	Return the number of bytes in the file.
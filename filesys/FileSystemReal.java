@@ -35,7 +35,8 @@
 //	   files cannot be bigger than about 3KB in size
 //	   there is no hierarchical directory structure, and only a limited
 //	     number of files can be added to the system
-//	   there is no attempt to make the system robust to failures
+//	   unless the disk was formatted with a journal (see Journal),
+//	    there is no attempt to make the system robust to failures
 //	    (if Nachos exits in the middle of an operation that modifies
 //	    the file system, it may corrupt the disk)
 //
@@ -74,14 +75,41 @@ class FileSystemReal implements FileSystem {
  public static final int FreeMapSector = 0;
  public static final int DirectorySector = 1;
 
-  // Initial file sizes for the bitmap and directory; until the file system
-  // supports extensible files, the directory size sets the maximum number 
-  // of files that can be loaded onto the disk.
-  public static final int FreeMapFileSize = (Disk.NumSectors / 
-					     BitMap.BitsInByte);
+  // Sectors reserved for the swap partition, at the end of the disk.  They
+  // are marked as used in the bitmap when the disk is formatted, and the
+  // virtual memory reads and writes them directly, without any file.
+  public static final int SwapSectors = (SwapPartitionController.SWAP_SIZE_BYTES /
+					 Disk.SectorSize);
+
+  // Size of the volume the file system lives on, in sectors: a single
+  // disk, or several striped together (see StripedSynchDisk).  The bitmap
+  // has one bit per sector, and the swap area is at the end.
+  public static int numSectors() {
+    return Nachos.synchDisk.getNumSectors();
+  }
+
+  // Initial file size for the bitmap
+  public static int freeMapFileSize() {
+    return numSectors() / BitMap.BitsInByte;
+  }
+
+  public static int swapFirstSector() {
+    return numSectors() - SwapSectors;
+  }
+
+  // The sector right before the swap area is its label: the magic number
+  // and the size of the area.  Disks formatted by older kernels have no
+  // label, and maybe files where the swap area would be.
+  public static int swapLabelSector() {
+    return swapFirstSector() - 1;
+  }
+
+  private static final int SwapLabelMagic = 0x53574150;
 
   private OpenFile freeMapFile;		// Bit map of free disk blocks,
 					// represented as a file
+  private BitMap freeMapOnDisk;		// What freeMapFile holds, once it
+					// has been read or written
   private OpenFile directoryFile;	// "Root" directory -- list of 
 					// file names, represented as a file
 
@@ -102,7 +130,13 @@ class FileSystemReal implements FileSystem {
   public FileSystemReal(boolean format) { 
     Debug.print('f', "Initializing the file system.\n");
     if (format) {
-      BitMap freeMap = new BitMap(Disk.NumSectors);
+      // the bitmap is a file, it has to fit in one file header
+      Debug.ASSERT(freeMapFileSize() <= FileHeader.MAX_FILE_SIZE,
+		   "Volume of " + numSectors() + " sectors too big, the map "
+		   + "of free sectors holds at most "
+		   + (long)FileHeader.MAX_FILE_SIZE * BitMap.BitsInByte
+		   + " sectors");
+      BitMap freeMap = new BitMap(numSectors());
       Directory directory = new Directory();
       FileHeader mapHdr = new FileHeader();
       FileHeader dirHdr = new FileHeader();
@@ -114,10 +148,22 @@ class FileSystemReal implements FileSystem {
       freeMap.mark(FreeMapSector);	    
       freeMap.mark(DirectorySector);
 
+      // And the raw swap area with its label, and the log of the journal
+      // right before them
+      for (int i = swapLabelSector(); i < numSectors(); i++)
+	freeMap.mark(i);
+      if (Nachos.journal != null)
+	for (int i = Nachos.journal.firstSector(); i < swapLabelSector(); i++)
+	  freeMap.mark(i);
+      byte[] label = new byte[Disk.SectorSize];
+      Disk.extInt(SwapLabelMagic, label, 0);
+      Disk.extInt(SwapSectors, label, 4);
+      Nachos.synchDisk.uncached().writeSector(swapLabelSector(), label, 0);
+
       // Second, allocate space for the data blocks containing the contents
       // of the directory and bitmap files.  There better be enough space!
       
-      Debug.ASSERT(mapHdr.allocate(freeMap, FreeMapFileSize));
+      Debug.ASSERT(mapHdr.allocate(freeMap, freeMapFileSize()));
       // the directory will be empty when the disk has been formatted
       Debug.ASSERT(dirHdr.allocate(freeMap, 0));
 
@@ -135,7 +181,7 @@ class FileSystemReal implements FileSystem {
       // while Nachos is running.
 
       freeMapFile = new OpenFileReal(FreeMapSector);
-      directoryFile = new OpenFileReal(DirectorySector, freeMapFile);
+      directoryFile = new OpenFileReal(DirectorySector, this);
       OpenFileManipulator.addOpenFile(directoryFile);
       OpenFileManipulator.addOpenFile(freeMapFile);
       
@@ -147,7 +193,7 @@ class FileSystemReal implements FileSystem {
       // to hold the file data for the directory and bitmap.
 
       Debug.print('f', "Writing bitmap and directory back to disk.\n");
-      freeMap.writeBack(freeMapFile);	 // flush changes to disk
+      writeBackFreeMap(freeMap);	 // flush changes to disk
       directory.writeBack(directoryFile);
 
       if (Debug.isEnabled('f')) {
@@ -160,12 +206,61 @@ class FileSystemReal implements FileSystem {
       // the bitmap and directory; these are left open while Nachos is 
       // running
       freeMapFile = new OpenFileReal(FreeMapSector);
-      directoryFile = new OpenFileReal(DirectorySector, freeMapFile);
+      directoryFile = new OpenFileReal(DirectorySector, this);
       OpenFileManipulator.addOpenFile(freeMapFile);
       OpenFileManipulator.addOpenFile(directoryFile);
     }    
   }
 
+  //----------------------------------------------------------------------
+  // hasSwapArea
+  // 	Check whether the disk was formatted with a swap area: the label
+  //	is there, and all of the swap sectors are marked as used in the
+  //	bitmap.  Disks formatted by older kernels might have files there.
+  //----------------------------------------------------------------------
+
+  public boolean hasSwapArea() {
+    byte[] label = new byte[Disk.SectorSize];
+    Nachos.synchDisk.uncached().readSector(swapLabelSector(), label, 0);
+    if (Disk.intInt(label, 0) != SwapLabelMagic
+	|| Disk.intInt(label, 4) != SwapSectors)
+      return false;
+
+    BitMap freeMap = fetchFreeMap();
+
+    for (int i = swapFirstSector(); i < numSectors(); i++)
+      if (!freeMap.test(i))
+	return false;
+    return true;
+  }
+
+  //----------------------------------------------------------------------
+  // fetchFreeMap/writeBackFreeMap
+  // 	Read the bitmap of free sectors, and store it back.  The bitmap of
+  //	a big disk is a big file, so we keep a copy of what the file
+  //	holds: fetching it again costs no disk I/O, and storing it only
+  //	writes the sectors of the file that changed.
+  //
+  //	Anybody changing the bitmap holds FileHeader.freeMapLock.
+  //----------------------------------------------------------------------
+
+  BitMap fetchFreeMap() {
+    if (freeMapOnDisk == null) {
+      freeMapOnDisk = new BitMap(numSectors());
+      freeMapOnDisk.fetchFrom(freeMapFile);
+    }
+    BitMap freeMap = new BitMap(numSectors());
+    freeMap.copyFrom(freeMapOnDisk);
+    return freeMap;
+  }
+
+  void writeBackFreeMap(BitMap freeMap) {
+    freeMap.writeBack(freeMapFile, freeMapOnDisk);
+    if (freeMapOnDisk == null)
+      freeMapOnDisk = new BitMap(numSectors());
+    freeMapOnDisk.copyFrom(freeMap);
+  }
+
   //----------------------------------------------------------------------
   // FileSystem::create
   // 	Create a file in the Nachos file system (similar to UNIX create).
@@ -205,14 +300,16 @@ class FileSystemReal implements FileSystem {
     Debug.printf('f', "Creating file %s, size %d\n", name, 
 		 new Long(initialSize));
 
+    // nobody else may touch the directory or the free map until we are done
+    Nachos.synchDisk.beginOperation();
+    FileHeader.freeMapLock.acquire();
     directory = new Directory();
     directory.fetchFrom(directoryFile);
 
     if (directory.findEntry(name) != null)
       success = false;			// file is already in directory
     else {	
-      freeMap = new BitMap(Disk.NumSectors);
-      freeMap.fetchFrom(freeMapFile);
+      freeMap = fetchFreeMap();
       sector = freeMap.find();	// find a sector to hold the file header
       if (sector == -1) 		
 	success = false;		// no free block for file header 
@@ -224,13 +321,16 @@ class FileSystemReal implements FileSystem {
 	  success = false;	// no space on disk for data
 	else {	
 	  success = true;
-	  // everthing worked, flush all changes back to disk
+	  // everthing worked, flush all changes back to disk... the
+	  // directory goes last, it may need more sectors from the map
 	  hdr.writeBack(sector); 		
+	  writeBackFreeMap(freeMap);
 	  directory.writeBack(directoryFile);
-	  freeMap.writeBack(freeMapFile);
 	}
       }
     }
+    FileHeader.freeMapLock.release();
+    Nachos.synchDisk.endOperation();
     return success;
   }
 
@@ -254,7 +354,7 @@ class FileSystemReal implements FileSystem {
     DirectoryEntry entry = directory.findEntry(name); 
     if (entry != null) {
         sector = entry.sector;
-        openFile = new OpenFileReal(sector, freeMapFile);// name was found in directory
+        openFile = new OpenFileReal(sector, this);// name was found in directory
     }
     
     //keep track of opened file
@@ -319,15 +419,22 @@ class FileSystemReal implements FileSystem {
     		ofd.waitDeleteLock();
     	}
     }
-    freeMap = new BitMap(Disk.NumSectors);
-    freeMap.fetchFrom(freeMapFile);
+    // the directory may have changed while we were waiting
+    Nachos.synchDisk.beginOperation();
+    FileHeader.freeMapLock.acquire();
+    directory = new Directory();
+    directory.fetchFrom(directoryFile);
+    freeMap = fetchFreeMap();
 
     fileHdr.deallocate(freeMap);  		// remove data blocks
     freeMap.clear(sector);			// remove header block
+    Nachos.synchDisk.metadataFreed(sector);
     directory.remove(name);
 
-    freeMap.writeBack(freeMapFile);		// flush to disk
+    writeBackFreeMap(freeMap);			// flush to disk
     directory.writeBack(directoryFile);        // flush to disk
+    FileHeader.freeMapLock.release();
+    Nachos.synchDisk.endOperation();
     
     //remove file from opened list
     OpenFileManipulator.removeOpenFile(openFile);
@@ -358,7 +465,7 @@ class FileSystemReal implements FileSystem {
   public void print() {
     FileHeader bitHdr = new FileHeader();
     FileHeader dirHdr = new FileHeader();
-    BitMap freeMap = new BitMap(Disk.NumSectors);
+    BitMap freeMap;
     Directory directory = new Directory();
 
     Debug.print('f', "Bit map file header:\n");
@@ -369,7 +476,7 @@ class FileSystemReal implements FileSystem {
     dirHdr.fetchFrom(DirectorySector);
     dirHdr.print();
 
-    freeMap.fetchFrom(freeMapFile);
+    freeMap = fetchFreeMap();
     freeMap.print();
 
     directory.fetchFrom(directoryFile);
@@ -160,6 +160,33 @@ class FileSystemTest {
     }
   }
 
+  // read the whole file "chunkSize" bytes at a time, and report how
+  // long the disk took
+  private static void chunkedRead(int chunkSize) {
+    OpenFile openFile;    
+    byte buffer[] = new byte[chunkSize];
+    int start = Nachos.stats.totalTicks;
+    int requests = Nachos.stats.numDiskReads;
+    int total = 0, numBytes;
+
+    if ((openFile = Nachos.fileSystem.open(FileName)) == null) {
+      Debug.printf('+', "Perf test: unable to open file %s\n", FileName);
+      return;
+    }
+    while ((numBytes = openFile.read(buffer, 0, chunkSize)) > 0)
+      total += numBytes;
+
+    int ticks = Nachos.stats.totalTicks - start;
+    Debug.printf('+', "Read %d bytes in %d byte chunks: %d disk reads, %d ticks",
+		 new Object[] {new Integer(total), new Integer(chunkSize),
+			       new Integer(Nachos.stats.numDiskReads - requests),
+			       new Integer(ticks)});
+    if (ticks > 0)
+      Debug.printf('+', ", %d bytes per 1000 ticks", 
+		   new Long(total * 1000L / ticks));
+    Debug.println('+', "");
+  }
+
   private static boolean byteCmp(byte a[], byte b[], int len) {
     for (int i = 0; i < len; i++)
       if (a[i] != b[i]) return false;
@@ -171,6 +198,8 @@ class FileSystemTest {
     Nachos.stats.print();
     fileWrite();
     fileRead();
+    for (int chunkSize = Disk.SectorSize; chunkSize <= FileSize * 2; chunkSize *= 4)
+      chunkedRead(chunkSize);
     if (!Nachos.fileSystem.remove(FileName)) {
       Debug.printf('+', "Perf test: unable to remove %s\n", FileName);
       return;
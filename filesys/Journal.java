@@ -0,0 +1,667 @@
+// Journal.java
+//	A write-ahead journal of the file system metadata, in front of the
+//	disk with the same synchronous interface as SynchDisk.
+//
+//	File headers, reference blocks, the bitmap and the directory are
+//	written with logSector/logSectors.  Instead of going to the disk,
+//	their new contents are kept in memory as part of the running
+//	transaction, so a sector written again before the transaction
+//	commits costs nothing more: the header of a file being appended to,
+//	or the bitmap and directory of a burst of creates, end up written
+//	once.  Reads see the newest contents.
+//
+//	The running transaction is closed every CommitInterval ticks, or as
+//	soon as it holds CommitSectors sectors, at a moment no file system
+//	operation is in the middle of its updates (see beginOperation), and
+//	a daemon commits it: all of its sectors are appended to the log in
+//	a single request (group commit).  The sectors are only written to
+//	their home location (checkpointed) when the log is full, when the
+//	machine goes idle, or when it halts; then the log starts over.
+//
+//	The log is at the end of the file system, right before the swap
+//	area and its label: "logSectors" sectors of records, then a header sector (magic
+//	number, size of the log, sequence number of the first transaction
+//	in it).  A transaction is made of records, each one a descriptor
+//	sector (magic number, sequence number, number of sectors, whether
+//	it is the last record of the transaction, checksum, and the numbers
+//	of the sectors) followed by the sectors.  When the disk is mounted,
+//	the complete transactions found in the log are written home again,
+//	in order, so the file system is as it was after the last commit
+//	even if Nachos was killed.
+//
+//	Only metadata is journaled, file data is written straight to the
+//	disk.  The exception is a sector the journal still holds (a freed
+//	header reused for data before the transaction freeing it reached
+//	home): its data goes through the log too, to stay in order.  The
+//	log itself is written around the buffer cache, so a commit is on
+//	the disk once the daemon is done with it.
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+class Journal extends SynchDisk implements Runnable {
+
+  // ticks a metadata update may wait before it is committed
+  public static final int CommitInterval = 500000;
+  // a running transaction this big is committed right away
+  public static final int CommitSectors = 32;
+
+  private static final int MagicNumber = 0x4a4e4c31;	// log header
+  private static final int RecordMagic = 0x4a524543;	// descriptor
+  // magic, sequence, count, last, checksum, then the sector numbers
+  private static final int DescriptorSize = 5 * 4;
+  private static final int SectorsPerRecord =
+    (Disk.SectorSize - DescriptorSize) / 4;
+
+  private SynchDisk disk;		// where the sectors live
+  private SynchDisk log;		// same, without the buffer cache
+  private int headerSector;		// the log header
+  private int logFirst;			// first sector of the log
+  private int logSectors;		// size of the log
+  private int logNext;			// where the next transaction goes
+  private int sequence;			// number of the next transaction
+  private Lock logLock;			// held while writing the log
+
+  // newest contents of the sectors not home yet, sector -> byte[]; the
+  // arrays are never changed once in there
+  private HashMap running;		// the running transaction
+  private HashMap committing;		// closed, being written to the log
+  private HashMap committed;		// in the log, not home yet
+  private int runningSince;		// when "running" got its first sector
+
+  private int active = 0;		// operations in the middle of updates
+  private HashMap depth;		// thread -> how deep it is nested
+  private boolean closeWanted = false;	// close "running" once active is 0
+  private LinkedList blocked;		// operations waiting for that
+
+  // the commit daemon sleeps here
+  private Semaphore wakeUp;
+  private boolean sleeping = false;
+  private boolean checkpointWanted = false;
+
+  // statistics
+  private int operations = 0;
+  private int metadataWrites = 0;
+  private int absorbed = 0;
+  private int dataJournaled = 0;
+  private int commits = 0;
+  private int logWrites = 0;
+  private int checkpoints = 0;
+  private int sectorsCheckpointed = 0;
+  private int tooBig = 0;
+  private int replayed = 0;
+  private int sectorsReplayed = 0;
+
+  //----------------------------------------------------------------------
+  // format
+  // 	Put an empty log of "logSectors" sectors on "volume", which is
+  //	being formatted, and return the journal in front of it.  With no
+  //	log, wipe the header of any old one so it is not replayed, and
+  //	return null.
+  //----------------------------------------------------------------------
+
+  public static Journal format(SynchDisk volume, int logSectors) {
+    int header = FileSystemReal.swapLabelSector() - 1;
+
+    if (logSectors == 0) {
+      volume.uncached().writeSector(header, new byte[Disk.SectorSize], 0);
+      return null;
+    }
+    Debug.ASSERT(logSectors > 1 && header - logSectors > FileSystemReal.DirectorySector,
+		 "The log does not fit on the disk");
+    Journal journal = new Journal(volume, header, logSectors, 1);
+    journal.writeHeader();
+    return journal;
+  }
+
+  //----------------------------------------------------------------------
+  // open
+  // 	Find the log of "volume", which is being mounted, and replay it.
+  //	Return the journal in front of the volume, or null if it was
+  //	formatted without one.
+  //----------------------------------------------------------------------
+
+  public static Journal open(SynchDisk volume) {
+    int header = FileSystemReal.swapLabelSector() - 1;
+    byte[] buffer = new byte[Disk.SectorSize];
+
+    volume.uncached().readSector(header, buffer, 0);
+    if (Disk.intInt(buffer, 0) != MagicNumber)
+      return null;
+    Journal journal = new Journal(volume, header, Disk.intInt(buffer, 4),
+				  Disk.intInt(buffer, 8));
+    journal.replay();
+    return journal;
+  }
+
+  private Journal(SynchDisk disk, int headerSector, int logSectors,
+		  int sequence) {
+    this.disk = disk;
+    log = disk.uncached();
+    this.headerSector = headerSector;
+    this.logSectors = logSectors;
+    logFirst = headerSector - logSectors;
+    logNext = logFirst;
+    this.sequence = sequence;
+    logLock = new Lock("journal");
+    running = new HashMap();
+    committing = null;
+    committed = new HashMap();
+    depth = new HashMap();
+    blocked = new LinkedList();
+    wakeUp = new Semaphore("journal committer", 0);
+  }
+
+  //----------------------------------------------------------------------
+  // start
+  // 	Start the commit daemon.
+  //----------------------------------------------------------------------
+
+  public void start() {
+    NachosThread committer = new NachosThread("journal committer");
+    // runs no user program, it must not pass for process 0
+    committer.setSpaceId(-1);
+    // never finishes, the machine halts without waiting for it
+    committer.setDaemon(true);
+    committer.fork(this);
+  }
+
+  // first sector of the log, the bitmap has it and the rest up to the
+  // swap label in use
+  public int firstSector() {
+    return logFirst;
+  }
+
+  public void setScheduler(DiskScheduler scheduler) {
+    disk.setScheduler(scheduler);
+  }
+
+  public int getNumSectors() {
+    return disk.getNumSectors();
+  }
+
+  public SynchDisk uncached() {
+    return disk.uncached();
+  }
+
+  //----------------------------------------------------------------------
+  // readSector/readSectors
+  // 	Read from the disk, then put the newest contents of the sectors
+  //	the journal holds over what was read.  If it holds them all, the
+  //	disk is not read at all.
+  //----------------------------------------------------------------------
+
+  public void readSector(int sectorNumber, byte[] data, int index) {
+    readSectors(sectorNumber, 1, data, index);
+  }
+
+  public void readSectors(int firstSector, int count, byte[] data, int index) {
+    byte[][] images = new byte[count][];
+    int held = 0;
+
+    // taken before reading, they may go home while we read
+    int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+    for (int i = 0; i < count; i++)
+      if ((images[i] = newest(firstSector + i)) != null)
+	held++;
+    Interrupt.setLevel(oldLevel);
+
+    if (held < count)
+      disk.readSectors(firstSector, count, data, index);
+    for (int i = 0; i < count; i++)
+      if (images[i] != null)
+	System.arraycopy(images[i], 0, data, index + i * Disk.SectorSize,
+			 Disk.SectorSize);
+  }
+
+  //----------------------------------------------------------------------
+  // writeSector/writeSectors
+  // 	Write file data straight to the disk, except the sectors the
+  //	journal holds, which are logged.
+  //----------------------------------------------------------------------
+
+  public void writeSector(int sectorNumber, byte[] data, int index) {
+    writeSectors(sectorNumber, 1, data, index);
+  }
+
+  public void writeSectors(int firstSector, int count, byte[] data, int index) {
+    int runStart = 0;
+
+    for (int i = 0; i <= count; i++) {
+      if (i < count && !holds(firstSector + i))
+	continue;			// the run goes on
+      if (i > runStart)
+	disk.writeSectors(firstSector + runStart, i - runStart, data,
+			  index + runStart * Disk.SectorSize);
+      if (i < count) {
+	dataJournaled++;
+	logSectors(firstSector + i, 1, data, index + i * Disk.SectorSize);
+      }
+      runStart = i + 1;
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // logSector/logSectors
+  // 	Put the new contents of metadata sectors in the running
+  //	transaction.
+  //----------------------------------------------------------------------
+
+  public void logSector(int sectorNumber, byte[] data, int index) {
+    logSectors(sectorNumber, 1, data, index);
+  }
+
+  public void logSectors(int firstSector, int count, byte[] data, int index) {
+    int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+
+    if (running.isEmpty())
+      runningSince = Nachos.stats.totalTicks;
+    for (int i = 0; i < count; i++) {
+      byte[] image = new byte[Disk.SectorSize];
+      System.arraycopy(data, index + i * Disk.SectorSize, image, 0,
+		       Disk.SectorSize);
+      if (running.put(new Integer(firstSector + i), image) != null)
+	absorbed++;
+      metadataWrites++;
+    }
+    if (running.size() >= CommitSectors)
+      requestClose();
+    Interrupt.setLevel(oldLevel);
+  }
+
+  //----------------------------------------------------------------------
+  // metadataFreed
+  // 	Log the freed header or reference block as empty.  Until the
+  //	transaction freeing it gets home, whoever gets the sector next
+  //	writes it through the log (see writeSectors), so a crash cannot
+  //	leave a file whose removal was lost with the data of another one
+  //	as its header.
+  //----------------------------------------------------------------------
+
+  public void metadataFreed(int sector) {
+    logSector(sector, new byte[Disk.SectorSize], 0);
+  }
+
+  //----------------------------------------------------------------------
+  // beginOperation/endOperation
+  // 	Keep count of the operations in the middle of their updates, the
+  //	running transaction is only closed when there is none.  Once it
+  //	has to be closed, new operations wait for it, nested ones go on.
+  //----------------------------------------------------------------------
+
+  public void beginOperation() {
+    NachosThread thread = NachosThread.thisThread();
+    int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+
+    Integer nested = (Integer)depth.get(thread);
+    if (nested != null)
+      depth.put(thread, new Integer(nested.intValue() + 1));
+    else {
+      while (closeWanted) {
+	Semaphore closed = new Semaphore("transaction closed", 0);
+	blocked.add(closed);
+	closed.P();
+      }
+      depth.put(thread, new Integer(1));
+      active++;
+      operations++;
+    }
+    Interrupt.setLevel(oldLevel);
+  }
+
+  public void endOperation() {
+    NachosThread thread = NachosThread.thisThread();
+    int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+
+    int nested = ((Integer)depth.get(thread)).intValue();
+    if (nested > 1)
+      depth.put(thread, new Integer(nested - 1));
+    else {
+      depth.remove(thread);
+      active--;
+      if (active == 0 && closeWanted)
+	close();
+    }
+    Interrupt.setLevel(oldLevel);
+  }
+
+  //----------------------------------------------------------------------
+  // requestClose/close
+  // 	Close the running transaction and hand it to the daemon, as soon
+  //	as no operation is active and the previous one is in the log.
+  //	Called with interrupts off.
+  //----------------------------------------------------------------------
+
+  private void requestClose() {
+    if (running.isEmpty())
+      return;
+    closeWanted = true;
+    if (active == 0)
+      close();
+  }
+
+  private void close() {
+    if (committing != null)
+      return;				// the daemon closes it when done
+    if (!running.isEmpty()) {
+      committing = running;
+      running = new HashMap();
+      wakeCommitter();
+    }
+    closeWanted = false;
+    while (!blocked.isEmpty())
+      ((Semaphore)blocked.removeFirst()).V();
+  }
+
+  // the newest contents of "sector", or null if it is home.  Called
+  // with interrupts off.
+  private byte[] newest(int sector) {
+    Integer key = new Integer(sector);
+    byte[] image = (byte[])running.get(key);
+    if (image == null && committing != null)
+      image = (byte[])committing.get(key);
+    if (image == null)
+      image = (byte[])committed.get(key);
+    return image;
+  }
+
+  private boolean holds(int sector) {
+    int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+    boolean held = (newest(sector) != null);
+    Interrupt.setLevel(oldLevel);
+    return held;
+  }
+
+  //----------------------------------------------------------------------
+  // timerTick
+  // 	Called on every timer interrupt, closes the running transaction
+  //	once it is CommitInterval ticks old.
+  //----------------------------------------------------------------------
+
+  public void timerTick() {
+    if (!running.isEmpty() && !closeWanted
+	&& Nachos.stats.totalTicks - runningSince >= CommitInterval)
+      requestClose();
+  }
+
+  //----------------------------------------------------------------------
+  // nothingToRun
+  // 	Called when the machine is about to go idle with no interrupt
+  //	pending.  Commit whatever is running and checkpoint the log, so
+  //	the disk is up to date before the machine halts.
+  //
+  //	Return true if the daemon was woken up.
+  //----------------------------------------------------------------------
+
+  public boolean nothingToRun() {
+    if (!sleeping)
+      return false;
+    if (!running.isEmpty() && active == 0) {
+      checkpointWanted = true;
+      close();
+      return true;
+    }
+    if (!committed.isEmpty()) {
+      checkpointWanted = true;
+      wakeCommitter();
+      return true;
+    }
+    return false;
+  }
+
+  private void wakeCommitter() {
+    if (sleeping) {
+      sleeping = false;
+      wakeUp.V();
+    }
+  }
+
+  public void run() {
+    while (true) {
+      int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+      if (committing == null && !checkpointWanted) {
+	sleeping = true;
+	wakeUp.P();
+      }
+      Interrupt.setLevel(oldLevel);
+
+      logLock.acquire();
+      if (committing != null)
+	commit();
+      if (committing == null && checkpointWanted) {
+	checkpointWanted = false;
+	checkpoint();
+      }
+      logLock.release();
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // commit
+  // 	Append the closed transaction to the log, checkpointing first if
+  //	there is no room left.  A transaction bigger than the whole log
+  //	is written home directly, without the protection of the log; it
+  //	takes no sequence number, the next logged transaction has to
+  //	carry the one in the log header.
+  //	Called with the log lock held.
+  //----------------------------------------------------------------------
+
+  private void commit() {
+    List sectors = new ArrayList(committing.keySet());
+    Collections.sort(sectors);
+    int records = (sectors.size() + SectorsPerRecord - 1) / SectorsPerRecord;
+    int length = sectors.size() + records;
+    boolean logged = (length <= logSectors);
+
+    if (!logged) {
+      tooBig++;
+      checkpoint();
+      writeHome(committing);
+      disk.flush();
+    } else {
+      if (logNext + length > logFirst + logSectors)
+	checkpoint();
+
+      byte[] buffer = new byte[length * Disk.SectorSize];
+      int pos = 0;
+      for (int r = 0; r < records; r++) {
+	int first = r * SectorsPerRecord;
+	int count = Math.min(SectorsPerRecord, sectors.size() - first);
+	int descriptor = pos * Disk.SectorSize;
+	Disk.extInt(RecordMagic, buffer, descriptor);
+	Disk.extInt(sequence, buffer, descriptor + 4);
+	Disk.extInt(count, buffer, descriptor + 8);
+	Disk.extInt((r == records - 1) ? 1 : 0, buffer, descriptor + 12);
+	for (int i = 0; i < count; i++) {
+	  Integer sector = (Integer)sectors.get(first + i);
+	  Disk.extInt(sector.intValue(), buffer, descriptor + DescriptorSize + 4 * i);
+	  System.arraycopy((byte[])committing.get(sector), 0, buffer,
+			   (pos + 1 + i) * Disk.SectorSize, Disk.SectorSize);
+	}
+	Disk.extInt(checksum(buffer, descriptor, count), buffer, descriptor + 16);
+	pos += 1 + count;
+      }
+      log.writeSectors(logNext, length, buffer, 0);
+      logNext += length;
+      logWrites += length;
+      sequence++;
+    }
+    commits++;
+
+    int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+    if (logged)
+      committed.putAll(committing);
+    committing = null;
+    if (closeWanted && active == 0)
+      close();
+    Interrupt.setLevel(oldLevel);
+  }
+
+  //----------------------------------------------------------------------
+  // checkpoint
+  // 	Write everything in the log home, then start the log over.
+  //	Called with the log lock held.
+  //----------------------------------------------------------------------
+
+  private void checkpoint() {
+    if (!committed.isEmpty()) {
+      writeHome(committed);
+      // home for good before the log forgets them
+      disk.flush();
+      checkpoints++;
+      sectorsCheckpointed += committed.size();
+      committed = new HashMap();
+    }
+    if (logNext != logFirst) {
+      logNext = logFirst;
+      writeHeader();
+    }
+  }
+
+  // write sectors to their home location, consecutive ones in a single
+  // request
+  private void writeHome(HashMap images) {
+    List sectors = new ArrayList(images.keySet());
+    Collections.sort(sectors);
+
+    int i = 0;
+    while (i < sectors.size()) {
+      int first = ((Integer)sectors.get(i)).intValue();
+      int j = i + 1;
+      while (j < sectors.size()
+	     && ((Integer)sectors.get(j)).intValue() == first + (j - i))
+	j++;
+      byte[] buffer = new byte[(j - i) * Disk.SectorSize];
+      for (int k = i; k < j; k++)
+	System.arraycopy((byte[])images.get(sectors.get(k)), 0, buffer,
+			 (k - i) * Disk.SectorSize, Disk.SectorSize);
+      disk.writeSectors(first, j - i, buffer, 0);
+      i = j;
+    }
+  }
+
+  // the log starts at "logFirst", with transaction "sequence"
+  private void writeHeader() {
+    byte[] buffer = new byte[Disk.SectorSize];
+    Disk.extInt(MagicNumber, buffer, 0);
+    Disk.extInt(logSectors, buffer, 4);
+    Disk.extInt(sequence, buffer, 8);
+    log.writeSector(headerSector, buffer, 0);
+  }
+
+  // checksum of the sector numbers and contents of the record whose
+  // descriptor is at "descriptor" in "buffer"
+  private static int checksum(byte[] buffer, int descriptor, int count) {
+    CRC32 crc = new CRC32();
+    crc.update(buffer, descriptor + DescriptorSize, 4 * count);
+    crc.update(buffer, descriptor + Disk.SectorSize, count * Disk.SectorSize);
+    return (int)crc.getValue();
+  }
+
+  //----------------------------------------------------------------------
+  // replay
+  // 	Read the transactions in the log, from the first one, until one
+  //	is missing or incomplete, and write the complete ones home.
+  //----------------------------------------------------------------------
+
+  private void replay() {
+    HashMap transaction = new HashMap();
+    int pos = logFirst;
+
+    logLock.acquire();
+    while (pos < logFirst + logSectors) {
+      byte[] descriptor = new byte[Disk.SectorSize];
+      log.readSector(pos, descriptor, 0);
+      int count = Disk.intInt(descriptor, 8);
+      if (Disk.intInt(descriptor, 0) != RecordMagic
+	  || Disk.intInt(descriptor, 4) != sequence
+	  || count <= 0 || count > SectorsPerRecord
+	  || pos + 1 + count > logFirst + logSectors)
+	break;
+
+      byte[] buffer = new byte[(1 + count) * Disk.SectorSize];
+      System.arraycopy(descriptor, 0, buffer, 0, Disk.SectorSize);
+      log.readSectors(pos + 1, count, buffer, Disk.SectorSize);
+      if (checksum(buffer, 0, count) != Disk.intInt(descriptor, 16))
+	break;				// torn write
+
+      for (int i = 0; i < count; i++) {
+	byte[] image = new byte[Disk.SectorSize];
+	System.arraycopy(buffer, (1 + i) * Disk.SectorSize, image, 0,
+			 Disk.SectorSize);
+	transaction.put(new Integer(Disk.intInt(descriptor, DescriptorSize + 4 * i)),
+			image);
+      }
+      pos += 1 + count;
+      if (Disk.intInt(descriptor, 12) != 0) {
+	// the last record, the transaction is complete
+	committed.putAll(transaction);
+	transaction = new HashMap();
+	sequence++;
+	replayed++;
+	logNext = pos;
+      }
+    }
+    sectorsReplayed = committed.size();
+    checkpoint();
+    logLock.release();
+
+    Debug.printf('f', "Journal: replayed %d transactions, %d sectors\n",
+		 new Integer(replayed), new Integer(sectorsReplayed));
+  }
+
+  //----------------------------------------------------------------------
+  // flush
+  // 	The machine halts: write everything home and leave the log empty.
+  //----------------------------------------------------------------------
+
+  public void flush() {
+    logLock.acquire();
+    int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+    if (committing != null)
+      committed.putAll(committing);
+    committed.putAll(running);
+    committing = null;
+    running = new HashMap();
+    Interrupt.setLevel(oldLevel);
+
+    checkpoint();
+    disk.flush();
+    logLock.release();
+  }
+
+  //----------------------------------------------------------------------
+  // printStats
+  // 	Print how much the journal saved, then the statistics of the
+  //	disk.
+  //----------------------------------------------------------------------
+
+  public void printStats() {
+    Debug.println('z', "Journal----------------");
+    Debug.print('z', "Log " + logSectors + " sectors, operations " + operations
+		+ "\n");
+    Debug.print('z', "Metadata sectors written " + metadataWrites + ", "
+		+ absorbed + " of them again before the commit\n");
+    Debug.print('z', "Transactions committed " + commits + ", log sectors written "
+		+ logWrites + "\n");
+    if (operations > 0)
+      Debug.print('z', "Log sectors per operation "
+		  + ((double)logWrites / operations) + "\n");
+    Debug.print('z', "Checkpoints " + checkpoints + ", sectors written home "
+		+ sectorsCheckpointed + "\n");
+    if (dataJournaled > 0)
+      Debug.print('z', "Data sectors written through the log " + dataJournaled
+		  + "\n");
+    if (tooBig > 0)
+      Debug.print('z', "Transactions too big for the log " + tooBig + "\n");
+    if (replayed > 0)
+      Debug.print('z', "Transactions replayed at mount " + replayed + " ("
+		  + sectorsReplayed + " sectors)\n");
+    disk.printStats();
+  }
+
+}
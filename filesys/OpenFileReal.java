@@ -28,8 +28,9 @@ class OpenFileReal implements OpenFile {
 
   private FileHeader hdr;		// Header for this file 
   private int seekPosition;		// Current position within the file
-  // bitmap of the free sectors, we might need to add sectors
-  private OpenFile freeSectorMapFile;
+  // file system holding the bitmap of the free sectors, we might need
+  // to add sectors
+  private FileSystemReal fileSystem;
 
 
   //----------------------------------------------------------------------
@@ -39,11 +40,11 @@ class OpenFileReal implements OpenFile {
   //
   //	"sector" -- the location on disk of the file header for this file
   //----------------------------------------------------------------------
-  public OpenFileReal(int sector, OpenFile freeSectorMapFile) {
+  public OpenFileReal(int sector, FileSystemReal fileSystem) {
       hdr = new FileHeader();
       hdr.fetchFrom(sector);
       seekPosition = 0;
-      this.freeSectorMapFile = freeSectorMapFile;
+      this.fileSystem = fileSystem;
   }
   
   public OpenFileReal(int sector) {
@@ -121,7 +122,7 @@ class OpenFileReal implements OpenFile {
       ofd.addReader();
       
       int fileLength = hdr.fileLength();
-      int i, firstSector, lastSector, numSectors;
+      int firstSector, lastSector, numSectors;
       byte buf[];
 
       if ((numBytes <= 0) || (position >= fileLength))
@@ -138,9 +139,7 @@ class OpenFileReal implements OpenFile {
 
       // read in all the full and partial sectors that we need
       buf = new byte[numSectors * Disk.SectorSize];
-      for (i = firstSector; i <= lastSector; i++) 
-        Nachos.synchDisk.readSector(hdr.byteToSector(i * Disk.SectorSize), 
-                             buf, (i - firstSector) * Disk.SectorSize);
+      transferSectors(firstSector, lastSector, buf, false);
 
       // copy the part we want
       System.arraycopy(buf, (int)position - (firstSector * Disk.SectorSize),
@@ -165,23 +164,34 @@ class OpenFileReal implements OpenFile {
           return -1;
       }
           
+      // the metadata updates below reach the disk together
+      Nachos.synchDisk.beginOperation();
       //acquire write lock
       ofd.acquireWriteLock();
       
-      int newSectors = ((int)(position + numBytes - length())) / Disk.SectorSize;
-      // special case if length is 0
-      if (length() == 0 && newSectors == 0) {
-          newSectors = 1;
-      }
+      // the file has exactly the sectors its length needs, and we need
+      // enough of them to hold the last byte written
+      int sectorsNeeded = (int)((position + numBytes + Disk.SectorSize - 1) / Disk.SectorSize);
+      int newSectors = sectorsNeeded - (int)((length() + Disk.SectorSize - 1) / Disk.SectorSize);
       if (newSectors > 0) {
-          // we need to add new sectors
-          BitMap freeMap = new BitMap(Disk.NumSectors);
-          freeMap.fetchFrom(freeSectorMapFile);
-          if (hdr.extend(freeMap, newSectors)) {
-              freeMap.writeBack(freeSectorMapFile);
-          } else {
+          // we need to add new sectors... create already holds the freemap
+          // lock when it makes the directory grow
+          boolean locked = !FileHeader.freeMapLock.isHeldByCurrentThread();
+          if (locked) {
+              FileHeader.freeMapLock.acquire();
+          }
+          BitMap freeMap = fileSystem.fetchFreeMap();
+          boolean extended = hdr.extend(freeMap, newSectors);
+          if (extended) {
+              fileSystem.writeBackFreeMap(freeMap);
+          }
+          if (locked) {
+              FileHeader.freeMapLock.release();
+          }
+          if (!extended) {
               // could not add extra sectors
               ofd.releaseWriteLock();
+              Nachos.synchDisk.endOperation();
               return -1;
           }
       }
@@ -193,12 +203,14 @@ class OpenFileReal implements OpenFile {
       }
       
       int fileLength = hdr.fileLength();
-      int i, firstSector, lastSector, numSectors;
+      int firstSector, lastSector, numSectors;
       boolean firstAligned, lastAligned;
       byte buf[];
 
-      if ((numBytes <= 0) || (position >= fileLength))
+      if ((numBytes <= 0) || (position >= fileLength)) {
+        Nachos.synchDisk.endOperation();
         return 0;                         // check request
+      }
       if ((position + numBytes) > fileLength)
         numBytes = fileLength - (int)position;
       Debug.printf('f', "Writing %d bytes at %d, from file of length %d.\n",
@@ -227,13 +239,12 @@ class OpenFileReal implements OpenFile {
                        numBytes);
 
       // write modified sectors back
-      for (i = firstSector; i <= lastSector; i++) 
-        Nachos.synchDisk.writeSector(hdr.byteToSector(i * Disk.SectorSize), 
-                              buf, (i - firstSector) * Disk.SectorSize);
+      transferSectors(firstSector, lastSector, buf, true);
       
       // write back the file header
       hdr.writeBack(hdr.getSector());
       ofd.releaseWriteLock();
+      Nachos.synchDisk.endOperation();
       ofd.removeOpenFile(this);
       //if file was deleted and it is the last opened file, signal the remove method
       if (hdr.isDeleted() && ofd.noOfOpeners() == 0){
@@ -244,6 +255,43 @@ class OpenFileReal implements OpenFile {
       return numBytes;
   }
 
+  //----------------------------------------------------------------------
+  // OpenFileReal::transferSectors
+  // 	Read/write sectors "firstSector" to "lastSector" of the file 
+  //	from/to "buf".  Sectors that follow each other on disk go in a
+  //	single disk request, and the reference blocks telling where the
+  //	sectors are are read only once.
+  //----------------------------------------------------------------------
+
+  private void transferSectors(int firstSector, int lastSector, byte[] buf,
+                               boolean writing) {
+      int numSectors = 1 + lastSector - firstSector;
+      int[] diskSectors = hdr.byteToSectors(firstSector * Disk.SectorSize, 
+                                            numSectors);
+      int runStart = 0;
+      for (int i = 1; i <= numSectors; i++) {
+          if (i < numSectors && 
+              diskSectors[i] == diskSectors[runStart] + (i - runStart)) {
+              continue;                   // the run goes on
+          }
+          int index = runStart * Disk.SectorSize;
+          if (writing && isMetadata())
+              Nachos.synchDisk.logSectors(diskSectors[runStart], i - runStart, buf, index);
+          else if (writing)
+              Nachos.synchDisk.writeSectors(diskSectors[runStart], i - runStart, buf, index);
+          else
+              Nachos.synchDisk.readSectors(diskSectors[runStart], i - runStart, buf, index);
+          runStart = i;
+      }
+  }
+
+  // the bitmap and the directory are file system metadata, like the
+  // file headers
+  private boolean isMetadata() {
+      return hdr.getSector() == FileSystemReal.FreeMapSector
+          || hdr.getSector() == FileSystemReal.DirectorySector;
+  }
+
   //----------------------------------------------------------------------
   // OpenFileReal::length
   // 	Return the number of bytes in the file.
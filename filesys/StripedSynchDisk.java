@@ -0,0 +1,156 @@
+// StripedSynchDisk.java
+//	A volume made of several disks striped together (RAID 0), with the
+//	same synchronous interface as a single SynchDisk.
+//
+//	The sectors of the volume are dealt out to the disks "stripeUnit"
+//	at a time: the first stripe unit goes on disk 0, the next one on
+//	disk 1, and so on, coming back to disk 0 after the last disk.  A
+//	request spanning several stripe units is split into one request per
+//	unit, all of them queued before waiting, so the pieces on different
+//	disks are served at the same time.
+//
+//	Each disk has its own UNIX file, interrupt handler, request queue
+//	and scheduler (each member is a plain SynchDisk), and its head
+//	moves on its own.
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+class StripedSynchDisk extends SynchDisk {
+
+  private SynchDisk[] members;		// the disks, in stripe order
+  private int stripeUnit;		// consecutive sectors on one disk
+
+  // statistics
+  private int requests = 0;
+  private int pieces = 0;
+
+  //----------------------------------------------------------------------
+  // StripedSynchDisk
+  // 	Initialize a volume of "numDisks" disks, the UNIX files holding
+  //	them being "name" followed by the number of the disk (DISK0,
+  //	DISK1, ...).
+  //
+  //	"stripeUnit" -- how many consecutive sectors of the volume go on
+  //	   the same disk, must divide the size of a disk
+  //----------------------------------------------------------------------
+
+  public StripedSynchDisk(String name, int numDisks, int stripeUnit) {
+    Debug.ASSERT(numDisks > 1, "A striped volume needs at least two disks");
+
+    this.stripeUnit = stripeUnit;
+    members = new SynchDisk[numDisks];
+    for (int i = 0; i < numDisks; i++) {
+      members[i] = new SynchDisk(name + i);
+      Debug.ASSERT(members[i].getNumSectors() == members[0].getNumSectors(),
+		   "The disks of a striped volume must have the same size");
+    }
+    Debug.ASSERT(stripeUnit > 0 && members[0].getNumSectors() % stripeUnit == 0,
+		 "The stripe unit must divide the size of a disk");
+  }
+
+  //----------------------------------------------------------------------
+  // setScheduler
+  // 	Every disk gets its own scheduler using the same policy, since
+  //	the schedulers keep track of where their head is going.
+  //----------------------------------------------------------------------
+
+  public void setScheduler(DiskScheduler scheduler) {
+    int policy = DiskScheduler.getPolicy(scheduler.getName());
+
+    for (int i = 0; i < members.length; i++)
+      members[i].setScheduler(new DiskScheduler(policy));
+  }
+
+  public int getNumSectors() {
+    return members.length * members[0].getNumSectors();
+  }
+
+  //----------------------------------------------------------------------
+  // readSector/readSectors/writeSector/writeSectors
+  // 	Same as for a single disk, "sectorNumber" being a sector of the
+  //	volume.
+  //----------------------------------------------------------------------
+
+  public void readSector(int sectorNumber, byte[] data, int index) {
+    transfer(sectorNumber, 1, data, index, false);
+  }
+
+  public void readSectors(int firstSector, int count, byte[] data, int index) {
+    transfer(firstSector, count, data, index, false);
+  }
+
+  public void writeSector(int sectorNumber, byte[] data, int index) {
+    transfer(sectorNumber, 1, data, index, true);
+  }
+
+  public void writeSectors(int firstSector, int count, byte[] data, int index) {
+    transfer(firstSector, count, data, index, true);
+  }
+
+  //----------------------------------------------------------------------
+  // transfer
+  // 	Split a request for "count" sectors of the volume starting at
+  //	"firstSector" at the stripe unit boundaries, send every piece to
+  //	its disk, and return when they are all done.
+  //----------------------------------------------------------------------
+
+  private void transfer(int firstSector, int count, byte[] data, int index,
+			boolean writing) {
+    Debug.ASSERT(firstSector >= 0 && count > 0
+		 && firstSector + count <= getNumSectors());
+
+    List sent = new LinkedList();
+    int sector = firstSector;
+    while (sector < firstSector + count) {
+      int stripe = sector / stripeUnit;
+      int offset = sector % stripeUnit;
+      int length = Math.min(stripeUnit - offset, firstSector + count - sector);
+
+      SynchDisk member = members[stripe % members.length];
+      int diskSector = (stripe / members.length) * stripeUnit + offset;
+      Request request = new Request(diskSector, length, data,
+				    index + (sector - firstSector) * Disk.SectorSize,
+				    writing);
+      member.queue(request);
+      sent.add(request);
+      sector += length;
+    }
+
+    requests++;
+    pieces += sent.size();
+    for (Iterator i = sent.iterator(); i.hasNext();)
+      ((Request)i.next()).done.P();
+  }
+
+  //----------------------------------------------------------------------
+  // flush
+  // 	Flush every disk.
+  //----------------------------------------------------------------------
+
+  public void flush() {
+    for (int i = 0; i < members.length; i++)
+      members[i].flush();
+  }
+
+  //----------------------------------------------------------------------
+  // printStats
+  // 	Print how the requests were split, then the statistics of every
+  //	disk.
+  //----------------------------------------------------------------------
+
+  public void printStats() {
+    Debug.println('z', "Striped volume----------------");
+    Debug.print('z', "Disks " + members.length + ", stripe unit " + stripeUnit
+		+ " sectors\n");
+    if (requests > 0)
+      Debug.print('z', "Requests " + requests + ", disk requests per request "
+		  + ((double)pieces / requests) + "\n");
+    for (int i = 0; i < members.length; i++) {
+      Debug.print('z', "Disk " + i + "\n");
+      members[i].printStats();
+    }
+  }
+
+}
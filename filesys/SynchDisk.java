@@ -5,16 +5,19 @@
 //	the disk providing a synchronous interface (requests wait until
 //	the request completes).
 //
-//	Use a semaphore to synchronize the interrupt handlers with the
-//	pending requests.  And, because the physical disk can only
-//	handle one operation at a time, use a lock to enforce mutual
-//	exclusion.
+//	The physical disk can only handle one operation at a time, so
+//	requests wait in a queue, each on its own semaphore.  When the
+//	disk finishes a request, the interrupt handler wakes up its
+//	thread, and a DiskScheduler picks the next request to send.
 //
 // Copyright (c) 1992-1993 The Regents of the University of California.
 // Copyright (c) 1998 Rice University.
 // All rights reserved.  See the COPYRIGHT file for copyright notice and 
 // limitation of liability and disclaimer of warranty provisions.
 
+import java.util.LinkedList;
+import java.util.List;
+
 // The following class defines a "synchronous" disk abstraction.
 // As with other I/O devices, the raw physical disk is an asynchronous device --
 // requests to read or write portions of the disk return immediately,
@@ -26,16 +29,23 @@
 // making a request, it waits around until the operation finishes before
 // returning.
 
-
 class SynchDisk {
   
   Disk disk;	  		// Raw disk device
-  Semaphore semaphore; 		// To synchronize requesting thread 
-				// with the interrupt handler
-  Lock lock;	  		// Only one read/write request
-                                // can be sent to the disk at a time
+  List pending;			// Requests waiting for the disk, in
+				// arrival order
+  Request current;		// Request the disk is working on
+  DiskScheduler scheduler;	// Picks the next request
   SynchDiskIntHandler handler;  // internal handler
 
+  // statistics
+  private int requests = 0;
+  private int sectors = 0;
+  private long seekTracks = 0;
+  private long latencyTicks = 0;
+  private int maxLatency = 0;
+  private int maxQueue = 0;
+
   //----------------------------------------------------------------------
   // SynchDisk
   // 	Initialize the synchronous interface to the physical disk, in turn
@@ -47,14 +57,89 @@ class SynchDisk {
   
   public SynchDisk(String name) {
     
-    semaphore = new Semaphore("synch disk", 0);
-    lock = new Lock("synch disk lock");
+    pending = new LinkedList();
+    current = null;
+    scheduler = new DiskScheduler(DiskScheduler.FCFS);
     handler = new SynchDiskIntHandler(this);
     disk = new Disk(name, handler);
 
 
   }
 
+  //----------------------------------------------------------------------
+  // SynchDisk
+  // 	For volumes made of several disks (see StripedSynchDisk), which
+  //	have a SynchDisk for each of them instead of a disk of their own.
+  //----------------------------------------------------------------------
+
+  SynchDisk() {
+  }
+
+  //----------------------------------------------------------------------
+  // getNumSectors
+  // 	Return the size of the disk, in sectors.
+  //----------------------------------------------------------------------
+
+  public int getNumSectors() {
+    return disk.getNumSectors();
+  }
+
+  //----------------------------------------------------------------------
+  // uncached
+  // 	Return the disk without any buffer cache in front (see
+  //	BufferCache), for the swap area.
+  //----------------------------------------------------------------------
+
+  public SynchDisk uncached() {
+    return this;
+  }
+
+  //----------------------------------------------------------------------
+  // logSector/logSectors
+  // 	Write file system metadata: file headers, reference blocks, the
+  //	bitmap and the directory.  Without a journal in front of the disk
+  //	(see Journal) they are written like anything else.
+  //----------------------------------------------------------------------
+
+  public void logSector(int sectorNumber, byte[] data, int index) {
+    writeSector(sectorNumber, data, index);
+  }
+
+  public void logSectors(int firstSector, int count, byte[] data, int index) {
+    writeSectors(firstSector, count, data, index);
+  }
+
+  //----------------------------------------------------------------------
+  // metadataFreed
+  // 	The file header or reference block in "sector" was given back to
+  //	the bitmap.  Nothing to do without a journal.
+  //----------------------------------------------------------------------
+
+  public void metadataFreed(int sector) {
+  }
+
+  //----------------------------------------------------------------------
+  // beginOperation/endOperation
+  // 	Bracket a file system operation whose metadata updates have to
+  //	reach the disk all together.  They may be nested.  Nothing to do
+  //	without a journal.
+  //----------------------------------------------------------------------
+
+  public void beginOperation() {
+  }
+
+  public void endOperation() {
+  }
+
+  //----------------------------------------------------------------------
+  // setScheduler
+  // 	Change the policy used to order the requests.
+  //----------------------------------------------------------------------
+
+  public void setScheduler(DiskScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
   //----------------------------------------------------------------------
   // readSector
   // 	Read the contents of a disk sector into a buffer.  Return only
@@ -65,10 +150,17 @@ class SynchDisk {
   //----------------------------------------------------------------------
 
   public void readSector(int sectorNumber, byte[] data, int index) {
-    lock.acquire();			// only one disk I/O at a time
-    disk.readRequest(sectorNumber, data, index);
-    semaphore.P();			// wait for interrupt
-    lock.release();
+    submit(new Request(sectorNumber, 1, data, index, false));
+  }
+
+  //----------------------------------------------------------------------
+  // readSectors
+  // 	Read "count" consecutive sectors in a single disk request, which
+  //	pays for the seek and rotational delay only once.
+  //----------------------------------------------------------------------
+
+  public void readSectors(int firstSector, int count, byte[] data, int index) {
+    submit(new Request(firstSector, count, data, index, false));
   }
 
   //----------------------------------------------------------------------
@@ -81,20 +173,143 @@ class SynchDisk {
   //----------------------------------------------------------------------
 
   public void writeSector(int sectorNumber, byte[] data, int index) {
-    lock.acquire();			// only one disk I/O at a time
-    disk.writeRequest(sectorNumber, data, index);
-    semaphore.P();			// wait for interrupt
-    lock.release();
+    submit(new Request(sectorNumber, 1, data, index, true));
+  }
+
+  //----------------------------------------------------------------------
+  // writeSectors
+  // 	Write "count" consecutive sectors in a single disk request.
+  //----------------------------------------------------------------------
+
+  public void writeSectors(int firstSector, int count, byte[] data, int index) {
+    submit(new Request(firstSector, count, data, index, true));
+  }
+
+  //----------------------------------------------------------------------
+  // submit
+  // 	Queue a request and wait until it is done.
+  //----------------------------------------------------------------------
+
+  private void submit(Request request) {
+    queue(request);
+    request.done.P();			// wait for interrupt
+  }
+
+  //----------------------------------------------------------------------
+  // queue
+  // 	Queue a request, and start it right away if the disk is idle.
+  //	Return without waiting: the caller waits on request.done.
+  //----------------------------------------------------------------------
+
+  void queue(Request request) {
+    int oldLevel = Interrupt.setLevel(Interrupt.IntOff);
+    pending.add(request);
+    maxQueue = Math.max(maxQueue, pending.size());
+    if (current == null)
+      startNext();
+    Interrupt.setLevel(oldLevel);
+  }
+
+  //----------------------------------------------------------------------
+  // startNext
+  // 	Send the request picked by the scheduler to the disk.  Called
+  //	with interrupts off.
+  //----------------------------------------------------------------------
+
+  private void startNext() {
+    if (pending.isEmpty())
+      return;
+
+    current = scheduler.next(pending, disk);
+    pending.remove(current);
+    seekTracks += Math.abs(disk.trackOf(current.sector) - disk.getHeadTrack());
+
+    if (current.writing)
+      disk.writeRequest(current.sector, current.count, current.data, 
+			current.index);
+    else
+      disk.readRequest(current.sector, current.count, current.data, 
+		       current.index);
   }
 
   //----------------------------------------------------------------------
   // requestDone
-  // 	Disk interrupt handler.  Wake up any thread waiting for the disk
-  //	request to finish.
+  // 	Disk interrupt handler.  Wake up the thread waiting for the disk
+  //	request to finish, and start the next one.
   //----------------------------------------------------------------------
 
   public void requestDone() { 
-    semaphore.V();
+    int latency = Nachos.stats.totalTicks - current.arrival;
+    requests++;
+    sectors += current.count;
+    latencyTicks += latency;
+    maxLatency = Math.max(maxLatency, latency);
+
+    current.done.V();
+    current = null;
+    startNext();
+  }
+
+  //----------------------------------------------------------------------
+  // flush
+  // 	Make sure everything written is on the disk, not just in its
+  //	cache.  Called when the machine halts.
+  //----------------------------------------------------------------------
+
+  public void flush() {
+    disk.flush();
+  }
+
+  //----------------------------------------------------------------------
+  // printStats
+  // 	Print how well the scheduler (and the drive cache) did.
+  //----------------------------------------------------------------------
+
+  public void printStats() {
+    Debug.println('z', "Disk scheduling----------------");
+    Debug.print('z', "Policy " + scheduler.getName() + ", requests " + requests
+		+ ", longest queue " + maxQueue + "\n");
+    if (scheduler.getAged() > 0)
+      Debug.print('z', "Requests served for waiting too long " 
+		  + scheduler.getAged() + "\n");
+    if (requests > 0) {
+      Debug.print('z', "Sectors per request " 
+		  + ((double)sectors / requests) + "\n");
+      Debug.print('z', "Average seek distance (tracks) " 
+		  + ((double)seekTracks / requests) + "\n");
+      Debug.print('z', "Average latency (ticks) " + (latencyTicks / requests)
+		  + ", maximum " + maxLatency + "\n");
+    }
+    disk.printStats();
+  }
+
+  // A request waiting for the disk
+  static class Request {
+    int sector;			// first sector
+    int count;			// number of consecutive sectors
+    byte[] data;
+    int index;
+    boolean writing;
+    int arrival;		// when it was queued
+    Semaphore done;		// the requesting thread waits here
+
+    Request(int sector, int count, byte[] data, int index, boolean writing) {
+      this.sector = sector;
+      this.count = count;
+      this.writing = writing;
+      if (writing) {
+	// the disk used to take the data right away, callers count on
+	// being able to reuse the buffer while the request waits
+	this.data = new byte[count * Disk.SectorSize];
+	this.index = 0;
+	System.arraycopy(data, index, this.data, 0, count * Disk.SectorSize);
+      } else {
+	this.data = data;
+	this.index = index;
+      }
+      arrival = Nachos.stats.totalTicks;
+      done = new Semaphore("disk request", 0);
+    }
   }
 
 }
@@ -113,5 +328,3 @@ class SynchDiskIntHandler implements Runnable {
     disk.requestDone();
   }
 }
-
-
@@ -25,7 +25,10 @@
 // The following class defines a physical disk I/O device.  The disk
 // has a single surface, split up into "tracks", and each track split
 // up into "sectors" (the same number of sectors on each track, and each
-// sector has the same number of bytes of storage).  
+// sector has the same number of bytes of storage).  How many tracks and
+// sectors per track, and whether it is a spinning disk or a solid state
+// one, is chosen when the disk is created (see setGeometry/setModel),
+// and recorded at the front of the UNIX file.
 //
 // Addressing is by sector number -- each sector on the disk is given
 // a unique number: track * SectorsPerTrack + offset within a track.
@@ -34,44 +37,109 @@
 // requests to read or write portions of the disk return immediately,
 // and an interrupt is invoked later to signal that the operation completed.
 //
-// The physical disk is in fact simulated via operations on a UNIX file.
+// The physical disk is in fact simulated via operations on a UNIX file,
+// mapped into memory so a sector transfer is just a copy.  When the
+// changes are forced out to the UNIX file is up to Disk.setForcePolicy.
 //
-// To make life a little more realistic, the simulated time for
-// each operation reflects a "track buffer" -- RAM to store the contents
-// of the current track as the disk head passes by.  The idea is that the
-// disk always transfers to the track buffer, in case that data is requested
-// later on.  This has the benefit of eliminating the need for 
-// "skip-sector" scheduling -- a read request which comes in shortly after 
-// the head has passed the beginning of the sector can be satisfied more 
-// quickly, because its contents are in the track buffer.  Most 
-// disks these days now come with a track buffer.
+// To make life a little more realistic, the disk can have a cache of
+// "track buffers" -- RAM to store the contents of a track as the disk
+// head passes by (see DiskCache).  The idea is that the disk always
+// transfers to the track buffer, in case that data is requested later
+// on.  This has the benefit of eliminating the need for "skip-sector"
+// scheduling -- a read request which comes in shortly after the head has
+// passed the beginning of the sector can be satisfied more quickly,
+// because its contents are in the track buffer.  Most disks these days
+// now come with a track buffer.
 //
-// The track buffer simulation can be disabled by compiling with -DNOTRACKBUF
+// The cache is off unless Disk.setCache is called before the disk is
+// created.
+//
+// The copy to or from the UNIX file is handed to a host I/O thread when
+// the request is sent, and the interrupt handler only waits for it if it
+// is not done yet when the simulated request completes.  So the host
+// does the I/O while the simulator runs other threads, just like the
+// real disk would.
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 class Disk {
 
-  // track buffer support
-  private static final boolean NOTRACKBUF = true;
+  // track buffers in the drive cache (0 for none), and whether writes
+  // are absorbed by it
+  private static int cacheTracks = 0;
+  private static boolean cacheWriteBack = false;
+
+  // when the mapped UNIX file is forced out to the host disk: never (the
+  // host OS writes it back whenever it likes), when the machine halts,
+  // or after every write request
+  public static final int ForceNever = 0;
+  public static final int ForceAtHalt = 1;
+  public static final int ForceOnWrite = 2;
+  private static final String ForceNames[] = {"never", "halt", "write"};
+  private static int forcePolicy = ForceAtHalt;
+
+  // host threads doing the UNIX file transfers of all the disks, so they
+  // overlap with the simulation; they never keep the simulator alive
+  private static ExecutorService hostIO = 
+    Executors.newCachedThreadPool(new ThreadFactory() {
+	public Thread newThread(Runnable r) {
+	  Thread t = new Thread(r, "disk host I/O");
+	  t.setDaemon(true);
+	  return t;
+	}
+      });
 
   // number of bytes per disk sector
   public static final int SectorSize =	128;
-  // number of sectors per disk track 
-  private static final int SectorsPerTrack = 32;	
-  // number of tracks per disk
-  private static final int NumTracks = 32;
-  // total # of sectors per disk
-  public static final int NumSectors =	(SectorsPerTrack * NumTracks);
-
-  private RandomAccessFile file;// UNIX file for simulated disk 
+  // geometry of the disks created when none is asked for
+  public static final int DefaultSectorsPerTrack = 32;	
+  public static final int DefaultTracks = 32;
+
+  // disk models: a spinning disk, where a request waits for the head to
+  // seek to its track and for its sector to come around, or a solid state
+  // disk, where a request takes the same time wherever it is
+  public static final int ModelHDD = 0;
+  public static final int ModelSSD = 1;
+  private static final String ModelNames[] = {"hdd", "ssd"};
+  // time for the SSD to get to any sector, and to transfer each sector
+  private static final int SSDAccessTime = 100;
+  private static final int SSDTransferTime = 50;
+
+  // geometry and model of the disks created from now on, and whether they
+  // must be created even if their UNIX file exists
+  private static int newTracks = DefaultTracks;
+  private static int newSectorsPerTrack = DefaultSectorsPerTrack;
+  private static int newModel = ModelHDD;
+  private static boolean recreate = false;
+
+  private int sectorsPerTrack;	// number of sectors per disk track
+  private int numTracks;	// number of tracks per disk
+  private int numSectors;	// total # of sectors per disk
+  private int model;		// ModelHDD or ModelSSD
+  private int seekPerTrack;	// ticks to move the head one track
+  private int sectorTime;	// ticks for a sector to go by under the
+				// head (or to be transferred, on an SSD)
+  private int headerSize;	// bytes before sector 0 in the UNIX file
+
+  private MappedByteBuffer image;// UNIX file for simulated disk, mapped
   private DiskIntHandler dskHandler; // internal interrupt handler
   private Runnable handler;	// Interrupt handler, to be invoked 
                                 // when any disk request finishes
   private boolean active;       // Is a disk operation in progress?
+  private Future transfer;	// UNIX file transfer of that request, 
+				// null if already done
+  private int transfers = 0;	// host transfers started
+  private int transfersWaited = 0;	// and not done by the interrupt
   private int lastSector;	// The previous disk request 
-  private int bufferInit;	// When the track buffer started 
-				// being loaded
+  private DiskCache cache;	// Track buffers, null if none
 
   private int seek;             // times computed by
   private int rotation;           // timeToSeek()
@@ -80,9 +148,13 @@ class Disk {
   // We put this at the front of the UNIX file representing the
   // disk, to make it less likely we will accidentally treat a useful file 
   // as a disk (which would probably trash the file's contents).
+  // Disks with the old magic number have the default geometry; with the
+  // new one, it is followed by the number of tracks, the number of
+  // sectors per track and the model.
   private static final int MagicNumber = 0x456789ab;
   private static final int MagicSize = 4;
-  private static final int DiskSize = MagicSize + (NumSectors * SectorSize);
+  private static final int MagicNumber2 = 0x456789ac;
+  private static final int HeaderSize2 = 16;
 
 
   //----------------------------------------------------------------------
@@ -91,8 +163,9 @@ class Disk {
   //     Invoke callWhenDone.run(callArg) every time a request completes.
   //
   // 	Open the UNIX file (creating it
-  //	if it doesn't exist), and check the magic number to make sure it's 
-  // 	ok to treat it as Nachos disk storage.
+  //	if it doesn't exist, or if a new geometry was asked for), and check
+  //	the magic number to make sure it's ok to treat it as Nachos disk
+  //	storage.  The geometry comes from the file.
   //
   //	"name" -- text name of the file simulating the Nachos disk
   //	"callWhenDone" -- interrupt handler to be called when disk read/write
@@ -100,6 +173,7 @@ class Disk {
   //----------------------------------------------------------------------
 
   public Disk(String name, Runnable callWhenDone) {
+    RandomAccessFile file = null;
     int magicNum;
     long len = 0;
     
@@ -107,7 +181,6 @@ class Disk {
 
     handler = callWhenDone;
     lastSector = 0;
-    bufferInit = 0;
 
     dskHandler = new DiskIntHandler (this);
 
@@ -118,32 +191,155 @@ class Disk {
       file = null;
     }
 
-    if (file != null && len != 0) {	
+    if (file != null && len != 0 && !recreate) {	
       // file exists, check magic number 
       try {
 	magicNum = file.readInt();
+	if (magicNum == MagicNumber2) {
+	  numTracks = file.readInt();
+	  sectorsPerTrack = file.readInt();
+	  model = file.readInt();
+	}
       } catch (IOException e) {magicNum = 0;}
 
-      Debug.ASSERT(magicNum == MagicNumber);
+      Debug.ASSERT(magicNum == MagicNumber || magicNum == MagicNumber2);
+      if (magicNum == MagicNumber) {
+	numTracks = DefaultTracks;
+	sectorsPerTrack = DefaultSectorsPerTrack;
+	model = ModelHDD;
+	headerSize = MagicSize;
+      } else
+	headerSize = HeaderSize2;
 
     } else {				// file doesn't exist, create it
 
+      numTracks = newTracks;
+      sectorsPerTrack = newSectorsPerTrack;
+      model = newModel;
+      headerSize = HeaderSize2;
       try {
 	FileOutputStream fsFile;
 	fsFile = new FileOutputStream(name);
 	fsFile.close();    
 	file = new RandomAccessFile(name, "rw");
-	file.writeInt(MagicNumber);        // write magic number
+	file.writeInt(MagicNumber2);        // write magic number
+	file.writeInt(numTracks);
+	file.writeInt(sectorsPerTrack);
+	file.writeInt(model);
 
 	// need to write at end of file, so that reads will not return EOF
-        file.seek(DiskSize - 4);	
+        file.seek(headerSize + (long)numTracks * sectorsPerTrack * SectorSize - 4);	
 	file.writeInt(0);
       } catch (IOException e) {
 	Debug.ASSERT(false, "Can't create Disk file");
       }
 
     }
+
+    numSectors = sectorsPerTrack * numTracks;
+    if (model == ModelSSD) {
+      seekPerTrack = 0;
+      sectorTime = SSDTransferTime;
+    } else {
+      seekPerTrack = Statistics.SeekTime;
+      sectorTime = Statistics.RotationTime;
+    }
+    Debug.printf('d', "%d tracks of %d sectors, %s\n", new Integer(numTracks),
+		 new Integer(sectorsPerTrack), ModelNames[model]);
+
+    cache = null;
+    if (cacheTracks > 0) {
+      Debug.ASSERT(model == ModelHDD, "Only spinning disks have track buffers");
+      Debug.ASSERT(cacheTracks <= numTracks, 
+		   "Disk cache size must be at most the number of tracks");
+      cache = new DiskCache(this, cacheTracks, cacheWriteBack);
+    }
+
+    // map the whole file, header included, so offsets stay the same
+    try {
+      image = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 
+				    headerSize + numSectors * SectorSize);
+      file.close();		// the mapping stays valid
+    } catch (IOException e) {
+      Debug.ASSERT(false, "Can't map Disk file");
+    }
     active = false;
+    transfer = null;
+  }
+
+  //----------------------------------------------------------------------
+  // setCache()
+  // 	Give the disks created from now on a cache of "tracks" track
+  //	buffers (0 for none), absorbing writes if "writeBack".
+  //----------------------------------------------------------------------
+
+  public static void setCache(int tracks, boolean writeBack) {
+    Debug.ASSERT(tracks >= 0, "Disk cache size must not be negative");
+    cacheTracks = tracks;
+    cacheWriteBack = writeBack;
+  }
+
+  //----------------------------------------------------------------------
+  // setForcePolicy()
+  // 	Choose when the disks force their changes out to the host disk:
+  //	"never", at "halt" (the default) or on every "write".
+  //----------------------------------------------------------------------
+
+  public static void setForcePolicy(String name) {
+    for (int i = 0; i < ForceNames.length; i++)
+      if (ForceNames[i].equals(name)) {
+	forcePolicy = i;
+	return;
+      }
+    Debug.ASSERT(false, "Unknown force policy " + name);
+  }
+
+  //----------------------------------------------------------------------
+  // setGeometry()/setModel()
+  // 	Choose the geometry, or the model ("hdd" or "ssd"), of the disks
+  //	created from now on.  Their UNIX file is created again even if it
+  //	exists, so this is only for formatting.
+  //----------------------------------------------------------------------
+
+  public static void setGeometry(int tracks, int sectorsPerTrack) {
+    Debug.ASSERT(tracks > 0 && sectorsPerTrack > 0, "Bad disk geometry");
+    // the whole disk has to fit in one mapping
+    Debug.ASSERT((long)tracks * sectorsPerTrack * SectorSize 
+		 <= Integer.MAX_VALUE - HeaderSize2, "Disk too big");
+    newTracks = tracks;
+    newSectorsPerTrack = sectorsPerTrack;
+    recreate = true;
+  }
+
+  public static void setModel(String name) {
+    for (int i = 0; i < ModelNames.length; i++)
+      if (ModelNames[i].equals(name)) {
+	newModel = i;
+	recreate = true;
+	return;
+      }
+    Debug.ASSERT(false, "Unknown disk model " + name);
+  }
+
+  //----------------------------------------------------------------------
+  // getNumSectors()/getSectorsPerTrack()/getSeekTime()/getSectorTime()
+  // 	The geometry and timing of this disk.
+  //----------------------------------------------------------------------
+
+  public int getNumSectors() {
+    return numSectors;
+  }
+
+  public int getSectorsPerTrack() {
+    return sectorsPerTrack;
+  }
+
+  public int getSeekTime() {
+    return seekPerTrack;
+  }
+
+  public int getSectorTime() {
+    return sectorTime;
   }
 
 
@@ -154,8 +350,9 @@ class Disk {
   // readRequest/writeRequest
   // These routines send a request to the disk and return immediately.
   //
-  // 	Simulate a request to read/write a single disk sector
-  //	   Do the read/write immediately to the UNIX file
+  // 	Simulate a request to read/write "count" consecutive disk sectors
+  //	   Start the read/write to the UNIX file on a host I/O thread
+  //	      (or do it right away when the drive cache serves it)
   //	   Set up an interrupt handler to be called later,
   //	      that will notify the caller when the simulator says
   //	      the operation has completed.
@@ -163,31 +360,45 @@ class Disk {
   //	Note that a disk only allows an entire sector to be read/written,
   //	not part of a sector.
   //
-  //	"sectorNumber" -- the disk sector to read/write
+  //	"sectorNumber" -- the first disk sector to read/write
+  //	"count" -- how many sectors, defaults to one
   //	"data" -- the bytes to be written, the buffer to hold the incoming bytes
   //----------------------------------------------------------------------
 
   public void readRequest(int sectorNumber, byte[] data, int index) {
+    readRequest(sectorNumber, 1, data, index);
+  }
 
-    int ticks = computeLatency(sectorNumber, false);
+  public void readRequest(int sectorNumber, int count, byte[] data, int index) {
 
     Debug.ASSERT(!active);		// only one request at a time
-    Debug.ASSERT((sectorNumber >= 0) && (sectorNumber < NumSectors));
+    Debug.ASSERT((sectorNumber >= 0) && (count > 0) 
+		 && (sectorNumber + count <= numSectors));
     
-    Debug.printf('d', "Reading from sector %d\n", new Integer(sectorNumber));
-
-    try {
-      file.seek(SectorSize * sectorNumber + MagicSize);
-      file.read(data, index, SectorSize);
-    } catch(IOException e) {
-      Debug.ASSERT(false, "Can't read Disk file!");
+    Debug.printf('d', "Reading %d sectors from sector %d\n", 
+		 new Integer(count), new Integer(sectorNumber));
+
+    int ticks;
+    if (cache != null && cache.holds(sectorNumber, count, Nachos.stats.totalTicks)) {
+      // straight from the track buffers, the head does not move
+      ticks = count * sectorTime;
+      ticks += cache.read(sectorNumber, count, data, index, true);
+    } else {
+      ticks = computeLatency(sectorNumber, count, false);
+      if (cache != null)
+	ticks += cache.read(sectorNumber, count, data, index, false);
+      else
+	startTransfer(false, sectorNumber, count, data, index);
+      ticks += updateLast(sectorNumber, count, ticks);
     }
 
-    if (Debug.isEnabled('d'))
-	printSector(false, sectorNumber, data);
+    if (Debug.isEnabled('d')) {
+      finishTransfer();		// we need the data now
+      for (int i = 0; i < count; i++)
+	printSector(false, sectorNumber + i, data, index + i * SectorSize);
+    }
     
     active = true;
-    updateLast(sectorNumber);
     Nachos.stats.numDiskReads++;
     Interrupt.schedule(dskHandler, ticks, Interrupt.DiskInt);
   }
@@ -195,45 +406,180 @@ class Disk {
 
 
   public void writeRequest(int sectorNumber, byte[] data, int index) {
+    writeRequest(sectorNumber, 1, data, index);
+  }
 
-    int ticks = computeLatency(sectorNumber, true);
+  public void writeRequest(int sectorNumber, int count, byte[] data, int index) {
 
     Debug.ASSERT(!active);
-    Debug.ASSERT((sectorNumber >= 0) && (sectorNumber < NumSectors));
+    Debug.ASSERT((sectorNumber >= 0) && (count > 0) 
+		 && (sectorNumber + count <= numSectors));
     
-    Debug.printf('d', "Writing to sector %d\n", new Integer(sectorNumber));
-
-    try {
-      file.seek(SectorSize * sectorNumber + MagicSize);
-      file.write(data, index, SectorSize);
-    } catch(IOException e) {
-      Debug.ASSERT(false, "Can't write Disk file!");
+    Debug.printf('d', "Writing %d sectors to sector %d\n", 
+		 new Integer(count), new Integer(sectorNumber));
+
+    int ticks;
+    if (cache != null && cache.isWriteBack()) {
+      // absorbed by the track buffers, written to the disk later
+      ticks = count * sectorTime;
+      ticks += cache.write(sectorNumber, count, data, index);
+    } else {
+      ticks = computeLatency(sectorNumber, count, true);
+      startTransfer(true, sectorNumber, count, data, index);
+      if (cache != null)
+	cache.write(sectorNumber, count, data, index);
+      ticks += updateLast(sectorNumber, count, ticks);
     }
 
     if (Debug.isEnabled('d'))
-        printSector(true, sectorNumber, data);
+      for (int i = 0; i < count; i++)
+        printSector(true, sectorNumber + i, data, index + i * SectorSize);
 
     active = true;
-    updateLast(sectorNumber);
     Nachos.stats.numDiskWrites++;
     Interrupt.schedule(dskHandler, ticks, Interrupt.DiskInt);
   }
 
 
 
+  //----------------------------------------------------------------------
+  // readFile/writeFile
+  // 	Move "count" sectors between the UNIX file and "data", with no
+  //	simulated time.  For the requests and the drive cache.
+  //----------------------------------------------------------------------
+
+  void readFile(int sectorNumber, int count, byte[] data, int index) {
+    ByteBuffer view = image.duplicate();	// own position, for the host 
+						// I/O threads
+    view.position(SectorSize * sectorNumber + headerSize);
+    view.get(data, index, SectorSize * count);
+  }
+
+  void writeFile(int sectorNumber, int count, byte[] data, int index) {
+    ByteBuffer view = image.duplicate();
+    view.position(SectorSize * sectorNumber + headerSize);
+    view.put(data, index, SectorSize * count);
+    if (forcePolicy == ForceOnWrite)
+      image.force();
+  }
+
+
+
+  //----------------------------------------------------------------------
+  // startTransfer()
+  // 	Hand the readFile/writeFile of a request to a host I/O thread.
+  //	The bytes to write are copied first: the caller may reuse its
+  //	buffer as soon as the request is sent.  The buffer to read into
+  //	must be left alone until the interrupt.
+  //----------------------------------------------------------------------
+
+  private void startTransfer(final boolean writing, final int sectorNumber, 
+			     final int count, byte[] data, int index) {
+    final byte[] buffer;
+    final int offset;
+
+    if (writing) {
+      buffer = new byte[count * SectorSize];
+      offset = 0;
+      System.arraycopy(data, index, buffer, 0, count * SectorSize);
+    } else {
+      buffer = data;
+      offset = index;
+    }
+
+    transfers++;
+    transfer = hostIO.submit(new Runnable() {
+	public void run() {
+	  if (writing)
+	    writeFile(sectorNumber, count, buffer, offset);
+	  else
+	    readFile(sectorNumber, count, buffer, offset);
+	}
+      });
+  }
+
+  //----------------------------------------------------------------------
+  // finishTransfer()
+  // 	Wait until the host I/O thread is done with the current request,
+  //	if it is not already.  The drive cache calls it too, before it
+  //	reads a track from the UNIX file.
+  //----------------------------------------------------------------------
+
+  void finishTransfer() {
+    if (transfer == null)
+      return;
+    if (!transfer.isDone())
+      transfersWaited++;
+
+    boolean done = false;
+    while (!done) {
+      try {
+	transfer.get();
+	done = true;
+      } catch (InterruptedException e) {
+	// keep waiting, the data has to be there
+      } catch (ExecutionException e) {
+	Debug.ASSERT(false, "Disk transfer failed: " + e.getCause());
+      }
+    }
+    transfer = null;
+  }
+
+
+
+  //----------------------------------------------------------------------
+  // flush()/printStats()
+  // 	Write what the drive cache is holding to the disk, and the disk to
+  //	the UNIX file, when the machine halts.  Print how well the cache
+  //	did.
+  //----------------------------------------------------------------------
+
+  public void flush() {
+    finishTransfer();
+    if (cache != null)
+      cache.flush();
+    if (forcePolicy != ForceNever)
+      image.force();
+  }
+
+  public void printStats() {
+    Debug.print('z', "Host transfers " + transfers + ", waited for " 
+		+ transfersWaited + "\n");
+    if (cache != null)
+      cache.printStats();
+  }
+
+
+
   //----------------------------------------------------------------------
   // handleInterrupt()
   // 	Called when it is time to invoke the disk interrupt handler,
-  //	to tell the Nachos kernel that the disk request is done.
+  //	to tell the Nachos kernel that the disk request is done.  Waits
+  //	for the host to finish the transfer if it is still going.
   //----------------------------------------------------------------------
 
   public void handleInterrupt () { 
+    finishTransfer();
     active = false;
     handler.run();
   }
 
 
 
+  //----------------------------------------------------------------------
+  // getHeadTrack()/trackOf()
+  // 	Where the disk head is (the track of the last request), and
+  //	which track a sector is on, for the disk scheduler.
+  //----------------------------------------------------------------------
+
+  public int getHeadTrack() {
+    return lastSector / sectorsPerTrack;
+  }
+
+  public int trackOf(int sector) {
+    return sector / sectorsPerTrack;
+  }
+
   //----------------------------------------------------------------------
   // computeLatency()
   // 	Return how long will it take to read/write a disk sector, from
@@ -248,37 +594,81 @@ class Disk {
   //   	how long it will take to rotate completely past newSector after 
   //	that point.
   //
-  //   	The disk also has a "track buffer"; the disk continuously reads
-  //   	the contents of the current disk track into the buffer.  This allows 
-  //   	read requests to the current track to be satisfied more quickly.
-  //   	The contents of the track buffer are discarded after every seek to 
-  //   	a new track.
+  //   	The disk may also have track buffers (see DiskCache), the disk
+  //   	continuously reads the contents of the current disk track into
+  //   	one.  Requests they can serve do not move the head, and only pay
+  //	for the transfer.
   //----------------------------------------------------------------------
 
   public int computeLatency(int newSector, boolean writing) {
+    return computeLatency(newSector, 1, writing);
+  }
 
-    timeToSeek(newSector);  // computes seek and rotation
-    int timeAfter = Nachos.stats.totalTicks + seek + rotation;
+  //----------------------------------------------------------------------
+  // computeLatency()
+  // 	Same for "count" consecutive sectors: one seek and rotational
+  //	delay, then the sectors go by under the head one after the other.
+  //	When the run goes on to the next track, the head has to step to
+  //	it and wait for its first sector to come around again.
+  //
+  //	An SSD has no head: it pays its access time, then transfers the
+  //	sectors one after the other.
+  //----------------------------------------------------------------------
 
-    if (NOTRACKBUF == false) {
-      // turn this on if you don't want the track buffer stuff
+  public int computeLatency(int newSector, int count, boolean writing) {
 
-      // check if track buffer applies
-      if ((writing == false) && (seek == 0) 
-	  && (((timeAfter - bufferInit) / Statistics.RotationTime) 
-	      > moduloDiff(newSector, bufferInit / Statistics.RotationTime))) {
-        Debug.printf('d', "Request latency = %d\n", 
-		     new Integer(Statistics.RotationTime));
-	return Statistics.RotationTime; // time to transfer sector from the track buffer
+    int latency = positioningTime(newSector, writing) + sectorTime;
+
+    for (int sector = newSector + 1; sector < newSector + count; sector++) {
+      if (model == ModelHDD && sector % sectorsPerTrack == 0) {
+	int now = Nachos.stats.totalTicks + latency + seekPerTrack;
+	int over = now % sectorTime;
+	if (over > 0)
+	  now += sectorTime - over;
+	now += moduloDiff(sector, now / sectorTime) * sectorTime;
+	latency = now - Nachos.stats.totalTicks;
       }
+      latency += sectorTime;
     }
 
-    rotation += moduloDiff(newSector, timeAfter / Statistics.RotationTime) * 
-      Statistics.RotationTime;
+    Debug.printf('d', "Request latency = %d\n", new Integer(latency));
+    return latency;
+  }
+
+
+
+  //----------------------------------------------------------------------
+  // positioningTime()
+  // 	Return how long it would take, if the request were sent now, until
+  //	the head is at the start of sector "newSector" (or until its
+  //	contents can be taken from the track buffer): seek time plus
+  //	rotational latency, without the transfer time.
+  //
+  //	Unlike timeToSeek, it does not change the state of the disk, so the
+  //	disk scheduler can ask about every request it has waiting.
+  //
+  //	On an SSD it is the same for every sector.
+  //----------------------------------------------------------------------
+
+  public int positioningTime(int newSector, boolean writing) {
 
-    Debug.printf('d', "Request latency = %d\n", 
-		 new Integer(seek + rotation + Statistics.RotationTime));
-    return(seek + rotation + Statistics.RotationTime);
+    if (model == ModelSSD)
+      return SSDAccessTime;
+
+    if (cache != null) {
+      // check if the track buffers apply
+      if (writing ? cache.isWriteBack() 
+	  : cache.holds(newSector, 1, Nachos.stats.totalTicks))
+	return 0;
+    }
+
+    int seek = seekTime(newSector);
+    int rotation = rotationAfter(seek);
+    int timeAfter = Nachos.stats.totalTicks + seek + rotation;
+
+    rotation += moduloDiff(newSector, timeAfter / sectorTime) * sectorTime;
+
+    return seek + rotation;
   }
 
 
@@ -291,24 +681,29 @@ class Disk {
   //	to be in the middle of a sector that is rotating past the head,
   //	we also return how long until the head is at the next sector boundary.
   //    updates Disk.seek and and Disk.rotation	
-  //   	Disk seeks at one track per SeekTime ticks (cf. stats.h)
-  //   	and rotates at one sector per RotationTime ticks
+  //   	Disk seeks at one track per seekPerTrack ticks (Statistics.SeekTime
+  //   	for a spinning disk) and rotates at one sector per sectorTime
+  //	ticks (Statistics.RotationTime)
   //----------------------------------------------------------------------
 
   private void timeToSeek(int newSector) {
 
-    int newTrack = newSector / SectorsPerTrack;
-    int oldTrack = lastSector / SectorsPerTrack;
-    seek = Math.abs(newTrack - oldTrack) * Statistics.SeekTime;
-				// how long will seek take?
-    int over = (Nachos.stats.totalTicks + seek) % Statistics.RotationTime; 
-				// will we be in the middle of a sector when
-				// we finish the seek?
+    seek = seekTime(newSector);	// how long will seek take?
+    rotation = rotationAfter(seek);	// will we be in the middle of a
+				// sector when we finish the seek?
+  }
 
-    rotation = 0;
-    if (over > 0) 	// if so, need to round up to next full sector
-   	rotation = Statistics.RotationTime - over;
+  private int seekTime(int newSector) {
+    int newTrack = newSector / sectorsPerTrack;
+    int oldTrack = lastSector / sectorsPerTrack;
+    return Math.abs(newTrack - oldTrack) * seekPerTrack;
+  }
 
+  private int rotationAfter(int seek) {
+    int over = (Nachos.stats.totalTicks + seek) % sectorTime; 
+    if (over > 0) 	// if so, need to round up to next full sector
+      return sectorTime - over;
+    return 0;
   }
 
 
@@ -321,32 +716,47 @@ class Disk {
   //	"to" and current sector position "from"
   //----------------------------------------------------------------------
 
-  private int moduloDiff(int to, int from) {
+  int moduloDiff(int to, int from) {
 
-    int toOffset = to % SectorsPerTrack;
-    int fromOffset = from % SectorsPerTrack;
+    int toOffset = to % sectorsPerTrack;
+    int fromOffset = from % sectorsPerTrack;
 
-    return ((toOffset - fromOffset) + SectorsPerTrack) % SectorsPerTrack;
+    return ((toOffset - fromOffset) + sectorsPerTrack) % sectorsPerTrack;
   }
 
 
 
   //----------------------------------------------------------------------
   // updateLast
-  //   	Keep track of the most recently requested sector.  So we can know
-  //	what is in the track buffer.
+  //   	Keep track of the most recently requested sector, after a request
+  //	for "count" sectors from "firstSector" that takes "ticks" to go to
+  //	the disk.  So we can know what goes in the track buffer: the head
+  //	streams the track into it from the moment it gets there.
+  //
+  //	Return the extra time the drive cache takes.
   //----------------------------------------------------------------------
 
-  private void updateLast(int newSector) {
+  private int updateLast(int firstSector, int count, int ticks) {
 
-    int rotate;
-    timeToSeek(newSector);  // computes seek and rotation
-    
-    if (seek != 0)
+    int newSector = firstSector + count - 1;
+    int bufferInit;
+
+    if (trackOf(firstSector) == trackOf(newSector)) {
+      timeToSeek(firstSector);  // computes seek and rotation
       bufferInit = Nachos.stats.totalTicks + seek + rotation;
+    } else {
+      // the head got to the last track when it started reading it
+      bufferInit = Nachos.stats.totalTicks + ticks 
+	- (1 + newSector % sectorsPerTrack) * sectorTime;
+    }
     lastSector = newSector;
     Debug.printf('d', "Updating last sector = %d, %d\n", 
 		 new Integer(lastSector), new Integer(bufferInit));
+
+    if (cache == null)
+      return 0;
+    return cache.startStreaming(trackOf(newSector), bufferInit, 
+				Nachos.stats.totalTicks);
   }
 
 
@@ -356,6 +766,11 @@ class Disk {
   //----------------------------------------------------------------------
 
   public static void printSector (boolean writing, int sector, byte[] data) {
+    printSector(writing, sector, data, 0);
+  }
+
+  public static void printSector (boolean writing, int sector, byte[] data, 
+				  int index) {
     int val;
 
     if (writing)
@@ -363,7 +778,7 @@ class Disk {
     else
         Debug.printf('+', "Reading sector: %d\n", new Integer(sector)); 
     for (int i = 0; i < (SectorSize/4); i++) {
-      val = intInt(data, i*4);
+      val = intInt(data, index + i*4);
       Debug.printf('+', "%x ", new Integer(val));
     }
     Debug.print('+', "\n"); 
@@ -0,0 +1,306 @@
+// DiskCache.java
+//	Simulates the cache inside a disk drive: a few buffers, each holding
+//	one track, kept in LRU order.
+//
+//	While the head stays over a track, the drive streams everything
+//	passing under it into that track's buffer, so a later read of a
+//	sector that already went by costs only the transfer time.  Sectors
+//	read or written also stay in their track buffer.  When the head moves
+//	to another track, streaming into the old buffer stops.
+//
+//	Writes either go straight to the disk (write-through), or, in
+//	write-back mode, are absorbed by the buffer at transfer cost and only
+//	written to the disk when the buffer is evicted or the machine shuts
+//	down.  Like in a real drive, data absorbed that way is lost if the
+//	simulation is killed.
+//
+//	The data served really comes from the buffers: the UNIX file is only
+//	read when a track is brought in, and only written when the disk
+//	writes it.
+//
+// Copyright (c) 1992-1993 The Regents of the University of California.
+// Copyright (c) 1998 Rice University.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+class DiskCache {
+
+  private Disk disk;		// the drive we belong to
+  private int sectorsPerTrack;	// of that drive
+  private int numTracks;	// size of the cache, in tracks
+  private boolean writeBack;	// absorb writes?
+  private LinkedList segments;	// track buffers, most recently used first
+  private Segment streaming;	// buffer the head is streaming into
+  private int streamStart;	// when the head started streaming
+
+  // statistics
+  private int readHits = 0;
+  private int readMisses = 0;
+  private int writesAbsorbed = 0;
+  private int tracksDestaged = 0;
+  private int sectorsDestaged = 0;
+
+
+  //----------------------------------------------------------------------
+  // DiskCache()
+  // 	Create a cache of "numTracks" track buffers for "disk".
+  //----------------------------------------------------------------------
+
+  public DiskCache(Disk disk, int numTracks, boolean writeBack) {
+    Debug.ASSERT(numTracks > 0, "[DiskCache] The cache needs at least one track.");
+    this.disk = disk;
+    sectorsPerTrack = disk.getSectorsPerTrack();
+    this.numTracks = numTracks;
+    this.writeBack = writeBack;
+    segments = new LinkedList();
+    streaming = null;
+  }
+
+  public boolean isWriteBack() {
+    return writeBack;
+  }
+
+  //----------------------------------------------------------------------
+  // holds()
+  // 	Return whether "count" sectors starting at "sector" can all be
+  //	taken from the cache at time "now".
+  //----------------------------------------------------------------------
+
+  public boolean holds(int sector, int count, int now) {
+    for (int i = sector; i < sector + count; i++) {
+      Segment segment = find(disk.trackOf(i));
+      if (segment == null)
+	return false;
+      int offset = i % sectorsPerTrack;
+      if (!segment.valid[offset]
+	  && !(segment == streaming && passed(offset, now)))
+	return false;
+    }
+    return true;
+  }
+
+  //----------------------------------------------------------------------
+  // read()
+  // 	Copy "count" sectors starting at "sector" into "data", bringing
+  //	their tracks into the cache if needed.  "hit" says whether they
+  //	were all in the cache already.
+  //
+  //	Return the extra time taken to write back evicted buffers.
+  //----------------------------------------------------------------------
+
+  public int read(int sector, int count, byte[] data, int index, boolean hit) {
+    int ticks = 0;
+
+    if (hit)
+      readHits++;
+    else
+      readMisses++;
+
+    for (int i = 0; i < count; i++) {
+      int track = disk.trackOf(sector + i);
+      Segment segment = find(track);
+      if (segment == null) {
+	ticks += makeRoom();
+	segment = load(track);
+      }
+      touch(segment);
+      int offset = (sector + i) % sectorsPerTrack;
+      segment.valid[offset] = true;
+      System.arraycopy(segment.data, offset * Disk.SectorSize,
+		       data, index + i * Disk.SectorSize, Disk.SectorSize);
+    }
+    return ticks;
+  }
+
+  //----------------------------------------------------------------------
+  // write()
+  // 	Put "count" sectors starting at "sector" in the cache.  In
+  //	write-back mode the sectors are left dirty, and only written to
+  //	the disk later; otherwise the caller writes them to the disk too,
+  //	and only the tracks already in the cache are updated.
+  //
+  //	Return the extra time taken to write back evicted buffers.
+  //----------------------------------------------------------------------
+
+  public int write(int sector, int count, byte[] data, int index) {
+    int ticks = 0;
+
+    if (writeBack)
+      writesAbsorbed++;
+
+    for (int i = 0; i < count; i++) {
+      int track = disk.trackOf(sector + i);
+      Segment segment = find(track);
+      if (segment == null) {
+	if (!writeBack)
+	  continue;
+	ticks += makeRoom();
+	segment = load(track);
+      }
+      touch(segment);
+      int offset = (sector + i) % sectorsPerTrack;
+      System.arraycopy(data, index + i * Disk.SectorSize,
+		       segment.data, offset * Disk.SectorSize, Disk.SectorSize);
+      segment.valid[offset] = true;
+      if (writeBack)
+	segment.dirty[offset] = true;
+    }
+    return ticks;
+  }
+
+  //----------------------------------------------------------------------
+  // startStreaming()
+  // 	The head moved to "track" (at time "now"), and will start reading
+  //	it into its buffer at time "when".  Streaming into the buffer of
+  //	the previous track stops.  Nothing changes if the head was already
+  //	streaming that track.
+  //
+  //	Return the extra time taken to write back evicted buffers.
+  //----------------------------------------------------------------------
+
+  public int startStreaming(int track, int when, int now) {
+    int ticks = 0;
+
+    if (streaming != null && streaming.track == track)
+      return 0;
+    stopStreaming(now);
+    Segment segment = find(track);
+    if (segment == null) {
+      ticks += makeRoom();
+      segment = load(track);
+    }
+    touch(segment);
+    streaming = segment;
+    streamStart = when;
+    return ticks;
+  }
+
+  //----------------------------------------------------------------------
+  // flush()
+  // 	Write every dirty sector to the disk, when the machine halts.
+  //----------------------------------------------------------------------
+
+  public void flush() {
+    for (Iterator i = segments.iterator(); i.hasNext();)
+      destage((Segment)i.next());
+  }
+
+  //----------------------------------------------------------------------
+  // printStats()
+  // 	Print how well the cache did.
+  //----------------------------------------------------------------------
+
+  public void printStats() {
+    int reads = readHits + readMisses;
+
+    Debug.println('z', "Drive cache----------------");
+    Debug.print('z', "Tracks " + numTracks + ", "
+		+ (writeBack ? "write-back" : "write-through") + "\n");
+    Debug.print('z', "Read hits " + readHits + ", misses " + readMisses + "\n");
+    if (reads > 0)
+      Debug.print('z', "Hit rate " + (100 * readHits / reads) + "%\n");
+    Debug.print('z', "Writes absorbed " + writesAbsorbed + ", tracks written back "
+		+ tracksDestaged + " (" + sectorsDestaged + " sectors)\n");
+  }
+
+  // the buffer holding "track", or null
+  private Segment find(int track) {
+    for (Iterator i = segments.iterator(); i.hasNext();) {
+      Segment segment = (Segment)i.next();
+      if (segment.track == track)
+	return segment;
+    }
+    return null;
+  }
+
+  // move a buffer to the front of the LRU list
+  private void touch(Segment segment) {
+    if (segments.getFirst() != segment) {
+      segments.remove(segment);
+      segments.addFirst(segment);
+    }
+  }
+
+  // bring a track from the disk into a new buffer.  A write-through
+  // request may still be on its way to the UNIX file: wait for it, or
+  // the buffer would keep the old sectors.
+  private Segment load(int track) {
+    Segment segment = new Segment(track, sectorsPerTrack);
+    disk.finishTransfer();
+    disk.readFile(track * sectorsPerTrack, sectorsPerTrack,
+		  segment.data, 0);
+    segments.addFirst(segment);
+    return segment;
+  }
+
+  // evict the least recently used buffer if the cache is full, writing
+  // its dirty sectors back.  The drive has to go to that track and wait
+  // a revolution, then come back: return how long that takes.
+  private int makeRoom() {
+    if (segments.size() < numTracks)
+      return 0;
+
+    Segment victim = (Segment)segments.removeLast();
+    if (victim == streaming)
+      streaming = null;
+    if (destage(victim) == 0)
+      return 0;
+    return 2 * Math.abs(victim.track - disk.getHeadTrack()) * disk.getSeekTime()
+      + sectorsPerTrack * disk.getSectorTime();
+  }
+
+  // write the dirty sectors of a buffer to the disk, return how many
+  private int destage(Segment segment) {
+    int written = 0;
+
+    for (int offset = 0; offset < sectorsPerTrack; offset++) {
+      if (!segment.dirty[offset])
+	continue;
+      disk.writeFile(segment.track * sectorsPerTrack + offset, 1,
+		     segment.data, offset * Disk.SectorSize);
+      segment.dirty[offset] = false;
+      written++;
+    }
+    if (written > 0) {
+      tracksDestaged++;
+      sectorsDestaged += written;
+    }
+    return written;
+  }
+
+  // the head is leaving the track it was streaming: remember what it got
+  private void stopStreaming(int now) {
+    if (streaming == null)
+      return;
+    for (int offset = 0; offset < sectorsPerTrack; offset++)
+      if (passed(offset, now))
+	streaming.valid[offset] = true;
+    streaming = null;
+  }
+
+  // has the sector at "offset" of the streaming track gone under the head
+  // since it started streaming?
+  private boolean passed(int offset, int now) {
+    return ((now - streamStart) / disk.getSectorTime())
+      > disk.moduloDiff(offset, streamStart / disk.getSectorTime());
+  }
+
+  // A track buffer
+  private static class Segment {
+    int track;
+    byte[] data;
+    boolean[] valid;		// sectors we have
+    boolean[] dirty;		// sectors not written to the disk yet
+
+    Segment(int track, int sectors) {
+      this.track = track;
+      data = new byte[sectors * Disk.SectorSize];
+      valid = new boolean[sectors];
+      dirty = new boolean[sectors];
+    }
+  }
+
+}
@@ -45,6 +45,7 @@ class Interrupt {
   static boolean yieldOnReturn;	// TRUE if we are to context switch
 				// on return from the interrupt handler
   static int status;         	// idle, kernel mode, user mode
+  static boolean halting;	// TRUE once halt has been called
 
 
 
@@ -218,6 +219,24 @@ class Interrupt {
 					// a runnable thread
     }
 
+    // processes suspended by the load controller would never wake up
+    if (Nachos.USER_PROGRAM && LoadController.getInstance().nothingToRun()) {
+        status = SystemMode;
+        return;
+    }
+
+    // metadata updates still in the journal have to get home before we stop
+    if (Nachos.journal != null && Nachos.journal.nothingToRun()) {
+        status = SystemMode;
+        return;
+    }
+
+    // dirty buffers have to get to the disk before we stop
+    if (Nachos.bufferCache != null && Nachos.bufferCache.nothingToRun()) {
+        status = SystemMode;
+        return;
+    }
+
     // if there are no pending interrupts, and nothing is on the ready
     // queue, it is time to stop.   If the console or the network is 
     // operating, there are *always* pending interrupts, so this code
@@ -232,8 +251,17 @@ class Interrupt {
   //----------------------------------------------------------------------
   // halt
   // 	Shut down Nachos cleanly, printing out performance statistics.
+  //
+  //	If we get here again while shutting down (the machine went idle
+  //	while flushing the disk, or a kernel thread died holding a lock
+  //	the flush needs), there is no clean way out: just exit.
   //----------------------------------------------------------------------
   public static void halt() {
+    if (halting) {
+      System.out.print("Machine halting again, giving up!\n");
+      System.exit(1);
+    }
+    halting = true;
     System.out.print("Machine halting!\n\n");
     Nachos.stats.print();
     ThreadInstrumentation.displayInformation();
@@ -550,15 +550,16 @@ class Machine {
       entry = pageTable[(int)vpn];
     } else {
       for (entry = null, i = 0; i < TLBSize; i++)
-	if (tlb[i].valid && (tlb[i].virtualPage == vpn)) {
+	if (tlb[i].valid && (vpn >= tlb[i].virtualPage) 
+	    && (vpn < tlb[i].virtualPage + tlb[i].pageCount)) {
 	  entry = tlb[i];			// FOUND!
-      //PerformanceEvaluator.tlbHit(NachosThread.thisThread().getSpaceId(), virtAddr, false);
+	  PerformanceEvaluator.tlbHit(0, virtAddr, false);
 	  break;
 	}
       if (entry == null) {				// not found
 	Debug.println('a', "** no valid TLB entry found for this virtual page!");
 	//tlBmiss logging
-	//PerformanceEvaluator.tlbMiss(NachosThread.thisThread().getSpaceId(), virtAddr, false);
+	PerformanceEvaluator.tlbMiss(0, virtAddr, false);
 	//PerformanceEvaluator.memoryAccess(NachosThread.thisThread().getSpaceId(), virtAddr, true);
 	// really, this is a TLB fault,
 	// the page may be in memory,
@@ -575,6 +576,8 @@ class Machine {
 				 ReadOnlyException);
     }
     pageFrame = entry.physicalPage;
+    if (tlb != null)			// a large page maps several 
+      pageFrame += vpn - entry.virtualPage;	// consecutive frames
 
     // if the pageFrame is too big, there is something really wrong! 
     // An invalid translation was loaded into the page table or TLB. 
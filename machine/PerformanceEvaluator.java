@@ -81,13 +81,127 @@ public class PerformanceEvaluator {
 	}
     
     private static int totalPageFaults = 0;
+    private static int cleanEvictions = 0;
+    private static int dirtyEvictions = 0;
+    private static int pagesCleaned = 0;
+    private static int pagesPrefetched = 0;
+    private static int prefetchUsed = 0;
+    private static int prefetchWasted = 0;
+    private static int localEvictions = 0;
+    private static int basePageTlbLoads = 0;
+    private static int largePageTlbLoads = 0;
+    private static long tlbPagesLoaded = 0;
+    private static int largePagesAssembled = 0;
+    private static int largePagesFailed = 0;
+    private static int compressedHits = 0;
+    private static int compressedMisses = 0;
+    private static int compressedSpills = 0;
+    private static long compressedMissTicks = 0;
+    private static long bytesBeforeCompression = 0;
+    private static long bytesAfterCompression = 0;
+    private static int pagesScanned = 0;
+    private static int pagesShared = 0;
+    private static int pagesSaved = 0;
+    private static int processesSuspended = 0;
+    private static int processesResumed = 0;
     private static int totalTlbMisses = 0;
     private static int totalTlbHits = 0;
 
+	// an entry was loaded in the TLB, mapping that many pages
+	public static void tlbLoaded(int pages) {
+	    if (pages > 1) {
+	        largePageTlbLoads++;
+	    } else {
+	        basePageTlbLoads++;
+	    }
+	    tlbPagesLoaded += pages;
+	}
+
+	// large pages put together on a run of frames, and attempts that found no free run
+	public static void largePageAssembled() {
+	    largePagesAssembled++;
+	}
+
+	public static void largePageFailed() {
+	    largePagesFailed++;
+	}
+
 	public static void pageFault(int processId, int virtualAddress) {
 	    totalPageFaults++;
 	}
 
+	public static void pageEvicted(boolean dirty) {
+	    if (dirty) {
+	        dirtyEvictions++;
+	    } else {
+	        cleanEvictions++;
+	    }
+	}
+
+	// a process at its resident set limit evicted one of its own pages
+	public static void localEviction() {
+	    localEvictions++;
+	}
+
+	// called by the page cleaner for every page it writes back
+	public static void pageCleaned() {
+	    pagesCleaned++;
+	}
+
+	// fault-around: pages read ahead, and how many of them were used or evicted without being used
+	public static void pagePrefetched() {
+	    pagesPrefetched++;
+	}
+
+	public static void prefetchUsed() {
+	    prefetchUsed++;
+	}
+
+	public static void prefetchWasted() {
+	    prefetchWasted++;
+	}
+
+	// compressed swap cache: reads served from the pool, reads that went to the disk (and how long they took),
+	// pages spilled to the disk, and sizes of the pages stored
+	public static void compressedSwapHit() {
+	    compressedHits++;
+	}
+
+	public static void compressedSwapMiss(int ticks) {
+	    compressedMisses++;
+	    compressedMissTicks += ticks;
+	}
+
+	public static void compressedSwapSpill() {
+	    compressedSpills++;
+	}
+
+	public static void pageCompressed(int originalSize, int compressedSize) {
+	    bytesBeforeCompression += originalSize;
+	    bytesAfterCompression += compressedSize;
+	}
+
+	// page merging: pages looked at, pages that became shared by the merger, and frames given back by merging
+	public static void pageScanned() {
+	    pagesScanned++;
+	}
+
+	public static void pageMerged(boolean newlyShared) {
+	    if (newlyShared) {
+	        pagesShared++;
+	    }
+	    pagesSaved++;
+	}
+
+	// load control: processes suspended and readmitted
+	public static void processSuspended() {
+	    processesSuspended++;
+	}
+
+	public static void processResumed() {
+	    processesResumed++;
+	}
+
 	public static String buildKey(int processId, long virtualPageNumber) {
 		return (processId + "|" + virtualPageNumber);
 	}
@@ -291,6 +405,12 @@ public class PerformanceEvaluator {
         Debug.print('z', "Capacity TLB Misses "
                 + ((totalTlbMisses / TRUNCATION_FACTOR) - conflictMissesTlb[1]) + "\n");
         Debug.print('z', "Conflict misses TLB " + conflictMissesTlb[0] + "\n");
+        Debug.print('z', "TLB loads: base pages " + basePageTlbLoads + ", large pages " + largePageTlbLoads + "\n");
+        if (basePageTlbLoads + largePageTlbLoads > 0) {
+            Debug.print('z', "Average TLB reach (bytes) " 
+                    + (Machine.TLBSize * Machine.PageSize * tlbPagesLoaded / (basePageTlbLoads + largePageTlbLoads)) + "\n");
+        }
+        Debug.print('z', "Large pages assembled " + largePagesAssembled + ", no free run " + largePagesFailed + "\n");
         
         Debug.println('z', "PF----------------");
         int[] conflictMissesPage = conflictMisses(memAccess, totalPageFaults, Machine.NumPhysPages);
@@ -302,5 +422,36 @@ public class PerformanceEvaluator {
         Debug.print('z', "Capacity PF "
                 + ((totalPageFaults / TRUNCATION_FACTOR) - conflictMissesPage[1]) + "\n");
         Debug.print('z', "Conflict misses PF " + conflictMissesPage[0] + "\n");
+        
+        Debug.println('z', "Paging----------------");
+        Debug.print('z', "Clean evictions " + cleanEvictions + "\n");
+        Debug.print('z', "Dirty evictions " + dirtyEvictions + "\n");
+        Debug.print('z', "Local evictions (resident set limit) " + localEvictions + "\n");
+        Debug.print('z', "Pages written by the cleaner " + pagesCleaned + "\n");
+        Debug.print('z', "Pages read ahead " + pagesPrefetched + "\n");
+        Debug.print('z', "Read-ahead pages used " + prefetchUsed + "\n");
+        Debug.print('z', "Read-ahead pages evicted before use " + prefetchWasted + "\n");
+        
+        Debug.println('z', "Compressed swap----------------");
+        int compressedReads = compressedHits + compressedMisses;
+        Debug.print('z', "Hits " + compressedHits + ", misses " + compressedMisses + ", spills " + compressedSpills + "\n");
+        if (compressedReads > 0) {
+            Debug.print('z', "Hit rate " + (100 * compressedHits / compressedReads) + "%\n");
+        }
+        if (bytesAfterCompression > 0) {
+            Debug.print('z', "Compression ratio " + ((double)bytesBeforeCompression / bytesAfterCompression) + "\n");
+        }
+        // every hit saved about as much as an average miss cost
+        if (compressedMisses > 0) {
+            Debug.print('z', "Ticks saved (estimated) " + (compressedHits * (compressedMissTicks / compressedMisses)) + "\n");
+        }
+        
+        Debug.println('z', "Page merging----------------");
+        Debug.print('z', "Pages scanned " + pagesScanned + "\n");
+        Debug.print('z', "Pages shared " + pagesShared + "\n");
+        Debug.print('z', "Pages saved " + pagesSaved + "\n");
+        
+        Debug.println('z', "Load control----------------");
+        Debug.print('z', "Processes suspended " + processesSuspended + ", readmitted " + processesResumed + "\n");
 	}
 }
@@ -27,6 +27,11 @@ class TranslationEntry {
   public boolean dirty;
   // This bit is set by the hardware every time the
   // page is modified.
+  public int pageCount = 1;
+  // Number of pages mapped by this entry.  A large page maps
+  // "pageCount" consecutive virtual pages, starting at 
+  // "virtualPage", to as many consecutive frames starting at
+  // "physicalPage".
 };
 
 
@@ -0,0 +1,156 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed cache sitting in front of the swap device (zswap-style). Evicted pages are compressed and kept in a
+ * bounded pool in (host) memory, and only spilled to the device when the pool is full, least recently used first.
+ * Reading a page found in the pool costs no disk I/O at all.
+ * 
+ * Pages stay in the pool after being read: a clean page might be evicted again without being written, so the
+ * pool must keep the only up-to-date copy of it until it is spilled.
+ * 
+ * The page cleaner writes pages without the fault lock, and the device may block, so one request at a time goes
+ * through the cache: a page being spilled is not in the pool anymore, and not on the device yet.
+ */
+public class CompressedSwapCache implements SwapDevice {
+    // the device holding whatever does not fit in the pool
+    private SwapDevice device;
+    
+    // how many (compressed) bytes the pool can hold, and how many it holds right now
+    private int capacity;
+    private int used;
+    
+    // key: <swap page number>
+    // value: <byte[]> compressed contents of that page
+    // kept in access order, so the first one is the one to spill
+    private Map pool = new LinkedHashMap(16, 0.75f, true);
+    
+    private Deflater deflater = new Deflater();
+    private Inflater inflater = new Inflater();
+    private byte[] compressBuffer = new byte[2 * Machine.PageSize];
+    private byte[] spillBuffer = new byte[Machine.PageSize];
+    private Lock lock = new Lock("compressed swap lock");
+    
+    /**
+     * @param device Device receiving the pages that do not fit in the pool.
+     * @param capacity Size of the pool, in bytes.
+     */
+    public CompressedSwapCache(SwapDevice device, int capacity) {
+        this.device = device;
+        this.capacity = capacity;
+        this.used = 0;
+    }
+    
+    public void readPages(int firstPageNumber, int count, byte[] pageData) {
+        lock.acquire();
+        // does any of the pages need the device?
+        boolean allInPool = true;
+        for (int i = 0; i < count; i++) {
+            if (!pool.containsKey(new Integer(firstPageNumber + i))) {
+                allInPool = false;
+                break;
+            }
+        }
+        
+        if (!allInPool) {
+            // one read for the whole run, the pool has the latest version of whatever it holds
+            int ticks = Nachos.stats.totalTicks;
+            device.readPages(firstPageNumber, count, pageData);
+            PerformanceEvaluator.compressedSwapMiss(Nachos.stats.totalTicks - ticks);
+        }
+        
+        for (int i = 0; i < count; i++) {
+            byte[] compressed = (byte[])pool.get(new Integer(firstPageNumber + i));
+            if (compressed != null) {
+                decompress(compressed, pageData, i * Machine.PageSize);
+                if (allInPool) {
+                    PerformanceEvaluator.compressedSwapHit();
+                }
+            }
+        }
+        lock.release();
+    }
+    
+    public void writePage(byte[] pageData, int pageNumber) {
+        lock.acquire();
+        deflater.reset();
+        deflater.setInput(pageData, 0, Machine.PageSize);
+        deflater.finish();
+        int size = deflater.deflate(compressBuffer);
+        Debug.ASSERT(deflater.finished(), "[CompressedSwapCache.writePage] Could not compress the page!");
+        
+        // incompressible pages go straight to the device
+        if (size >= Machine.PageSize) {
+            discard(pageNumber);
+            device.writePage(pageData, pageNumber);
+            lock.release();
+            return;
+        }
+        
+        discard(pageNumber);
+        byte[] compressed = new byte[size];
+        System.arraycopy(compressBuffer, 0, compressed, 0, size);
+        pool.put(new Integer(pageNumber), compressed);
+        used += size;
+        PerformanceEvaluator.pageCompressed(Machine.PageSize, size);
+        
+        // make room, oldest first
+        while (used > capacity) {
+            Iterator oldest = pool.entrySet().iterator();
+            Map.Entry entry = (Map.Entry)oldest.next();
+            int spilledPage = ((Integer)entry.getKey()).intValue();
+            byte[] spilled = (byte[])entry.getValue();
+            
+            // out of the pool before writing, anybody reading it from now on will find it on the device
+            oldest.remove();
+            used -= spilled.length;
+            
+            decompress(spilled, spillBuffer, 0);
+            device.writePage(spillBuffer, spilledPage);
+            PerformanceEvaluator.compressedSwapSpill();
+        }
+        lock.release();
+    }
+    
+    public void discardPage(int pageNumber) {
+        lock.acquire();
+        discard(pageNumber);
+        lock.release();
+    }
+    
+    /**
+     * Drops a page from the pool and from the device, the caller holds the lock.
+     * 
+     * @param pageNumber The page to drop.
+     */
+    private void discard(int pageNumber) {
+        byte[] compressed = (byte[])pool.remove(new Integer(pageNumber));
+        if (compressed != null) {
+            used -= compressed.length;
+        }
+        device.discardPage(pageNumber);
+    }
+    
+    /**
+     * Decompresses a page.
+     * 
+     * @param compressed The compressed page.
+     * @param pageData Buffer receiving the page.
+     * @param offset Where the page goes in the buffer.
+     */
+    private void decompress(byte[] compressed, byte[] pageData, int offset) {
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int size = inflater.inflate(pageData, offset, Machine.PageSize);
+            Debug.ASSERT(size == Machine.PageSize, "[CompressedSwapCache.decompress] Page is corrupted!");
+        } catch (DataFormatException e) {
+            Debug.ASSERT(false, "[CompressedSwapCache.decompress] Page is corrupted!");
+        }
+    }
+    
+} // class
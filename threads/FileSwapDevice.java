@@ -0,0 +1,47 @@
+/**
+ * Swap pages kept in a plain Nachos file called "swap". Every transfer goes through the file system, so this
+ * is only used when the disk has no raw swap area.
+ */
+public class FileSwapDevice implements SwapDevice {
+    // the swap file
+    private OpenFile swapFile;
+    
+    /**
+     * Creates (or re-creates) the swap file.
+     * 
+     * @param sizeBytes Size of the swap file.
+     */
+    public FileSwapDevice(int sizeBytes) {
+        Nachos.fileSystem.remove("swap");
+        if (!Nachos.fileSystem.create("swap", sizeBytes)) {
+            Debug.println('+', "[FileSwapDevice] Could not reset swap partition. PANIC!");
+            Nachos.Halt();
+        }
+        swapFile = Nachos.fileSystem.open("swap");
+        
+        // now, we can initialize the swap partition... just write out one byte after seeking
+        // to the end of the file... nice trick!
+        byte[] someByte = new byte[1];
+        someByte[0] = 0;
+        swapFile.seek(sizeBytes - 1);
+        swapFile.write(someByte, 0, 1);
+        
+        // check that the size of the partition is actually correct
+        Debug.ASSERT(swapFile.length() == sizeBytes, "[FileSwapDevice] Could not initialize swap partition. PANIC!");
+    }
+    
+    public void readPages(int firstPageNumber, int count, byte[] pageData) {
+        int readBytes = swapFile.readAt(pageData, 0, count * Machine.PageSize, (firstPageNumber * Machine.PageSize));
+        Debug.ASSERT(readBytes == count * Machine.PageSize, "[FileSwapDevice.readPages] Could not read all data (or read more than needed!)");
+    }
+    
+    public void writePage(byte[] pageData, int pageNumber) {
+        int writtenBytes = swapFile.writeAt(pageData, 0, Machine.PageSize, (pageNumber * Machine.PageSize));
+        Debug.ASSERT(writtenBytes == Machine.PageSize, "[FileSwapDevice.writePage] Could not write all data (or wrote more than needed!)");
+    }
+    
+    public void discardPage(int pageNumber) {
+        // nothing to do, the page will simply be overwritten
+    }
+    
+} // class
@@ -0,0 +1,240 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Medium-term scheduler keeping the system out of thrashing.
+ *
+ * When the working sets of all the processes do not fit in main memory, processes keep stealing frames from each
+ * other and everybody spends their time waiting for the swap partition. The load controller counts page faults,
+ * per process and system-wide, over windows of <code>WINDOW_TICKS</code>. If the system faults more than
+ * <code>highFaults</code> times in a window, the process that faulted the most is suspended: the next time it
+ * faults it gives back all its private frames and blocks, which takes it out of the ready list. When the system
+ * faults less than <code>lowFaults</code> times in a window, the process suspended the longest is readmitted.
+ *
+ * A process stays suspended for at least <code>MIN_SUSPENSION_TICKS</code>, and nobody else is suspended for a
+ * couple of windows after a process is readmitted, while it faults its working set back in. Otherwise the
+ * processes would just take turns at thrashing. A process is also readmitted whenever another one exits, and when
+ * the machine would go idle with nobody left to wake up. The last running process is never suspended.
+ */
+public class LoadController {
+    // length of the window the fault rates are measured on
+    public static final int WINDOW_TICKS = 100000;
+    // a suspended process waits at least this long before being readmitted because of a low fault rate
+    public static final int MIN_SUSPENSION_TICKS = 10 * WINDOW_TICKS;
+    // nobody is suspended for this long after a process is readmitted
+    public static final int GRACE_TICKS = 2 * WINDOW_TICKS;
+
+    // only one instance allowed!
+    private static final LoadController instance = new LoadController();
+
+    // faults per window above which we suspend a process, 0 disables load control
+    private int highFaults = 0;
+    // faults per window below which we readmit a process
+    private int lowFaults = 0;
+
+    // process id -> ProcessLoad, for every process that faulted at least once
+    private Map processes = new HashMap();
+    // processes suspended, the first one has been waiting the longest
+    private LinkedList suspended = new LinkedList();
+
+    // faults of the whole system on the current window, and when the window started
+    private int systemFaults = 0;
+    private int windowStart = 0;
+    // no suspensions until then
+    private int graceUntil = 0;
+
+    // enforce only one instance
+    private LoadController() {
+
+    } // ctor
+
+    // get the instance
+    public static LoadController getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the fault rates driving the load control.
+     *
+     * @param high Faults per window above which a process gets suspended, 0 disables load control.
+     * @param low Faults per window below which a suspended process is readmitted.
+     */
+    public void setThresholds(int high, int low) {
+        Debug.ASSERT(high >= 0 && low >= 0 && low <= high, "[LoadController.setThresholds] Invalid thresholds.");
+        highFaults = high;
+        lowFaults = low;
+    }
+
+    /**
+     * Called by the faulting process before a page is brought in. If the process has been picked for suspension,
+     * it gives back its frames and blocks here until it is readmitted.
+     *
+     * @param processId The faulting process.
+     */
+    public void pageFault(int processId) {
+        if (highFaults == 0) {
+            return;
+        }
+
+        ProcessLoad load = (ProcessLoad)processes.get(new Integer(processId));
+        if (load == null) {
+            load = new ProcessLoad(processId);
+            processes.put(new Integer(processId), load);
+        }
+        load.faults++;
+        systemFaults++;
+        checkWindow();
+
+        if (load.suspendRequested) {
+            suspend(load);
+        }
+    }
+
+    /**
+     * Called on every timer interrupt, so windows are evaluated even when nobody is faulting.
+     */
+    public void timerTick() {
+        if (highFaults > 0) {
+            checkWindow();
+        }
+    }
+
+    /**
+     * Called when a process is gone. Its frames are free now, so a suspended process gets them.
+     *
+     * @param processId The process that exited.
+     */
+    public void processExited(int processId) {
+        if (highFaults == 0) {
+            return;
+        }
+        processes.remove(new Integer(processId));
+        resumeOne(true);
+    }
+
+    /**
+     * Called when the machine is about to go idle with no interrupt pending, nobody is going to wake up the
+     * suspended processes anymore.
+     *
+     * @return <code>true</code> if a process was readmitted.
+     */
+    public boolean nothingToRun() {
+        return resumeOne(true);
+    }
+
+    /**
+     * Evaluates the window if it is over, suspending or readmitting a process, and starts a new one.
+     */
+    private void checkWindow() {
+        if (Nachos.stats.totalTicks - windowStart < WINDOW_TICKS) {
+            return;
+        }
+
+        Debug.printf('x', "[LoadController.checkWindow] %d faults, %d processes suspended\n",
+                     new Integer(systemFaults), new Integer(suspended.size()));
+        if (systemFaults > highFaults) {
+            if (Nachos.stats.totalTicks >= graceUntil) {
+                requestSuspension();
+            }
+        } else if (systemFaults < lowFaults) {
+            resumeOne(false);
+        }
+
+        // new window
+        systemFaults = 0;
+        windowStart = Nachos.stats.totalTicks;
+        for (Iterator i = processes.values().iterator(); i.hasNext();) {
+            ((ProcessLoad)i.next()).faults = 0;
+        }
+    }
+
+    /**
+     * Picks the process that faulted the most on this window, unless it is the last one running.
+     */
+    private void requestSuspension() {
+        ProcessLoad victim = null;
+        int running = 0;
+        for (Iterator i = processes.values().iterator(); i.hasNext();) {
+            ProcessLoad load = (ProcessLoad)i.next();
+            if (load.suspended) {
+                continue;
+            }
+            running++;
+            if (load.suspendRequested) {
+                // still waiting for the last one to stop
+                return;
+            }
+            if (victim == null || load.faults > victim.faults) {
+                victim = load;
+            }
+        }
+
+        if (running > 1 && victim.faults > 0) {
+            Debug.printf('x', "[LoadController.requestSuspension] Suspending process %d (%d faults)\n",
+                         new Integer(victim.processId), new Integer(victim.faults));
+            victim.suspendRequested = true;
+        }
+    }
+
+    /**
+     * Suspends the current process: its private frames are freed, and it waits until somebody readmits it.
+     */
+    private void suspend(ProcessLoad load) {
+        load.suspendRequested = false;
+        load.suspended = true;
+        load.suspendedAt = Nachos.stats.totalTicks;
+        suspended.addLast(load);
+        PerformanceEvaluator.processSuspended();
+
+        int freed = PageController.getInstance().evictProcess(load.processId);
+        Debug.printf('x', "[LoadController.suspend] Process %d suspended, %d frames freed\n",
+                     new Integer(load.processId), new Integer(freed));
+
+        load.resume.P();
+        Debug.printf('x', "[LoadController.suspend] Process %d readmitted\n", new Integer(load.processId));
+    }
+
+    /**
+     * Readmits the process that has been suspended the longest.
+     *
+     * @param force Whether to readmit it even if it has not been suspended for long.
+     *
+     * @return <code>true</code> if a process was readmitted.
+     */
+    private boolean resumeOne(boolean force) {
+        if (suspended.isEmpty()) {
+            return false;
+        }
+        ProcessLoad load = (ProcessLoad)suspended.getFirst();
+        if (!force && Nachos.stats.totalTicks - load.suspendedAt < MIN_SUSPENSION_TICKS) {
+            return false;
+        }
+        suspended.removeFirst();
+        load.suspended = false;
+        load.faults = 0;
+        graceUntil = Nachos.stats.totalTicks + GRACE_TICKS;
+        PerformanceEvaluator.processResumed();
+        load.resume.V();
+        return true;
+    }
+
+    private static class ProcessLoad {
+        int processId;
+        // faults on the current window
+        int faults = 0;
+        // picked for suspension, it stops on its next fault
+        boolean suspendRequested = false;
+        boolean suspended = false;
+        int suspendedAt;
+        // a suspended process waits here
+        Semaphore resume;
+
+        ProcessLoad(int processId) {
+            this.processId = processId;
+            resume = new Semaphore("suspended process " + processId, 0);
+        }
+    }
+
+} // class
@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Swap pages kept in a host file mapped into memory. Pages are copied straight from/to the mapping, without going
+ * through the Nachos file system or the simulated disk, so the swap partition can be as big as the host allows.
+ * 
+ * Transfers can optionally take some simulated time: every request then waits <code>latency</code> ticks for an
+ * interrupt, one request at a time, like a (very simple) device. With no latency, requests complete right away,
+ * which is handy for functional runs needing a huge swap partition.
+ */
+public class MappedSwapDevice implements SwapDevice {
+    // a single mapping cannot be bigger than 2GB, so the file is mapped in chunks
+    private static final int CHUNK_PAGES = (64 * 1024 * 1024) / Machine.PageSize;
+    
+    private MappedByteBuffer[] chunks;
+    
+    // simulated ticks taken by each request, 0 if requests take no time at all
+    private int latency;
+    // only one request at a time, waiting for its interrupt
+    private Lock lock = new Lock("mapped swap lock");
+    private Semaphore requestDone = new Semaphore("mapped swap", 0);
+    private Runnable handler = new Runnable() {
+        public void run() {
+            requestDone.V();
+        }
+    };
+    
+    /**
+     * Maps the host file, creating it (or changing its size) if needed.
+     * 
+     * @param fileName Host file holding the pages.
+     * @param sizePages Size of the swap partition, in pages.
+     * @param latency Simulated ticks taken by each request, 0 for none.
+     * 
+     * @throws IOException if the file cannot be mapped.
+     */
+    public MappedSwapDevice(String fileName, int sizePages, int latency) throws IOException {
+        Debug.ASSERT(latency >= 0, "[MappedSwapDevice] Latency cannot be negative.");
+        this.latency = latency;
+        
+        RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+        file.setLength((long)sizePages * Machine.PageSize);
+        FileChannel channel = file.getChannel();
+        
+        chunks = new MappedByteBuffer[(sizePages + CHUNK_PAGES - 1) / CHUNK_PAGES];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = (long)i * CHUNK_PAGES * Machine.PageSize;
+            long size = (long)Math.min(CHUNK_PAGES, sizePages - i * CHUNK_PAGES) * Machine.PageSize;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        }
+        
+        // the mappings stay valid after closing the file
+        file.close();
+    }
+    
+    public void readPages(int firstPageNumber, int count, byte[] pageData) {
+        for (int i = 0; i < count; i++) {
+            MappedByteBuffer chunk = chunks[(firstPageNumber + i) / CHUNK_PAGES];
+            chunk.position(((firstPageNumber + i) % CHUNK_PAGES) * Machine.PageSize);
+            chunk.get(pageData, i * Machine.PageSize, Machine.PageSize);
+        }
+        waitForDevice();
+    }
+    
+    public void writePage(byte[] pageData, int pageNumber) {
+        MappedByteBuffer chunk = chunks[pageNumber / CHUNK_PAGES];
+        chunk.position((pageNumber % CHUNK_PAGES) * Machine.PageSize);
+        chunk.put(pageData, 0, Machine.PageSize);
+        waitForDevice();
+    }
+    
+    public void discardPage(int pageNumber) {
+        // nothing to do, the page will simply be overwritten
+    }
+    
+    /**
+     * Lets the simulated latency of a request go by.
+     */
+    private void waitForDevice() {
+        if (latency == 0) {
+            return;
+        }
+        lock.acquire();
+        Interrupt.schedule(handler, latency, Interrupt.DiskInt);
+        requestDone.P();
+        lock.release();
+    }
+    
+} // class
@@ -30,6 +30,10 @@ public class MemoryManagement {
     // flag to keep track whether this class has been initialized
     private boolean alreadyInitialized;
     
+    // swap pages promised to processes (zero-fill pages) that do not have a slot in the
+    // swap partition yet... they will get one the first time they are evicted dirty
+    private int committedSwapPages;
+    
     // some sort of enum to distinguish between main memory and swap space
     public static final int MEMORY_TYPE_SWAP = 0;
     public static final int MEMORY_TYPE_MAIN = 1;
@@ -48,7 +52,7 @@ public class MemoryManagement {
         Debug.ASSERT(alreadyInitialized == false, "[MemoryManagement.init] Cannot initialize more than once.");
         
         // init the swap space (we need to keep track of pages only)
-        swapSpace = new BitMap(SwapPartitionController.SWAP_SIZE_PAGES);
+        swapSpace = new BitMap(SwapPartitionController.getInstance().getSizePages());
         // init the main memory
         mainMemory = new BitMap(Machine.NumPhysPages);
         
@@ -66,7 +70,61 @@ public class MemoryManagement {
      */
     public boolean enoughPages(int numPages, int memoryType) {
         BitMap bitMap = getBitMap(memoryType);
-        return ((bitMap.numClear()) >= numPages);
+        int available = bitMap.numClear();
+        
+        // swap pages that were already promised are not available anymore, even if they are not
+        // marked in the bitmap yet
+        if (memoryType == MEMORY_TYPE_SWAP) {
+            available -= committedSwapPages;
+        }
+        return (available >= numPages);
+    }
+    
+    /**
+     * Counts the free pages in the swap partition or main memory.
+     * 
+     * @param memoryType The memory we would like to query, whether swapping or main.
+     * 
+     * @return How many pages are not allocated (committed swap pages are not counted as free).
+     */
+    public int freePages(int memoryType) {
+        int available = getBitMap(memoryType).numClear();
+        if (memoryType == MEMORY_TYPE_SWAP) {
+            available -= committedSwapPages;
+        }
+        return available;
+    }
+    
+    /**
+     * Commits one page of the swap partition without allocating it. This is used for zero-fill pages,
+     * which do not need any space in the swap partition until they are evicted dirty, but we still
+     * want to guarantee that space will be there when that happens.
+     */
+    public void commitSwapPage() {
+        Debug.ASSERT(enoughPages(1, MEMORY_TYPE_SWAP), "[MemoryManagement.commitSwapPage] Swap partition over-committed.");
+        committedSwapPages++;
+    }
+    
+    /**
+     * Allocates a swap page that was previously committed with <code>commitSwapPage</code>.
+     * 
+     * @return the swap page that has just been allocated.
+     */
+    public int allocateCommittedSwapPage() {
+        Debug.ASSERT(committedSwapPages > 0, "[MemoryManagement.allocateCommittedSwapPage] No committed swap pages.");
+        committedSwapPages--;
+        int pageNumber = allocatePage(MEMORY_TYPE_SWAP);
+        // the page was committed, so there must be space for it
+        Debug.ASSERT(pageNumber != -1, "[MemoryManagement.allocateCommittedSwapPage] Could not allocate a committed page!");
+        return pageNumber;
+    }
+    
+    /**
+     * Gives back a swap page that was committed but never allocated.
+     */
+    public void releaseCommittedSwapPage() {
+        Debug.ASSERT(committedSwapPages > 0, "[MemoryManagement.releaseCommittedSwapPage] No committed swap pages.");
+        committedSwapPages--;
     }
     
     /**
@@ -119,6 +177,23 @@ public class MemoryManagement {
         return pageNumber;
     }
     
+    /**
+     * Allocates a run of contiguous frames of main memory, aligned on its own size, for a large page.
+     * 
+     * @param count How many frames (a power of two).
+     * 
+     * @return The first frame of the run, or -1 if there is no free aligned run.
+     */
+    public int allocateFrameRun(int count) {
+        int first = mainMemory.findRun(count, count);
+        if (first != -1) {
+            return first;
+        }
+        
+        Debug.println('x', "[MemoryManagement.allocateFrameRun] No free run of " + count + " frames.");
+        return -1;
+    }
+    
     /**
      * Deallocates a page.
      * 
@@ -9,9 +9,15 @@
 // 	Most of this file is not needed until later assignments.
 //
 // Usage: nachos -d <debugflags> -rs <random seed #>
-//		-s -x <nachos file> -c <consoleIn> <consoleOut>
-//		-f -cp <unix file> <nachos file>
-//		-p <nachos file> -r <nachos file> -l -D -t
+//		-s -x <nachos file> -c <consoleIn> <consoleOut> -fa <pages>
+//		-zswap <bytes> -swapmap <unix file> <pages> <latency> -ksm <pages>
+//		-lc <high faults> <low faults> -rss <min frames> <max frames>
+//		-rssx <executable> <min frames> <max frames> -largepages
+//		-ds <fcfs|sstf|scan|clook|sptf> -dc <tracks> -dcwb <tracks>
+//		-dforce <never|halt|write> -raid0 <disks> <stripe unit>
+//		-geom <tracks> <sectors per track> -dmodel <hdd|ssd> -bc <buffers>
+//		-f -j <sectors> -cp <unix file> <nachos file>
+//		-p <nachos file> -r <nachos file> -l -D -t -tb <bits>
 //              -n <network reliability> -m <machine id>
 //              -o <other machine id>
 //              -z
@@ -24,6 +30,17 @@
 //    -s causes user programs to be executed in single-step mode
 //    -x runs a user program
 //    -c tests the console
+//    -fa <pages> reads up to <pages> neighbouring pages along with a faulting one
+//    -zswap <bytes> keeps a compressed cache of <bytes> in front of the swap partition
+//    -swapmap <unix file> <pages> <latency> keeps a swap partition of <pages> in a
+//       memory-mapped unix file, each request taking <latency> ticks (0 for none)
+//    -ksm <pages> merges identical pages, scanning <pages> frames on every timer tick
+//    -lc <high faults> <low faults> suspends a process when there are more than
+//       <high faults> page faults in 100000 ticks, and readmits one below <low faults>
+//    -rss <min frames> <max frames> guarantees every process <min frames>, and makes it
+//       replace its own pages once it holds <max frames>
+//    -rssx <executable> <min frames> <max frames> same, for the processes running <executable>
+//    -largepages maps aligned runs of 16 pages with a single TLB entry when possible
 //
 //  FILESYS
 //    -f causes the physical disk to be formatted
@@ -33,6 +50,24 @@
 //    -l lists the contents of the Nachos directory
 //    -D prints the contents of the entire file system 
 //    -t tests the performance of the Nachos file system
+//    -tb <bits> tests the performance of a bitmap of <bits> bits
+//    -ds <policy> picks the order disk requests are served in: first come first
+//       served, shortest seek first, elevator, circular elevator, or
+//       shortest positioning (seek and rotation) time first
+//    -dc <tracks> gives the disk a cache of that many track buffers, filled
+//       as the head passes by; -dcwb also lets the cache absorb writes
+//    -dforce <policy> picks when the memory-mapped DISK file is forced out to
+//       the host disk: never (left to the host), at halt, or on every write
+//    -raid0 <disks> <stripe unit> stripes the file system and the swap area
+//       over <disks> disks (DISK0, DISK1, ...), <stripe unit> sectors at a time
+//    -geom <tracks> <sectors per track> and -dmodel <model> pick the geometry
+//       and the kind of disk (spinning, or a solid state disk with no seek or
+//       rotational delay) when formatting; they are kept on the disk
+//    -bc <buffers> keeps that many sectors of the file system in a buffer cache,
+//       written back to the disk by a daemon
+//    -j <sectors> formats the disk with a journal of the file system metadata:
+//       updates are committed together to a log of <sectors> sectors, which
+//       is replayed when the disk is mounted
 //
 //  NETWORK
 //    -n sets the network reliability
@@ -102,6 +137,11 @@ class Nachos implements Runnable {
 	public static Timer timer = null;
 	public static FileSystem fileSystem;
 	public static SynchDisk synchDisk;
+
+	// buffer cache in front of the disk, null if none
+	public static BufferCache bufferCache;
+	// metadata journal in front of that, null if none
+	public static Journal journal;
 	private static String args[];
 	public static Random random;
 	public static final int MaxStringSize = 256;
@@ -129,14 +169,17 @@ class Nachos implements Runnable {
 	// ----------------------------------------------------------------------
 
 	public void run() {
-        // init the memory manager and the swap partition controller	    
-        MemoryManagement.getInstance().init();
-        
 		String debugArgs = "";
 		boolean format = false; // format disk
 		boolean randomYield = false;
 		double rely = 1; // network reliability
 		int netname = 0; // UNIX socket name
+		int diskPolicy = DiskScheduler.FCFS;
+		int numDisks = 1;
+		boolean newDisk = false;
+		int cacheBuffers = 0;
+		int journalSectors = 0;
+		int stripeUnit = 0;
 
 		for (int i = 0; i < args.length; i++) {
 			// System.out.println(args[i] + i);
@@ -160,8 +203,105 @@ class Nachos implements Runnable {
 			if (args[i].equals("-f"))
 				format = true;
 
+			if (args[i].equals("-fa")) {
+				Debug.ASSERT((i < args.length - 1), "usage: -fa <pages>");
+				PageController.getInstance().setFaultAround(Integer.parseInt(args[++i]));
+			}
+
+			if (args[i].equals("-zswap")) {
+				Debug.ASSERT((i < args.length - 1), "usage: -zswap <bytes>");
+				SwapPartitionController.getInstance().setCompressedCacheSize(Integer.parseInt(args[++i]));
+			}
+
+			if (args[i].equals("-ksm")) {
+				Debug.ASSERT((i < args.length - 1), "usage: -ksm <pages per tick>");
+				PageMerger.getInstance().setPagesPerRound(Integer.parseInt(args[++i]));
+			}
+
+			if (args[i].equals("-lc")) {
+				Debug.ASSERT((i < args.length - 2), "usage: -lc <high faults> <low faults>");
+				LoadController.getInstance().setThresholds(Integer.parseInt(args[i + 1]), Integer.parseInt(args[i + 2]));
+				i += 2;
+			}
+
+			if (args[i].equals("-rss")) {
+				Debug.ASSERT((i < args.length - 2), "usage: -rss <min frames> <max frames>");
+				ResidentSetController.getInstance().setDefaultLimits(Integer.parseInt(args[i + 1]), Integer.parseInt(args[i + 2]));
+				i += 2;
+			}
+
+			if (args[i].equals("-rssx")) {
+				Debug.ASSERT((i < args.length - 3), "usage: -rssx <executable> <min frames> <max frames>");
+				ResidentSetController.getInstance().setExecutableLimits(args[i + 1], 
+						Integer.parseInt(args[i + 2]), Integer.parseInt(args[i + 3]));
+				i += 3;
+			}
+
+			if (args[i].equals("-ds")) {
+				Debug.ASSERT((i < args.length - 1), "usage: -ds <fcfs|sstf|scan|clook|sptf>");
+				diskPolicy = DiskScheduler.getPolicy(args[++i]);
+			}
+
+			if (args[i].equals("-dc") || args[i].equals("-dcwb")) {
+				Debug.ASSERT((i < args.length - 1), "usage: " + args[i] + " <tracks>");
+				Disk.setCache(Integer.parseInt(args[i + 1]), args[i].equals("-dcwb"));
+				i++;
+			}
+
+			if (args[i].equals("-raid0")) {
+				Debug.ASSERT((i < args.length - 2), "usage: -raid0 <disks> <stripe unit>");
+				numDisks = Integer.parseInt(args[i + 1]);
+				stripeUnit = Integer.parseInt(args[i + 2]);
+				i += 2;
+			}
+
+			if (args[i].equals("-geom")) {
+				Debug.ASSERT((i < args.length - 2), "usage: -geom <tracks> <sectors per track>");
+				Disk.setGeometry(Integer.parseInt(args[i + 1]), Integer.parseInt(args[i + 2]));
+				newDisk = true;
+				i += 2;
+			}
+
+			if (args[i].equals("-dmodel")) {
+				Debug.ASSERT((i < args.length - 1), "usage: -dmodel <hdd|ssd>");
+				Disk.setModel(args[++i]);
+				newDisk = true;
+			}
+
+			if (args[i].equals("-bc")) {
+				Debug.ASSERT((i < args.length - 1), "usage: -bc <buffers>");
+				cacheBuffers = Integer.parseInt(args[++i]);
+			}
+
+			if (args[i].equals("-j")) {
+				Debug.ASSERT((i < args.length - 1), "usage: -j <sectors>");
+				journalSectors = Integer.parseInt(args[++i]);
+			}
+
+			if (args[i].equals("-dforce")) {
+				Debug.ASSERT((i < args.length - 1), "usage: -dforce <never|halt|write>");
+				Disk.setForcePolicy(args[++i]);
+			}
+
+			if (args[i].equals("-largepages"))
+				PageTable.getInstance().setLargePages(true);
+
+			if (args[i].equals("-swapmap")) {
+				Debug.ASSERT((i < args.length - 3), "usage: -swapmap <unix file> <pages> <latency>");
+				SwapPartitionController.getInstance().setMappedFile(args[i + 1], 
+						Integer.parseInt(args[i + 2]), Integer.parseInt(args[i + 3]));
+				i += 3;
+			}
+
 		}
 
+		// a new disk has nothing on it
+		Debug.ASSERT(!newDisk || format, "-geom and -dmodel only go with -f");
+		Debug.ASSERT(journalSectors == 0 || format, "-j only goes with -f");
+
+		// init the memory manager (the size of the swap partition is known by now)
+		MemoryManagement.getInstance().init();
+
 		// System.out.println(debugArgs);
 
 		Debug.init(debugArgs); // initialize DEBUG messages
@@ -174,8 +314,24 @@ class Nachos implements Runnable {
         }
         
 
-		if (FILESYS)
-			synchDisk = new SynchDisk("DISK");
+		if (FILESYS) {
+			if (numDisks > 1)
+				synchDisk = new StripedSynchDisk("DISK", numDisks, stripeUnit);
+			else
+				synchDisk = new SynchDisk("DISK");
+			synchDisk.setScheduler(new DiskScheduler(diskPolicy));
+			if (cacheBuffers > 0) {
+				bufferCache = new BufferCache(synchDisk, cacheBuffers);
+				synchDisk = bufferCache;
+			}
+			// the journal is kept on the disk, and replayed when mounting it
+			if (format)
+				journal = Journal.format(synchDisk, journalSectors);
+			else
+				journal = Journal.open(synchDisk);
+			if (journal != null)
+				synchDisk = journal;
+		}
 
 		if (FILESYS_NEEDED) {
 			if (FILESYS_STUB)
@@ -186,6 +342,18 @@ class Nachos implements Runnable {
 		
 		// init the swap partition
 	    SwapPartitionController.getInstance().init();
+	    
+	    // and the daemons writing back dirty pages and merging identical ones
+	    if (USER_PROGRAM) {
+	        PageCleaner.getInstance().start();
+	        PageMerger.getInstance().start();
+	    }
+	    // and the one writing back dirty buffers
+	    if (bufferCache != null)
+	        bufferCache.start();
+	    // and the one committing the journal
+	    if (journal != null)
+	        journal.start();
 
 		// if (THREADS)
 		// ThreadTest.start();
@@ -239,6 +407,10 @@ class Nachos implements Runnable {
 				if (args[i].equals("-t")) { // performance test
 					FileSystemTest.performanceTest();
 				}
+				if (args[i].equals("-tb")) { // bitmap performance test
+					Debug.ASSERT(i < args.length - 1, "usage: -tb <bits>");
+					BitMapTest.performanceTest(Integer.parseInt(args[++i]));
+				}
 
 			}
 			
@@ -306,6 +478,10 @@ class Nachos implements Runnable {
 
 		System.out.println("\nCleaning up...\n");
 		PerformanceEvaluator.writeStats();
+		if (synchDisk != null) {
+			synchDisk.flush();
+			synchDisk.printStats();
+		}
 		System.exit(0);
 	}
 
@@ -367,17 +543,23 @@ class Nachos implements Runnable {
                 // file descriptor
 				int fileIdWrite = Machine.readRegister(6);
 				
-                // write data from user to kernel space
-				byte[] bufferWrite = PageTable.getInstance().copyFromUserSpace(vaddrWrite, sizeWrite);
-				
-                if (bufferWrite.length != sizeWrite)
-                {
-                    Debug.println('x', "[Nachos.exceptionHandler] Could not copy data from user address space");
+                int retValWrite;
+                if (fileIdWrite == ConsoleInput || fileIdWrite == ConsoleOutput) {
+                    // write data from user to kernel space
+                    byte[] bufferWrite = PageTable.getInstance().copyFromUserSpace(vaddrWrite, sizeWrite);
+                    
+                    if (bufferWrite.length != sizeWrite)
+                    {
+                        Debug.println('x', "[Nachos.exceptionHandler] Could not copy data from user address space");
+                    }
+                    
+                    //write data from buffer
+                    retValWrite = Write(bufferWrite, sizeWrite, fileIdWrite);
+                } else {
+                    // files are written from the frames of the user buffer
+                    retValWrite = TransferDirect(vaddrWrite, sizeWrite, fileIdWrite, false);
                 }
                 
-                //write data from buffer
-                int retValWrite = Write(bufferWrite, sizeWrite, fileIdWrite);
-                
                 // write result
                 Machine.writeRegister(2, retValWrite);
                 
@@ -392,14 +574,24 @@ class Nachos implements Runnable {
                 // file descriptor
                 int fileIdRead = Machine.readRegister(6);
                 
-				byte[] bufferRead = new byte[sizeRead];
-				
-				//read data into buffer
-				int retValRead = Read(bufferRead, sizeRead, fileIdRead);
-				// write data from kernel to user address space
-                if (PageTable.getInstance().copyFromKernel(bufferRead, vaddrRead) != retValRead)
-                {
-                    Debug.println('x', "[Nachos.exceptionHandler] Could not copy data to user address space");
+                int retValRead;
+                if (!PageTable.getInstance().isWritable(vaddrRead, sizeRead)) {
+                    // code pages are read-only, and the buffer could be outside the address space too
+                    Debug.println('x', "[Nachos.exceptionHandler] Cannot read into the user buffer");
+                    retValRead = -1;
+                } else if (fileIdRead == ConsoleInput || fileIdRead == ConsoleOutput) {
+                    byte[] bufferRead = new byte[sizeRead];
+                    
+                    //read data into buffer
+                    retValRead = Read(bufferRead, sizeRead, fileIdRead);
+                    // write data from kernel to user address space
+                    if (PageTable.getInstance().copyFromKernel(bufferRead, vaddrRead) != retValRead)
+                    {
+                        Debug.println('x', "[Nachos.exceptionHandler] Could not copy data to user address space");
+                    }
+                } else {
+                    // files are read into the frames of the user buffer
+                    retValRead = TransferDirect(vaddrRead, sizeRead, fileIdRead, true);
                 }
                 
                 // write result
@@ -480,6 +672,16 @@ class Nachos implements Runnable {
 				Close(fileId);
 				
 				break;
+            case SC_Fork:
+                
+                Debug.println('x', "[Nachos.exceptionHandler] Fork initiated by user");
+                // address of the procedure the child will run
+                int childId = Fork(Machine.readRegister(4));
+                
+                // the parent gets the id of the child
+                Machine.writeRegister(2, childId);
+                
+                break;
 			}
             
         	Machine.registers[Machine.PrevPCReg] = Machine.registers[Machine.PCReg];
@@ -501,6 +703,14 @@ class Nachos implements Runnable {
             
             return;
         }
+        if (which == Machine.ReadOnlyException) {
+            // writing on a copy-on-write page... after copying it, the instruction is just retried
+            int virtualAddress = Machine.registers[Machine.BadVAddrReg];
+            
+            if (PageController.getInstance().handleReadOnly(virtualAddress)) {
+                return;
+            }
+        }
 
 		System.out.println("Unexpected user mode exception " + which + ", "
 				+ type);
@@ -534,7 +744,19 @@ class Nachos implements Runnable {
 
 		// start the Nachos thread system
 		Scheduler.start();
-		
+
+		// the kernel daemons are daemon threads, they do not keep the JVM
+		// up by themselves: wait here until the machine halts (cleanup()
+		// exits)
+		synchronized (Nachos.class) {
+			while (true) {
+				try {
+					Nachos.class.wait();
+				} catch (InterruptedException e) {
+					// keep waiting
+				}
+			}
+		}
 	}
 
 	// ---------------------------------------------------------------------
@@ -586,7 +808,7 @@ class Nachos implements Runnable {
         int numPages = 0;
 
         try {
-            numPages = PageTable.getInstance().allocateNewProcess(executable, newId);
+            numPages = PageTable.getInstance().allocateNewProcess(executable, name, newId);
         }
         catch (IOException e) {
             Debug.println('+', "[Nachos.Exec] Unable to read executable file: " + name);
@@ -615,6 +837,26 @@ class Nachos implements Runnable {
 		return newId;
 	}
     
+    private static class ForkedProcessThread implements Runnable {
+        // registers the forked process starts with
+        private int[] registers;
+        
+        public ForkedProcessThread(int[] registers) {
+            this.registers = registers;
+        }
+        
+        public void run() {
+            Debug.printf('x', "[ForkedProcessThread.run] Running forked process [%d].\n", new Integer(NachosThread.thisThread().getSpaceId()));
+            for (int i = 0; i < Machine.NumTotalRegs; i++) {
+                Machine.writeRegister(i, registers[i]);
+            }
+            
+            Machine.run();
+            
+            Debug.ASSERT(false);
+        }
+    }
+    
     private static class ProcessThread implements Runnable {
         
         public void run() {
@@ -749,6 +991,70 @@ class Nachos implements Runnable {
 		return fileId;
 	}
 
+	// most pages of a user buffer pinned at once by TransferDirect
+	private static final int DirectIOPages = 8;
+
+	/*
+	 * Read or write "size" bytes of the open file from/into the user
+	 * buffer at "vaddr", handing the file system the frames of the buffer
+	 * instead of copying it into a kernel buffer first (the file system
+	 * still copies through its own sector buffers). The pages of the
+	 * buffer are pinned to their frames while the file system works on
+	 * them; pages that happen to be on consecutive frames go in a single
+	 * call. Return the number of bytes transferred, or -1 if the file is
+	 * not open.
+	 */
+	private static int TransferDirect(int vaddr, int size, int id, boolean reading) {
+		OpenFile file = NachosThread.thisThread().getOpenFile(id);
+		if (file == null) {
+			Debug.println('x', "[Nachos.TransferDirect] File not found");
+			return -1;
+		}
+
+		PageTable pageTable = PageTable.getInstance();
+		int done = 0;
+		while (done < size) {
+			int start = vaddr + done;
+			// holding no pins, we can wait for somebody else's to go
+			int physicalAddress = pageTable.pinPage(start, reading, true);
+			int length = Math.min(size - done, Machine.PageSize - (start % Machine.PageSize));
+			int pages = 1;
+
+			// take the following pages too, as long as they are on the following frames
+			// (and there are pins to spare)
+			while (done + length < size && pages < DirectIOPages) {
+				int next = start + length;
+				int nextAddress = pageTable.pinPage(next, reading, false);
+				if (nextAddress == -1)
+					break;
+				if (nextAddress != physicalAddress + length) {
+					pageTable.unpinPage(next);
+					break;
+				}
+				length += Math.min(size - done - length, Machine.PageSize);
+				pages++;
+			}
+
+			int result;
+			if (reading)
+				result = file.read(Machine.mainMemory, physicalAddress, length);
+			else
+				result = file.write(Machine.mainMemory, physicalAddress, length);
+			for (int i = 0; i < pages; i++)
+				pageTable.unpinPage((start / Machine.PageSize + i) * Machine.PageSize);
+
+			Debug.printf('x', "[Nachos.TransferDirect] %d of %d bytes at physical address %d\n",
+					new Integer(result), new Integer(length), new Integer(physicalAddress));
+			if (result < 0)
+				return (done > 0 ? done : -1);
+			done += result;
+			if (result < length)
+				break;
+		}
+
+		return done;
+	}
+
 	/* Write "size" bytes from "buffer" to the open file. */
 	public static int Write(byte buffer[], int size, int id) {
 		// get file from open file table
@@ -858,10 +1164,54 @@ class Nachos implements Runnable {
 	 */
 
 	/*
-	 * Fork a thread to run a procedure ("func") in the *same* address space as
-	 * the current thread.
+	 * Fork a thread to run a procedure ("func") in a copy of the address space
+	 * of the current thread. The copy is copy-on-write, so the cost of forking
+	 * depends on the size of the page table and not on the memory in use.
+	 * 
+	 * The child is a new process (the parent can Join it), it starts with the
+	 * registers of the parent, and "func" should end up calling Exit. Returns
+	 * the id of the child, or -1 if there is not enough swap space for it.
 	 */
-	public static void Fork(long func) {
+	public static int Fork(long func) {
+        NachosThread parent = NachosThread.thisThread();
+        
+        // get the new process id
+        int newId = P_ID++;
+        
+        try {
+            PageTable.getInstance().forkCurrentProcess(newId);
+        }
+        catch (NachosException ne) {
+            // not enough free pages
+            Debug.printf('+', "[Nachos.Fork] Could not find enough pages to fork process [%s]\n", parent.getName());
+            return -1;
+        }
+        
+        // the child starts right at the procedure, with everything else as the parent left it
+        int[] registers = new int[Machine.NumTotalRegs];
+        for (int i = 0; i < Machine.NumTotalRegs; i++) {
+            registers[i] = Machine.readRegister(i);
+        }
+        registers[Machine.PrevPCReg] = registers[Machine.PCReg];
+        registers[Machine.PCReg] = (int)func;
+        registers[Machine.NextPCReg] = (int)func + 4;
+        registers[2] = 0;
+        
+        NachosThread newProcess = new NachosThread(parent.getName());
+        newProcess.setExecutablePath(parent.getExecutableLocation());
+        newProcess.setNumVirtualPages(parent.getNumVirtualPages());
+        
+        Debug.printf('x', "[Nachos.Fork] Scheduling forked process [%s] with pid [%d].\n", parent.getName(), new Long(newId));
+        newProcess.setSpaceId(newId);
+        
+        // inform this thread that it has a new child
+        parent.addChild(newProcess);
+        newProcess.setParent(parent);
+        
+        // schedule forked process
+        newProcess.fork(new ForkedProcessThread(registers));
+        
+        return newId;
 	}
 
 	/*
@@ -892,8 +1242,19 @@ class Nachos implements Runnable {
 class TimerInterruptHandler implements Runnable {
 
 	public void run() {
-		if (Interrupt.getStatus() != Interrupt.IdleMode)
+		if (Interrupt.getStatus() != Interrupt.IdleMode) {
 			Interrupt.yieldOnReturn();
+			// the page merger scans a few more pages on every tick
+			PageMerger.getInstance().timerTick();
+			// and the load controller checks how bad paging is
+			LoadController.getInstance().timerTick();
+			// dirty buffers are written back every so often
+			if (Nachos.bufferCache != null)
+				Nachos.bufferCache.timerTick();
+			// and metadata updates committed
+			if (Nachos.journal != null)
+				Nachos.journal.timerTick();
+		}
 	}
 
 }
@@ -239,7 +239,16 @@ class NachosThread extends Thread implements Printable {
 	try {this.wait();} catch (InterruptedException e) {};
       }
     }
-    runnableObject.run();
+    try {
+      runnableObject.run();
+    } catch (ThreadDeath death) {
+      throw death;
+    } catch (Throwable e) {
+      // the kernel is broken, the other threads could be waiting for
+      // this one forever: stop the machine
+      e.printStackTrace();
+      Interrupt.halt();
+    }
     finish();
   }
   
@@ -301,6 +310,8 @@ class NachosThread extends Thread implements Printable {
     
     // delete the memory allocated by this thread
     PageTable.getInstance().removeCurrentProcess();
+    // somebody suspended can have our frames
+    LoadController.getInstance().processExited(spaceId);
     
     //if (space != null && space.pageTable != null) {
     //    for (int i = 0; i < space.pageTable.length; i++) {
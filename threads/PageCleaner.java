@@ -0,0 +1,133 @@
+/**
+ * Kernel daemon writing dirty pages back to the swap partition ahead of time.
+ *
+ * Evicting a dirty page means writing it to the swap partition before the faulting page can be read, two
+ * disk operations on the critical path of the fault. The cleaner wakes up when main memory is running out of
+ * free frames and writes back, in batches, dirty pages that have not been used lately. It looks at the frames
+ * right in front of the eviction hand, so most of the evictions find a clean victim and a fault costs a single read.
+ *
+ * The cleaner does not hold the fault lock while writing: it takes a snapshot of the page and clears its dirty
+ * bit first, so if the page is written again in the meantime it will just be dirty again. The page stays pinned
+ * until its write is done, so it cannot be evicted (and read back from a swap page that does not hold it yet),
+ * and if its process exits meanwhile the page is freed by the cleaner, once nothing is going to land on its swap
+ * page any more.
+ */
+public class PageCleaner implements Runnable {
+    // wake up the cleaner when there are less free frames than this
+    public static final int LOW_WATERMARK = Machine.NumPhysPages / 8;
+    // maximum number of pages written on each round
+    public static final int BATCH_SIZE = 8;
+
+    // only one instance allowed!
+    private static final PageCleaner instance = new PageCleaner();
+
+    // the cleaner sleeps here until somebody runs low on frames
+    private Semaphore wakeUp = new Semaphore("page cleaner", 0);
+    // whether the cleaner is waiting to be woken up (so we don't pile up wake-ups)
+    private boolean sleeping = false;
+
+    // snapshot of the pages being cleaned
+    private byte[][] buffers = new byte[BATCH_SIZE][Machine.PageSize];
+    private int[] swapPages = new int[BATCH_SIZE];
+    private PageTable.PageTableEntry[] pages = new PageTable.PageTableEntry[BATCH_SIZE];
+
+    // enforce only one instance
+    private PageCleaner() {
+
+    } // ctor
+
+    // get the instance
+    public static PageCleaner getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts the cleaner thread.
+     */
+    public void start() {
+        NachosThread cleaner = new NachosThread("page cleaner");
+        // not a process, it does not own any page
+        cleaner.setSpaceId(-1);
+        // never finishes, the machine halts without waiting for it
+        cleaner.setDaemon(true);
+        cleaner.fork(this);
+    }
+
+    /**
+     * Tells the cleaner how many free frames are left, it wakes up if we are below the watermark.
+     *
+     * @param freeFrames Free frames in main memory.
+     */
+    public void freeFramesLeft(int freeFrames) {
+        if (freeFrames < LOW_WATERMARK && sleeping) {
+            sleeping = false;
+            wakeUp.V();
+        }
+    }
+
+    public void run() {
+        while (true) {
+            sleeping = true;
+            wakeUp.P();
+
+            cleanPages();
+        }
+    }
+
+    /**
+     * Writes back a batch of dirty pages. Pages used since the last round are given a second chance (their use
+     * bit is cleared and they are skipped).
+     */
+    private void cleanPages() {
+        int count = 0;
+        int frame = PageController.getInstance().getEvictionHand();
+
+        // first, take the snapshots... nothing in here blocks, so nobody can touch the pages meanwhile
+        for (int i = 0; i < Machine.NumPhysPages && count < BATCH_SIZE; i++, frame = (frame + 1) % Machine.NumPhysPages) {
+            PageTable.PageTableEntry entry = PageTable.getInstance().getEntriesAt(frame);
+            // the kernel might be writing on a pinned page right now
+            if (entry == null || !entry.inMainMemory || !entry.translationEntry.dirty || entry.pinCount > 0) {
+                continue;
+            }
+            if (entry.translationEntry.use) {
+                entry.translationEntry.use = false;
+                continue;
+            }
+
+            // a zero-fill page that has been written to needs its own page on the swap partition now
+            if (entry.swapPage == -1) {
+                entry.swapPage = MemoryManagement.getInstance().allocateCommittedSwapPage();
+            }
+            entry.zeroFill = false;
+
+            PageController.getInstance().readFromMainMemory(entry, buffers[count]);
+            swapPages[count] = entry.swapPage;
+            entry.translationEntry.dirty = false;
+            // it stays where it is until written
+            entry.pinCount++;
+            pages[count] = entry;
+            count++;
+        }
+
+        Debug.printf('x', "[PageCleaner.cleanPages] Cleaning %d pages\n", new Integer(count));
+
+        // and now write them
+        for (int i = 0; i < count; i++) {
+            SwapPartitionController.getInstance().writePage(buffers[i], swapPages[i]);
+            PerformanceEvaluator.pageCleaned();
+        }
+
+        // the pages can go now... the ones of processes that exited meanwhile were left for us to free
+        Lock faultLock = PageController.getInstance().getFaultLock();
+        faultLock.acquire();
+        for (int i = 0; i < count; i++) {
+            pages[i].pinCount--;
+            if (pages[i].pinCount == 0 && pages[i].references == 0) {
+                PageTable.getInstance().freePage(pages[i]);
+            }
+            pages[i] = null;
+        }
+        faultLock.release();
+    }
+
+} // class
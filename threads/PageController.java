@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /**
  * This class helps us to make transparent page faults and virtual memory. 
  * 
@@ -15,8 +17,21 @@ public class PageController {
     // pure round robin for tlb eviction
     private static int currentTlbIndex = 0;
     
+    // only one thread at a time moves pages in and out of main memory
+    private Lock faultLock = new Lock("page fault lock");
+    
     // use one buffer overall
     private byte[] buffer = new byte[Machine.PageSize];
+    // and another one for copy-on-write, evicting a page while copying would clobber the first one
+    private byte[] copyBuffer = new byte[Machine.PageSize];
+    
+    // after failing to find a run of frames for a large page, wait this long before trying again
+    private static final int LARGE_PAGE_RETRY_TICKS = 10000;
+    
+    // how many neighbouring pages are brought in along with the faulting one (0 disables fault-around)
+    private int faultAround = 0;
+    // buffer for the faulting page and its neighbours
+    private byte[] faultAroundBuffer = new byte[Machine.PageSize];
     
     // only one instance allowed!
     private static final PageController instance = new PageController();
@@ -65,23 +80,116 @@ public class PageController {
         int current = currentFrameIndex;
         
         // increment
-        currentFrameIndex = (currentFrameIndex + 1) % SwapPartitionController.SWAP_SIZE_PAGES;
+        currentFrameIndex = (currentFrameIndex + 1) % Machine.NumPhysPages;
         
         return current;
     }
     
-    private int nextFrameToEvictLastResort() {
-        // look for a random entry
-        int current = (int)(Math.random()*100) % SwapPartitionController.SWAP_SIZE_PAGES;
-        // get an entry
-        PageTable.PageTableEntry entry = PageTable.getInstance().getEntriesAt(current);
-        // stop until we find something that is in main memory
-        while (entry == null || !entry.inMainMemory) {
-            current = (int)(Math.random()*100) % SwapPartitionController.SWAP_SIZE_PAGES;;
-            entry = PageTable.getInstance().getEntriesAt(current);
+    /**
+     * Sets how many neighbouring pages are read along with the faulting one. Only pages of the same process that are
+     * in the swap partition, right next to the faulting page (both in the address space and in the swap partition),
+     * are read ahead, so the whole run can be read with a single request.
+     * 
+     * @param pages Maximum number of neighbouring pages to read, 0 disables fault-around.
+     */
+    public void setFaultAround(int pages) {
+        Debug.ASSERT(pages >= 0, "[PageController.setFaultAround] Invalid number of pages.");
+        faultAround = pages;
+        faultAroundBuffer = new byte[(pages + 1) * Machine.PageSize];
+    }
+    
+    /**
+     * Gets the next frame the round-robin will look at when evicting, the page cleaner starts from there.
+     * 
+     * @return The frame.
+     */
+    public int getEvictionHand() {
+        return currentFrameIndex;
+    }
+    
+    /**
+     * Picks a frame whose page will be evicted. Pages of other processes are preferred over
+     * the ones belonging to <code>processId</code>, as long as those processes hold more frames than
+     * they are guaranteed. A process holding its maximum number of frames replaces its own pages. Shared pages
+     * are not charged to anybody, they are given a second chance instead.
+     * 
+     * @param processId Process that needs the frame.
+     * 
+     * @return The entry of the page to evict.
+     */
+    private PageTable.PageTableEntry pageToEvict(int processId) {
+        ResidentSetController residentSets = ResidentSetController.getInstance();
+        boolean local = residentSets.atMaximum(processId);
+        PageTable.PageTableEntry ownPage = null;
+        PageTable.PageTableEntry lastResort = null;
+        
+        // traverse the inverted page table only once
+        for (int numberOfAttempts = 0; numberOfAttempts < Machine.NumPhysPages; numberOfAttempts++) {
+            PageTable.PageTableEntry entry = PageTable.getInstance().getEntriesAt(nextFrameToEvict());
+            if (entry == null || !entry.inMainMemory || entry.pinCount > 0) {
+                continue;
+            }
+            // shared pages are not charged to anybody: whoever is not at its maximum may take them, but only once
+            // they have gone unused for a whole round, they are likely to be code somebody is running
+            if (!entry.charged) {
+                if (!local && !recentlyUsed(entry)) {
+                    return entry;
+                }
+                if (lastResort == null) {
+                    lastResort = entry;
+                }
+                continue;
+            }
+            if (entry.processId == processId) {
+                if (local) {
+                    PerformanceEvaluator.localEviction();
+                    return entry;
+                }
+                if (ownPage == null) {
+                    ownPage = entry;
+                }
+                continue;
+            }
+            if (!local && residentSets.aboveMinimum(entry.processId)) {
+                // we found one to evict!
+                return entry;
+            }
+            if (lastResort == null) {
+                lastResort = entry;
+            }
         }
-        return current;
         
+        // it could be that the current process occupies the whole main memory, or everybody else is
+        // down to their guaranteed frames... our own pages go first, and if there are none, just evict something!
+        if (ownPage != null) {
+            lastResort = ownPage;
+        }
+        Debug.ASSERT(lastResort != null, "[PageController.pageToEvict] Main memory is full and every page is pinned!");
+        // and keep the round-robin going from there, otherwise we would pick the very same frame next time
+        currentFrameIndex = (lastResort.translationEntry.physicalPage + 1) % Machine.NumPhysPages;
+        return lastResort;
+    }
+    
+    /**
+     * Tells whether a page was used since the last time the round-robin went past it, and clears its use bit so it
+     * can be picked next time if it is not used again.
+     * 
+     * @param entry The page.
+     * 
+     * @return <code>true</code> if the page was used.
+     */
+    private boolean recentlyUsed(PageTable.PageTableEntry entry) {
+        PageTable.LargePage largePage = entry.largePage;
+        if (largePage != null && largePage.assembled && largePage.translationEntry.use) {
+            // the hardware only sets the bit of the large page, hand it down to each of its pages
+            for (int i = 0; i < largePage.pages.length; i++) {
+                largePage.pages[i].translationEntry.use = true;
+            }
+            largePage.translationEntry.use = false;
+        }
+        boolean used = entry.translationEntry.use;
+        entry.translationEntry.use = false;
+        return used;
     }
     
     /**
@@ -101,129 +209,489 @@ public class PageController {
         // get the current process id
         int processId = NachosThread.thisThread().getSpaceId();
         
-        // we know which page was accessed, now, decide which entry in the TLB to evict
-        // we use a round-robin replacement...
-        int entryToEvict = nextTlbEntryToEvict();
-        
         // get the translation entry from our global page table
         PageTable.PageTableEntry entry = PageTable.getInstance().getEntry(processId, page);
         
         // ok, we got the page descriptor... now, figure out if the page is already in main memory or in the disk 
         if (entry.inMainMemory == false) {
-            // ok, it is not in main memory... let's bring it from disk
-            // but, careful... we need to see if there's still enough space on main memory!!!
-            // if not, we will need to evict one page!
-            // so first, is there enough space in main memory?
-            if (MemoryManagement.getInstance().enoughPages(1, MemoryManagement.MEMORY_TYPE_MAIN)) {
-                // compulsory page fault
-                PerformanceEvaluator.pageFault(entry.processId, entry.translationEntry.virtualPage);
-                // yes, enough space on main memory, so just bring it over and update the page descriptor
-                // get the physical page to where this page will be allocated first
-                int physicalPage = MemoryManagement.getInstance().allocatePage(MemoryManagement.MEMORY_TYPE_MAIN);
-                entry.translationEntry.physicalPage = physicalPage;
-                // ok, be extra paranoid
-                Debug.ASSERT(physicalPage != -1, "[PageController.handlePageFault] Could not allocate a page!");
-                
-                // and perform the actual copying of data from swapping partition to main memory
-                Debug.printf('x', "[PageController.handlePageFault] Copying from swap partition to main memory %s\n", entry.toString());
-                SwapPartitionController.getInstance().getPage(entry.swapPage, buffer);
-                writeToMainMemory(entry, buffer);
-                
-                // update metadata
-                entry.inMainMemory = true;
-            }
-            else {
-                // so, not enough space in main memory... need to swap something out
-                swapPage(entry);
-            }
+            // a process picked by the load controller stops here, until there is room for it again
+            LoadController.getInstance().pageFault(processId);
+            
+            // ok, it is not in main memory... let's bring it over (swapPage takes care of finding a frame)
+            swapPage(entry);
+        } else if (wantsAssembly(entry.largePage)) {
+            // the page is there, but its large page is not
+            swapPage(entry);
         }
+        prefetchUsed(entry);
         
-        // replace in TLB
-        Machine.tlb[entryToEvict] = entry.translationEntry;
-        entry.translationEntry.use = true;
-        entry.translationEntry.valid = true;
+        // we know which page was accessed, now, decide which entry in the TLB to evict
+        int entryToEvict = nextTlbEntryToEvict();
+        
+        // replace in TLB, with the whole large page if we can
+        TranslationEntry mapping = entry.translationEntry;
+        if (entry.largePage != null && entry.largePage.assembled) {
+            mapping = entry.largePage.translationEntry;
+        } else if (mapping.virtualPage != page) {
+            // a merged page, that this process maps at another virtual page than the entry says: the TLB gets a
+            // translation of its own (the use bit goes to the entry here, and the TLB is flushed if the page leaves)
+            mapping = new TranslationEntry();
+            mapping.virtualPage = (int)page;
+            mapping.physicalPage = entry.translationEntry.physicalPage;
+            mapping.readOnly = entry.translationEntry.readOnly;
+            entry.translationEntry.use = true;
+            entry.aliased = true;
+        }
+        PerformanceEvaluator.tlbLoaded(mapping.pageCount);
+        Machine.tlb[entryToEvict] = mapping;
+        mapping.use = true;
+        mapping.valid = true;
         
     } // handlePageFault
     
     /**
-     * After completion, the passed page entry will reside in main memory, while another page on main memory will be swapped back to disk.
+     * Gets the lock serializing every change to the frames of main memory. Anybody freeing frames
+     * must hold it, otherwise an eviction blocked on the disk could end up writing a page of a dead process.
+     * 
+     * @return The lock.
+     */
+    public Lock getFaultLock() {
+        return faultLock;
+    }
+    
+    /**
+     * After completion, the passed page entry will reside in main memory. If main memory is full, another page on main memory
+     * will be swapped back to disk.
+     * 
+     * Zero-fill pages are not read from the swap partition, their frame is simply cleared.
      * 
      * @param pageEntry The descriptor of the page that will be swapped into main memory.
      */
     public void swapPage(PageTable.PageTableEntry pageEntry) {
+        faultLock.acquire();
+        
+        // bring the page in along with the rest of its large page, if there is a run of frames for them
+        if (wantsAssembly(pageEntry.largePage)) {
+            assembleLargePage(pageEntry.largePage, pageEntry);
+        }
+        
+        // somebody else might have brought the page in while we were waiting
+        if (!pageEntry.inMainMemory) {
+            bringIn(pageEntry);
+        }
+        
+        faultLock.release();
+    }
+    
+    /**
+     * Determines whether we should try to put a large page together.
+     * 
+     * @param largePage The large page, might be <code>null</code>.
+     * 
+     * @return <code>true</code> if the large page is not assembled, and it is time to try again.
+     */
+    private boolean wantsAssembly(PageTable.LargePage largePage) {
+        return (largePage != null && !largePage.assembled && Nachos.stats.totalTicks >= largePage.retryAt);
+    }
+    
+    /**
+     * Moves the base pages of a large page to a run of consecutive frames, so they can be mapped with one TLB entry.
+     * Pages already in main memory are copied over, the others are read from the swap partition. If there is no
+     * free run of frames, the pages stay where they are and we try again later. The caller must hold the fault lock.
+     * 
+     * @param largePage The large page to assemble.
+     * @param faulting The page that was accessed.
+     */
+    private void assembleLargePage(PageTable.LargePage largePage, PageTable.PageTableEntry faulting) {
+        int processId = NachosThread.thisThread().getSpaceId();
+        
+        // the frames the pages have now are given back once they are copied, but the run has to be free first
+        int missing = 0;
+        boolean pinned = false;
+        for (int i = 0; i < largePage.pages.length; i++) {
+            if (!largePage.pages[i].inMainMemory) {
+                missing++;
+            }
+            pinned |= (largePage.pages[i].pinCount > 0);
+        }
+        int first = -1;
+        // pinned pages cannot be moved
+        if (!pinned && ResidentSetController.getInstance().roomFor(processId, missing)) {
+            first = MemoryManagement.getInstance().allocateFrameRun(largePage.pages.length);
+        }
+        if (first == -1) {
+            largePage.retryAt = Nachos.stats.totalTicks + LARGE_PAGE_RETRY_TICKS;
+            PerformanceEvaluator.largePageFailed();
+            return;
+        }
+        
+        Debug.printf('x', "[PageController.assembleLargePage] Assembling virtual page %d on frames %d to %d\n",
+                     new Object[] {new Integer(largePage.translationEntry.virtualPage), new Integer(first), 
+                                   new Integer(first + largePage.pages.length - 1)});
+        if (!faulting.inMainMemory) {
+            PerformanceEvaluator.pageFault(faulting.processId, faulting.translationEntry.virtualPage);
+            Nachos.stats.numPageFaults++;
+        }
+        
+        for (int i = 0; i < largePage.pages.length; i++) {
+            PageTable.PageTableEntry page = largePage.pages[i];
+            int frame = first + i;
+            
+            if (page.inMainMemory) {
+                // nothing in here blocks, so the page is never seen half moved
+                int oldFrame = page.translationEntry.physicalPage;
+                System.arraycopy(Machine.mainMemory, oldFrame * Machine.PageSize, 
+                                 Machine.mainMemory, frame * Machine.PageSize, Machine.PageSize);
+                PageTable.getInstance().setEntriesAt(oldFrame, null);
+                MemoryManagement.getInstance().deallocatePage(oldFrame, MemoryManagement.MEMORY_TYPE_MAIN);
+                page.translationEntry.physicalPage = frame;
+                PageTable.getInstance().setEntriesAt(frame, page);
+                continue;
+            }
+            
+            page.translationEntry.physicalPage = frame;
+            PageTable.getInstance().setEntriesAt(frame, page);
+            if (page.zeroFill) {
+                Arrays.fill(Machine.mainMemory, frame * Machine.PageSize, (frame + 1) * Machine.PageSize, (byte)0);
+            } else {
+                SwapPartitionController.getInstance().getPage(page.swapPage, buffer);
+                writeToMainMemory(page, buffer);
+            }
+            page.inMainMemory = true;
+            page.translationEntry.use = (page == faulting);
+            page.translationEntry.dirty = false;
+        }
+        
+        largePage.translationEntry.physicalPage = first;
+        largePage.translationEntry.use = false;
+        largePage.translationEntry.dirty = false;
+        largePage.assembled = true;
+        PerformanceEvaluator.largePageAssembled();
+    }
+    
+    /**
+     * Goes back to mapping the pages of a large page one by one, before one of them leaves its frame. The large
+     * page might have been written through its own translation entry, and we cannot tell which of the pages was,
+     * so all of them are considered dirty.
+     * 
+     * @param largePage The large page.
+     */
+    public void breakLargePage(PageTable.LargePage largePage) {
+        if (!largePage.assembled) {
+            return;
+        }
+        Debug.printf('x', "[PageController.breakLargePage] Breaking large page at virtual page %d\n",
+                     new Integer(largePage.translationEntry.virtualPage));
+        
+        for (int i = 0; i < largePage.pages.length; i++) {
+            largePage.pages[i].translationEntry.dirty |= largePage.translationEntry.dirty;
+            largePage.pages[i].translationEntry.use |= largePage.translationEntry.use;
+        }
+        // this also takes it out of the TLB
+        largePage.translationEntry.valid = false;
+        largePage.assembled = false;
+    }
+    
+    /**
+     * Brings a page into main memory. The caller must hold the fault lock.
+     * 
+     * @param pageEntry The descriptor of the page that will be swapped into main memory.
+     */
+    private void bringIn(PageTable.PageTableEntry pageEntry) {
         PerformanceEvaluator.pageFault(pageEntry.processId, pageEntry.translationEntry.virtualPage);
+        Nachos.stats.numPageFaults++;
         Debug.printf('x', "[PageController.swapPage] Swapping-in %s\n", pageEntry.toString());
         
-        // process id
+        int frame = findFrame();
+        
+        // the frame is ours from now on
+        pageEntry.translationEntry.physicalPage = frame;
+        PageTable.getInstance().setEntriesAt(frame, pageEntry);
+        
+        if (pageEntry.zeroFill) {
+            // nothing to read, the page has never been written
+            Debug.printf('x', "[PageController.swapPage] Zero-filling frame [%d]\n", new Integer(frame));
+            Arrays.fill(Machine.mainMemory, frame * Machine.PageSize, (frame + 1) * Machine.PageSize, (byte)0);
+        } else if (faultAround > 0 && !ResidentSetController.getInstance().atMaximum(NachosThread.thisThread().getSpaceId())) {
+            // bring the neighbours too
+            readAround(pageEntry);
+        } else {
+            // copy from the swapping partition to the buffer, and then to main memory
+            SwapPartitionController.getInstance().getPage(pageEntry.swapPage, buffer);
+            writeToMainMemory(pageEntry, buffer);
+        }
+        
+        // update the bit indicating that the page is in main memory, and some other metadata
+        pageEntry.inMainMemory = true;
+        pageEntry.translationEntry.use = true;
+        pageEntry.translationEntry.dirty = false;
+    }
+    
+    /**
+     * Determines whether a page can be read ahead along with a faulting page.
+     * 
+     * @param neighbour The candidate.
+     * @param swapPage The swap page the candidate should be in.
+     * 
+     * @return <code>true</code> if the candidate is out of main memory and in that very swap page.
+     */
+    private boolean canReadAhead(PageTable.PageTableEntry neighbour, int swapPage) {
+        return (neighbour != null && !neighbour.inMainMemory && !neighbour.zeroFill && neighbour.swapPage == swapPage);
+    }
+    
+    /**
+     * Reads the faulting page along with its neighbours, with one request to the swap partition. The frame for the
+     * faulting page must already be allocated. The caller must hold the fault lock.
+     * 
+     * @param pageEntry The faulting page.
+     */
+    private void readAround(PageTable.PageTableEntry pageEntry) {
         int processId = NachosThread.thisThread().getSpaceId();
+        int virtualPage = pageEntry.translationEntry.virtualPage;
         
-        // we know that there are no free pages on main memory, so we can traverse the inverted page table
-        boolean found = false;
-        PageTable.PageTableEntry pageToEvict = null;
-        int numberOfAttempts = 0;
+        // find out how long is the run of pages, forward first and then backwards
+        int after = 0;
+        while (after < faultAround 
+                && canReadAhead(PageTable.getInstance().getEntry(processId, virtualPage + after + 1), pageEntry.swapPage + after + 1)) {
+            after++;
+        }
+        int before = 0;
+        while (before + after < faultAround 
+                && virtualPage - before - 1 >= 0
+                && canReadAhead(PageTable.getInstance().getEntry(processId, virtualPage - before - 1), pageEntry.swapPage - before - 1)) {
+            before++;
+        }
         
-        // try to traverse the inverted page table only once (using the numberOfAttempts counter helps)
-        while (!found && numberOfAttempts < SwapPartitionController.SWAP_SIZE_PAGES) {
-            // get a candidate page to evict
-            // first, get the entries associated to a frame
-            PageTable.PageTableEntry entry = PageTable.getInstance().getEntriesAt(nextFrameToEvict());
+        int count = before + 1 + after;
+        Debug.printf('x', "[PageController.readAround] Reading %d pages starting at swap page [%d]\n", 
+                          new Integer(count), new Integer(pageEntry.swapPage - before));
+        SwapPartitionController.getInstance().getPages(pageEntry.swapPage - before, count, faultAroundBuffer);
+        
+        // the faulting page first
+        System.arraycopy(faultAroundBuffer, before * Machine.PageSize, 
+                         Machine.mainMemory, pageEntry.translationEntry.physicalPage * Machine.PageSize, Machine.PageSize);
+        
+        // and now the neighbours
+        for (int i = 0; i < count; i++) {
+            if (i == before) {
+                continue;
+            }
+            PageTable.PageTableEntry neighbour = PageTable.getInstance().getEntry(processId, virtualPage - before + i);
             
-            // traverse the entries and check process id and whether or not they are on main memory as we go
-            // as soon as we find one entry whose process id is different from the one of the current process
-            // and that entry is on main memory, we will stop
-            pageToEvict = entry;
-            while (pageToEvict != null) {
-                if (pageToEvict.processId != processId && pageToEvict.inMainMemory) {
-                    // we found one to evict!
-                    found = true;
-                    break;
-                }
-                pageToEvict = entry.nextPageTableEntry;
+            // a process at its maximum would only push out its own pages to make room for these
+            if (ResidentSetController.getInstance().atMaximum(processId)) {
+                break;
+            }
+            
+            // getting a frame might block, make sure nobody has changed the neighbour meanwhile
+            int frame = findFrame();
+            if (!canReadAhead(neighbour, pageEntry.swapPage - before + i)) {
+                PageTable.getInstance().setEntriesAt(frame, null);
+                MemoryManagement.getInstance().deallocatePage(frame, MemoryManagement.MEMORY_TYPE_MAIN);
+                continue;
             }
             
-            // increment the number of attempts
-            numberOfAttempts++;
+            neighbour.translationEntry.physicalPage = frame;
+            PageTable.getInstance().setEntriesAt(frame, neighbour);
+            System.arraycopy(faultAroundBuffer, i * Machine.PageSize, Machine.mainMemory, frame * Machine.PageSize, Machine.PageSize);
+            
+            // it has not been used yet
+            neighbour.inMainMemory = true;
+            neighbour.prefetched = true;
+            neighbour.translationEntry.use = false;
+            neighbour.translationEntry.dirty = false;
+            PerformanceEvaluator.pagePrefetched();
+        }
+    }
+    
+    /**
+     * Keeps track of read-ahead pages that are actually used.
+     * 
+     * @param pageEntry A page that is about to be used.
+     */
+    public void prefetchUsed(PageTable.PageTableEntry pageEntry) {
+        if (pageEntry.prefetched) {
+            pageEntry.prefetched = false;
+            PerformanceEvaluator.prefetchUsed();
         }
+    }
+    
+    /**
+     * Gets a frame of main memory, evicting some page if there are no free frames. The caller must hold the fault lock.
+     * 
+     * @return The frame.
+     */
+    private int findFrame() {
+        int frame;
+        int processId = NachosThread.thisThread().getSpaceId();
+        // a process at its maximum does not get free frames, it replaces its own pages
+        if (MemoryManagement.getInstance().enoughPages(1, MemoryManagement.MEMORY_TYPE_MAIN)
+                && !ResidentSetController.getInstance().atMaximum(processId)) {
+            // compulsory page fault, there is a free frame
+            frame = MemoryManagement.getInstance().allocatePage(MemoryManagement.MEMORY_TYPE_MAIN);
+            // ok, be extra paranoid
+            Debug.ASSERT(frame != -1, "[PageController.findFrame] Could not allocate a page!");
+        } else {
+            // so, not enough space in main memory... need to swap something out
+            frame = evictPage(pageToEvict(processId));
+        }
+        
+        // running out of frames? time to write some dirty pages in the background
+        PageCleaner.getInstance().freeFramesLeft(MemoryManagement.getInstance().freePages(MemoryManagement.MEMORY_TYPE_MAIN));
+        return frame;
+    }
+    
+    /**
+     * Gives <code>target</code> a frame of its own holding a copy of <code>source</code>. This is how a copy-on-write
+     * page is broken. The caller must hold the fault lock.
+     * 
+     * The copy is left dirty and without a swap page, it will take its (already committed) page of the swap partition
+     * the first time it is evicted.
+     * 
+     * @param source The page being copied.
+     * @param target The page receiving the copy.
+     */
+    public void copyPage(PageTable.PageTableEntry source, PageTable.PageTableEntry target) {
+        Debug.printf('x', "[PageController.copyPage] Copying %s\n", source.toString());
         
-        // it could be that the current process occupies the whole main memory...
-        if (pageToEvict == null) {
-            // just evict something!
-            pageToEvict = PageTable.getInstance().getEntriesAt(nextFrameToEvictLastResort());
+        // the source needs to be in main memory for us to copy it
+        if (!source.inMainMemory) {
+            bringIn(source);
+        }
+        readFromMainMemory(source, copyBuffer);
+        
+        // getting the frame might evict the source, but we already have its contents
+        int frame = findFrame();
+        target.translationEntry.physicalPage = frame;
+        PageTable.getInstance().setEntriesAt(frame, target);
+        writeToMainMemory(target, copyBuffer);
+        
+        target.swapPage = -1;
+        target.zeroFill = false;
+        target.inMainMemory = true;
+        target.translationEntry.use = true;
+        target.translationEntry.dirty = true;
+    }
+    
+    /**
+     * Handles a write on a read-only page. Copy-on-write pages get a private copy (or become writable if nobody
+     * else is using them anymore), and the TLB is updated accordingly.
+     * 
+     * @param virtualAddress The (32 bit) virtual address that generated the exception.
+     * 
+     * @return <code>true</code> if the page was copy-on-write and the write can be retried, <code>false</code> if
+     *         the process really tried to write on a read-only page.
+     */
+    public boolean handleReadOnly(int virtualAddress) {
+        long page = ((long) virtualAddress & LOW32BITS) / Machine.PageSize;
+        int processId = NachosThread.thisThread().getSpaceId();
+        
+        PageTable.PageTableEntry entry = PageTable.getInstance().getEntry(processId, page);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.copyOnWrite) {
+            entry = PageTable.getInstance().breakCopyOnWrite(processId, page);
+        } else if (entry.translationEntry.readOnly) {
+            return false;
+        }
+        
+        // the TLB might still hold the shared translation, or one made for this virtual page (the kernel might
+        // even have broken the sharing already, writing on the page for a system call)
+        for (int i = 0; i < Machine.TLBSize; i++) {
+            if (Machine.tlb[i] != null && page >= Machine.tlb[i].virtualPage
+                    && page < Machine.tlb[i].virtualPage + Machine.tlb[i].pageCount) {
+                Machine.tlb[i] = entry.translationEntry;
+            }
+        }
+        entry.translationEntry.valid = entry.inMainMemory;
+        
+        return true;
+    }
+    
+    /**
+     * Evicts every private page of a process from main memory, and frees their frames. Pages shared with other
+     * processes stay where they are.
+     *
+     * @param processId The process.
+     *
+     * @return How many frames were freed.
+     */
+    public int evictProcess(int processId) {
+        int freed = 0;
+
+        faultLock.acquire();
+        for (int frame = 0; frame < Machine.NumPhysPages; frame++) {
+            PageTable.PageTableEntry entry = PageTable.getInstance().getEntriesAt(frame);
+            if (entry == null || !entry.inMainMemory || entry.references > 1 || entry.pinCount > 0
+                    || PageTable.getInstance().getEntry(processId, entry.translationEntry.virtualPage) != entry) {
+                continue;
+            }
+
+            evictPage(entry);
+            PageTable.getInstance().setEntriesAt(frame, null);
+            MemoryManagement.getInstance().deallocatePage(frame, MemoryManagement.MEMORY_TYPE_MAIN);
+            freed++;
+        }
+        faultLock.release();
+
+        return freed;
+    }
+
+    /**
+     * Evicts a page from main memory, writing it back to the swap partition if needed. The caller must hold the fault lock.
+     * 
+     * @param pageToEvict The page to evict.
+     * 
+     * @return The frame that has just been freed.
+     */
+    private int evictPage(PageTable.PageTableEntry pageToEvict) {
+        Debug.printf('x', "[PageController.evictPage] Evicting %s\n", pageToEvict.toString());
+        int frame = pageToEvict.translationEntry.physicalPage;
+        
+        // the rest of the large page stays, but mapped page by page
+        if (pageToEvict.largePage != null) {
+            breakLargePage(pageToEvict.largePage);
+        }
+        
+        // update metadata for the evicted page first, the owner might run while we wait for the disk
+        pageToEvict.translationEntry.valid = false;
+        pageToEvict.inMainMemory = false;
+        // the TLB might hold translations made for it under other virtual pages
+        if (pageToEvict.aliased) {
+            pageToEvict.aliased = false;
+            invalidateTlb();
+        }
+        
+        // a page read ahead that nobody used
+        if (pageToEvict.prefetched) {
+            pageToEvict.prefetched = false;
+            PerformanceEvaluator.prefetchWasted();
         }
         
-        // we now have a page to evict
         // do we need to write back to disk?
+        PerformanceEvaluator.pageEvicted(pageToEvict.translationEntry.dirty);
         if (pageToEvict.translationEntry.dirty) {
-            Debug.printf('x', "[PageController.swapPage] Writing back dirty page %s\n", pageToEvict.toString());
-            // we need to write back to the swapping partition
+            Debug.printf('x', "[PageController.evictPage] Writing back dirty page %s\n", pageToEvict.toString());
+            // a zero-fill page that has been written to needs its own page on the swap partition now
+            if (pageToEvict.swapPage == -1) {
+                pageToEvict.swapPage = MemoryManagement.getInstance().allocateCommittedSwapPage();
+            }
+            pageToEvict.zeroFill = false;
+            
             // read the contents from memory
             readFromMainMemory(pageToEvict, buffer);
             
             // and write to the swap partition
-            SwapPartitionController.getInstance().writePage(buffer, pageToEvict.swapPage, 0);
+            SwapPartitionController.getInstance().writePage(buffer, pageToEvict.swapPage);
             
             // and this page is not dirty anymore
             pageToEvict.translationEntry.dirty = false;
         }
-        Debug.printf('x', "[PageController.swapPage] Evicting %s\n", pageToEvict.toString());
-        
-        // update physical page info for the swapped-in page
-        pageEntry.translationEntry.physicalPage = pageToEvict.translationEntry.physicalPage;
-        
-        // at this point, we can use a spot in main memory
-        // copy from the swapping partition to the buffer, and then to main memory
-        SwapPartitionController.getInstance().getPage(pageEntry.swapPage, buffer);
-        writeToMainMemory(pageEntry, buffer);
-        
-        // update the bit indicating that the page is in main memory, and some other metadata
-        pageEntry.inMainMemory = true;
-        pageEntry.translationEntry.use = true;
         
-        // update metadata for the evicted page
-        pageToEvict.translationEntry.valid = false;
-        pageToEvict.inMainMemory = false;
         pageToEvict.translationEntry.physicalPage = -1;
-
+        
+        return frame;
     }
         
 
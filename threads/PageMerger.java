@@ -0,0 +1,179 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Kernel daemon merging identical pages of different processes into a single copy-on-write frame.
+ *
+ * Processes running the same executable start with the same data pages, and a lot of them stay the same for the
+ * whole run, as do the pages full of zeros anywhere in any process. The merger walks main memory a few frames at a
+ * time, and hashes each resident page. Two pages with the same hash are compared byte by byte, and if they really
+ * are equal one of them is folded into the other: both mappings now use the surviving frame copy-on-write, exactly
+ * as after a fork, and the other frame is freed. The first process writing on it gets its own copy back.
+ *
+ * Pages are only merged once their hash did not change since the previous pass over memory, there is no point in
+ * merging a page that is being written all the time. The pages do not need to be at the same virtual page, a
+ * mapping at another virtual page than the surviving entry gets a translation of its own in the TLB.
+ *
+ * The merger is rate limited: it wakes up on the timer interrupt and scans at most <code>pagesPerRound</code>
+ * frames each time. It holds the fault lock while scanning, but nothing in a round blocks.
+ */
+public class PageMerger implements Runnable {
+    // only one instance allowed!
+    private static final PageMerger instance = new PageMerger();
+
+    // frames scanned each time the merger wakes up, 0 disables merging
+    private int pagesPerRound = 0;
+
+    // the merger sleeps here until the next timer interrupt
+    private Semaphore wakeUp = new Semaphore("page merger", 0);
+    // whether the merger is waiting to be woken up (so we don't pile up wake-ups)
+    private boolean sleeping = false;
+
+    // next frame to scan
+    private int currentFrame = 0;
+    // hash of every frame on the previous pass, and the page that was living there
+    private int[] lastHash = new int[Machine.NumPhysPages];
+    private PageTable.PageTableEntry[] lastEntry = new PageTable.PageTableEntry[Machine.NumPhysPages];
+    // candidates found on this pass, hash -> entry
+    private Map candidates = new HashMap();
+
+    // enforce only one instance
+    private PageMerger() {
+
+    } // ctor
+
+    // get the instance
+    public static PageMerger getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets how many frames the merger scans each time it wakes up.
+     *
+     * @param pages Frames per round, 0 disables merging.
+     */
+    public void setPagesPerRound(int pages) {
+        Debug.ASSERT(pages >= 0, "[PageMerger.setPagesPerRound] Negative rate.");
+        pagesPerRound = pages;
+    }
+
+    /**
+     * Starts the merger thread, if merging is enabled.
+     */
+    public void start() {
+        if (pagesPerRound == 0) {
+            return;
+        }
+        NachosThread merger = new NachosThread("page merger");
+        // not a process, it does not own any page
+        merger.setSpaceId(-1);
+        // never finishes, the machine halts without waiting for it
+        merger.setDaemon(true);
+        merger.fork(this);
+    }
+
+    /**
+     * Called on every timer interrupt, wakes the merger up for another round.
+     */
+    public void timerTick() {
+        if (sleeping) {
+            sleeping = false;
+            wakeUp.V();
+        }
+    }
+
+    public void run() {
+        while (true) {
+            sleeping = true;
+            wakeUp.P();
+
+            PageController.getInstance().getFaultLock().acquire();
+            scanPages();
+            PageController.getInstance().getFaultLock().release();
+        }
+    }
+
+    /**
+     * Scans the next batch of frames, merging the pages that are equal to a candidate seen before on this pass.
+     */
+    private void scanPages() {
+        for (int i = 0; i < pagesPerRound; i++) {
+            int frame = currentFrame;
+            currentFrame = (currentFrame + 1) % Machine.NumPhysPages;
+            if (currentFrame == 0) {
+                // new pass, candidates from the previous one might be long gone
+                candidates.clear();
+            }
+
+            PageTable.PageTableEntry entry = PageTable.getInstance().getEntriesAt(frame);
+            // shared code, large pages and pinned pages are left alone
+            if (entry == null || !entry.inMainMemory || entry.sharedKey != null || entry.largePage != null
+                    || entry.pinCount > 0) {
+                lastEntry[frame] = null;
+                continue;
+            }
+            PerformanceEvaluator.pageScanned();
+
+            int hash = hashFrame(frame);
+            boolean stable = (lastEntry[frame] == entry && lastHash[frame] == hash);
+            lastEntry[frame] = entry;
+            lastHash[frame] = hash;
+            if (!stable) {
+                continue;
+            }
+
+            Integer key = new Integer(hash);
+            PageTable.PageTableEntry candidate = (PageTable.PageTableEntry)candidates.get(key);
+            if (candidate == null || !isResident(candidate) || candidate == entry || candidate.pinCount > 0) {
+                candidates.put(key, entry);
+                continue;
+            }
+            if (!sameContents(candidate.translationEntry.physicalPage, frame)) {
+                continue;
+            }
+
+            // the private one goes away, two pages shared already stay as they are
+            if (isPrivate(entry)) {
+                PerformanceEvaluator.pageMerged(!candidate.copyOnWrite);
+                lastEntry[frame] = null;
+                PageTable.getInstance().mergePages(candidate, entry);
+            } else if (isPrivate(candidate)) {
+                PerformanceEvaluator.pageMerged(!entry.copyOnWrite);
+                lastEntry[candidate.translationEntry.physicalPage] = null;
+                PageTable.getInstance().mergePages(entry, candidate);
+                candidates.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Determines whether a candidate is still living in the frame where we found it.
+     */
+    private boolean isResident(PageTable.PageTableEntry entry) {
+        return (entry.inMainMemory && PageTable.getInstance().getEntriesAt(entry.translationEntry.physicalPage) == entry);
+    }
+
+    private boolean isPrivate(PageTable.PageTableEntry entry) {
+        return (entry.references == 1 && !entry.copyOnWrite && entry.sharedKey == null);
+    }
+
+    private int hashFrame(int frame) {
+        int hash = 1;
+        for (int i = frame * Machine.PageSize, n = (frame + 1) * Machine.PageSize; i < n; i++) {
+            hash = 31 * hash + Machine.mainMemory[i];
+        }
+        return hash;
+    }
+
+    private boolean sameContents(int frame1, int frame2) {
+        int base1 = frame1 * Machine.PageSize;
+        int base2 = frame2 * Machine.PageSize;
+        for (int i = 0; i < Machine.PageSize; i++) {
+            if (Machine.mainMemory[base1 + i] != Machine.mainMemory[base2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+} // class
@@ -1,3 +1,4 @@
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.Hashtable;
@@ -9,11 +10,29 @@ import java.util.HashMap;
 public class PageTable {
     // internal anchorTable
     // key: <processId, virtualPageNumber>
-    // value: <physicalPageNumber> (which is used as index)
+    // value: <PageTableEntry> describing that page
     private final Map anchorTable = new HashMap();
 
-    // page table entry, we now use virtual memory, so we need to keep track of pages in use
-    private final PageTableEntry[] pageTable = new PageTableEntry[SwapPartitionController.SWAP_SIZE_PAGES];
+    // inverted page table, one slot per frame of main memory holding the entry that lives there
+    // (we used to index this by swap page, but zero-fill pages might not have a swap page at all)
+    private final PageTableEntry[] pageTable = new PageTableEntry[Machine.NumPhysPages];
+    
+    // code pages shared among all the processes running the same executable
+    // key: <executable, length, last modified, virtualPageNumber>
+    // value: <PageTableEntry> mapped (read-only) by every one of those processes
+    private final Map sharedPages = new HashMap();
+    
+    // most pages pinned by pinPage at once, the rest of main memory is left for page faults to evict from
+    public static final int MAX_PINNED_PAGES = Machine.NumPhysPages / 4;
+    // pages pinned by pinPage right now
+    private int pinnedPages = 0;
+    // signalled (with the fault lock held) whenever a page is unpinned
+    private final Condition pinReleased = new Condition("page unpinned");
+    
+    // number of base pages in a large page
+    public static final int LARGE_PAGE_PAGES = 16;
+    // whether new processes get large pages
+    private boolean largePages = false;
     
     // enforce only one instance
     private final static PageTable instance = new PageTable();
@@ -34,10 +53,11 @@ public class PageTable {
      * 
      * @param processId Process ID requesting this translation.
      * @param virtualAddress Virtual address to be translated.
+     * @param writing Whether the kernel is about to write into this address.
      * 
      * @return the physical address.
      */
-    private int translateAddress(int processId, int virtualAddress) {
+    private int translateAddress(int processId, int virtualAddress, boolean writing) {
         // obtain the virtualPageNumber and offset
         int virtualPageNumber = virtualAddress / Machine.PageSize;
         int offset = virtualAddress % Machine.PageSize;
@@ -46,41 +66,128 @@ public class PageTable {
         PageTableEntry entry = getEntry(processId, virtualPageNumber);
         Debug.ASSERT(entry != null, "[PageTable.translateAddress] Page missing!!!");
         
+        // a copy-on-write page needs to be copied before the kernel writes on it
+        if (writing && entry.copyOnWrite) {
+            entry = breakCopyOnWrite(processId, virtualPageNumber);
+        }
+        
+        // the page might be shared with other processes... we cannot write on it (callers check user buffers
+        // with isWritable first)
+        Debug.ASSERT(!(writing && entry.translationEntry.readOnly), "[PageTable.translateAddress] Writing on a read-only page!!!");
+        
         // it might be so that the page is not in main memory...
         if (!entry.inMainMemory) {
             // if so, swap-in this page and perform the translation
             PageController.getInstance().swapPage(entry);
         }
         
+        PageController.getInstance().prefetchUsed(entry);
+        
+        // the kernel touches the page behind the hardware's back, so update the bits ourselves...
+        // otherwise a page written by the kernel could be evicted without being written back
+        entry.translationEntry.use = true;
+        if (writing) {
+            entry.translationEntry.dirty = true;
+        }
+        
         // perform the actual translation
         return ((entry.translationEntry.physicalPage * Machine.PageSize) + offset);
         
     } // translate address
     
     /**
-     * Similar to translateAddress, but this considers the <i>previous</i> translated virtual address
-     * in order to avoid the expensive operation of looking into the inverted page table.
+     * Pins the page holding a virtual address of the current process to its frame, so the kernel can read or
+     * write it directly (even while blocked on a device) without the page being evicted, merged, cleaned or moved
+     * in the meantime. Every call must be matched by a call to <code>unpinPage</code>. No more than
+     * <code>MAX_PINNED_PAGES</code> pages are pinned at once, otherwise a page fault could find nothing to evict.
      * 
-     * @param processId Process ID whose virtual memory will be used.
-     * @param virtualAddress Virtual address that needs to be translated.
-     * @param previousVirtualPage Previous virtual address that was translated.
-     * @param previousPhysicalAddress Previous returned physical address.
+     * @param virtualAddress The virtual address.
+     * @param writing Whether the kernel is going to write on the page.
+     * @param wait Whether to wait for another page to be unpinned when too many are pinned already. Callers
+     * that hold pinned pages must not wait, or they could all end up waiting for each other.
      * 
-     * @return The physical address.
+     * @return The physical address, valid until the page is unpinned, or -1 if too many pages are pinned
+     * and <code>wait</code> is false.
      */
-    private int translateAddress(int processId, int virtualAddress, int previousVirtualAddress, int previousPhysicalAddress) {
-        // check if the two provided virtual addresses are on the same page, if so, 
-        // no need to translate, just return the previousPhysicalAddress + the offset between them
-        if ((virtualAddress / Machine.PageSize) == (previousVirtualAddress / Machine.PageSize)) {
-            return (previousPhysicalAddress + (virtualAddress - previousVirtualAddress));
+    public int pinPage(int virtualAddress, boolean writing, boolean wait) {
+        int processId = NachosThread.thisThread().getSpaceId();
+        Lock faultLock = PageController.getInstance().getFaultLock();
+        
+        faultLock.acquire();
+        while (pinnedPages >= MAX_PINNED_PAGES) {
+            if (!wait) {
+                faultLock.release();
+                return -1;
+            }
+            pinReleased.wait(faultLock);
         }
+        pinnedPages++;
+        faultLock.release();
         
-        // in this case, we actually need to perform a search in the page table...
-        return translateAddress(processId, virtualAddress);
+        while (true) {
+            // bring the page in...
+            int physicalAddress = translateAddress(processId, virtualAddress, writing);
+            
+            // ...and pin it, unless somebody else took the frame while we were not holding the lock
+            faultLock.acquire();
+            PageTableEntry entry = getEntry(processId, virtualAddress / Machine.PageSize);
+            if (entry.inMainMemory) {
+                entry.pinCount++;
+                if (writing) {
+                    entry.translationEntry.dirty = true;
+                }
+                faultLock.release();
+                return (entry.translationEntry.physicalPage * Machine.PageSize) + (virtualAddress % Machine.PageSize);
+            }
+            faultLock.release();
+        }
+    }
+    
+    /**
+     * Releases a page pinned with <code>pinPage</code>.
+     * 
+     * @param virtualAddress A virtual address in the page.
+     */
+    public void unpinPage(int virtualAddress) {
+        Lock faultLock = PageController.getInstance().getFaultLock();
+        faultLock.acquire();
+        PageTableEntry entry = getEntry(NachosThread.thisThread().getSpaceId(), virtualAddress / Machine.PageSize);
+        Debug.ASSERT(entry != null && entry.pinCount > 0, "[PageTable.unpinPage] Page is not pinned.");
+        entry.pinCount--;
+        pinnedPages--;
+        pinReleased.signal(faultLock);
+        faultLock.release();
+    }
+    
+    /**
+     * Determines whether the kernel can write on a range of the current process' address space: every page in it
+     * must exist and not be read-only (copy-on-write pages are fine, they are copied first). User buffers are checked
+     * with this before the kernel writes on them, a bad buffer fails the system call instead of the kernel.
+     * 
+     * @param virtualAddress Start of the range.
+     * @param length Length (bytes) of the range.
+     * 
+     * @return <code>true</code> if the whole range can be written.
+     */
+    public boolean isWritable(int virtualAddress, int length) {
+        if (virtualAddress < 0 || length < 0) {
+            return false;
+        }
+        int processId = NachosThread.thisThread().getSpaceId();
+        long lastPage = ((long)virtualAddress + length - 1) / Machine.PageSize;
+        for (long i = virtualAddress / Machine.PageSize; i <= lastPage; i++) {
+            PageTableEntry entry = getEntry(processId, i);
+            if (entry == null || (entry.translationEntry.readOnly && !entry.copyOnWrite)) {
+                return false;
+            }
+        }
+        return true;
     }
     
     /**
      * Copies memory from the kernel space (the provided buffer) to the user space memory (for the current process).
+     * The buffer is copied a page at a time, each page is translated (and brought in) only once. The copy stops at
+     * the first page the kernel cannot write on (see <code>isWritable</code>).
      * 
      * @param buffer The buffer to copy.
      * @param targetVirtualAddress The target virtual address where the buffer will be copied.
@@ -88,32 +195,21 @@ public class PageTable {
      * @return the number of bytes actually copied.
      */
     public int copyFromKernel(byte[] buffer, int targetVirtualAddress) {
-        // check that we actually have something to copy
-        if (buffer.length == 0) {
-            return 0;
-        }
-        
         int processId = NachosThread.thisThread().getSpaceId();
         int totalBytes = 0;
         
-        // starting base physical address
-        int physicalAddress = translateAddress(processId, targetVirtualAddress);
-        int previousVirtualAddress = targetVirtualAddress;
-        
-        // copy the first byte
-        Machine.mainMemory[physicalAddress] = buffer[0];
-        totalBytes++;
-        
-        // copy byte from byte
-        for (int i = 1, n = buffer.length; i < n; i++, totalBytes++) {
-            // new virtual address
-            int newVirtualAddress = (targetVirtualAddress + i);
-            // translate
-            physicalAddress = translateAddress(processId, newVirtualAddress, previousVirtualAddress, physicalAddress);
-            // copy
-            Machine.mainMemory[physicalAddress] = buffer[i];
-            // update previous values
-            previousVirtualAddress = newVirtualAddress;
+        while (totalBytes < buffer.length) {
+            int virtualAddress = targetVirtualAddress + totalBytes;
+            // as much as fits on this page
+            int chunk = Math.min(buffer.length - totalBytes, Machine.PageSize - (virtualAddress % Machine.PageSize));
+            if (!isWritable(virtualAddress, chunk)) {
+                Debug.printf('x', "[PageTable.copyFromKernel] Cannot write on virtual address %d\n",
+                             new Integer(virtualAddress));
+                break;
+            }
+            int physicalAddress = translateAddress(processId, virtualAddress, true);
+            System.arraycopy(buffer, totalBytes, Machine.mainMemory, physicalAddress, chunk);
+            totalBytes += chunk;
         }
         
         return totalBytes;
@@ -121,7 +217,7 @@ public class PageTable {
     } // copyFromKernel
     
     /**
-     * Copies data from the user space (for the current process) to the kernel.
+     * Copies data from the user space (for the current process) to the kernel, a page at a time.
      * 
      * @param sourceVirtualAddress Source virtual address to copy.
      * @param length Length (bytes) to copy to kernel space.
@@ -129,33 +225,19 @@ public class PageTable {
      * @return A byte array containing the copied data.
      */
     public byte[] copyFromUserSpace(int sourceVirtualAddress, int length) {
-        // check that we actually have something to copy
-        if (length == 0) {
-            return new byte[0];
-        }
-        
         int processId = NachosThread.thisThread().getSpaceId();
         
         // buffer
         byte[] buffer = new byte[length];
         
-        // starting base physical address
-        int physicalAddress = translateAddress(processId, sourceVirtualAddress);
-        int previousVirtualAddress = sourceVirtualAddress;
-        
-        // copy first byte
-        buffer[0] = Machine.mainMemory[physicalAddress];
-        
-        // copy byte from byte
-        for (int i = 1; i < length; i++) {
-            // new virtual address
-            int newVirtualAddress = sourceVirtualAddress + i;
-            // translate
-            physicalAddress = translateAddress(processId, newVirtualAddress, previousVirtualAddress, physicalAddress);
-            // copy
-            buffer[i] = Machine.mainMemory[physicalAddress];
-            // update previous values
-            previousVirtualAddress = newVirtualAddress;
+        int copied = 0;
+        while (copied < length) {
+            int virtualAddress = sourceVirtualAddress + copied;
+            // as much as there is on this page
+            int chunk = Math.min(length - copied, Machine.PageSize - (virtualAddress % Machine.PageSize));
+            int physicalAddress = translateAddress(processId, virtualAddress, false);
+            System.arraycopy(Machine.mainMemory, physicalAddress, buffer, copied, chunk);
+            copied += chunk;
         }
         
         return buffer;
@@ -176,43 +258,93 @@ public class PageTable {
         StringBuffer buffer = new StringBuffer();
         
         int processId = NachosThread.thisThread().getSpaceId();
-        
-        // starting base physical address
-        int physicalAddress = translateAddress(processId, sourceVirtualAddress);
-        int previousVirtualAddress = sourceVirtualAddress;
-        
-        // copy first byte
-        byte someByte = Machine.mainMemory[physicalAddress];
-        
-        // copy byte from byte
-        while (someByte != 0) {
-            // append to the buffer, it's a good byte
-            buffer.append((char)someByte);            
-            // new virtual address
-            int newVirtualAddress = (previousVirtualAddress + 1);
-            // translate
-            physicalAddress = translateAddress(processId, newVirtualAddress, previousVirtualAddress, physicalAddress);
-            // copy
-            someByte = Machine.mainMemory[physicalAddress];
-            // update previous values
-            previousVirtualAddress = newVirtualAddress;
+        int virtualAddress = sourceVirtualAddress;
+        
+        while (true) {
+            // look for the end of the string on the rest of this page
+            int physicalAddress = translateAddress(processId, virtualAddress, false);
+            int pageEnd = physicalAddress + Machine.PageSize - (virtualAddress % Machine.PageSize);
+            int end = physicalAddress;
+            while (end < pageEnd && Machine.mainMemory[end] != 0) {
+                end++;
+            }
+            
+            // append the good bytes
+            for (int i = physicalAddress; i < end; i++) {
+                buffer.append((char)Machine.mainMemory[i]);
+            }
+            if (end < pageEnd) {
+                break;
+            }
+            virtualAddress += (end - physicalAddress);
         }
         
         return buffer.toString();
         
     } // getStringFromUserSpace
         
+    /**
+     * Enables large pages for the processes loaded from now on. On a machine this small a free run of frames would
+     * hardly ever turn up, so large pages stay off.
+     * 
+     * @param enabled Whether to use large pages.
+     */
+    public void setLargePages(boolean enabled) {
+        if (enabled && LARGE_PAGE_PAGES * 4 > Machine.NumPhysPages) {
+            Debug.println('x', "[PageTable.setLargePages] Not enough main memory for large pages");
+            enabled = false;
+        }
+        largePages = enabled;
+    }
+    
     /**
      * Returns the entries that are associated to the provided index (frame)
      * 
      * @param frameIndex The index of the frame.
      * 
-     * @return The first entry located in this frame.
+     * @return The entry located in this frame, <code>null</code> if the frame is free.
      */
     public PageTableEntry getEntriesAt(int frameIndex) {
         return pageTable[frameIndex];
     }
     
+    /**
+     * Records which entry lives on a given frame of main memory. The frame is charged to the owner of the page,
+     * unless the page is shared.
+     * 
+     * @param frameIndex The index of the frame.
+     * @param entry The entry now living in that frame, <code>null</code> if the frame was freed.
+     */
+    public void setEntriesAt(int frameIndex, PageTableEntry entry) {
+        if (pageTable[frameIndex] != null && pageTable[frameIndex].charged) {
+            ResidentSetController.getInstance().frameReleased(pageTable[frameIndex].processId);
+            pageTable[frameIndex].charged = false;
+        }
+        pageTable[frameIndex] = entry;
+        if (entry != null) {
+            updateCharge(entry);
+        }
+    }
+    
+    /**
+     * Charges the frame of a resident page to the process owning it while the page is private, and takes the charge
+     * back once other processes map the page too: shared frames count against nobody's resident set, so they do not
+     * stay charged to a process that is gone, and a process replacing its own pages does not evict them from under
+     * the others. Called whenever a resident page becomes shared or private again.
+     * 
+     * @param entry The page.
+     */
+    private void updateCharge(PageTableEntry entry) {
+        boolean resident = (entry.translationEntry.physicalPage >= 0 && pageTable[entry.translationEntry.physicalPage] == entry);
+        boolean charge = (resident && entry.sharedKey == null && !entry.copyOnWrite);
+        if (charge && !entry.charged) {
+            ResidentSetController.getInstance().frameTaken(entry.processId);
+        } else if (!charge && entry.charged) {
+            ResidentSetController.getInstance().frameReleased(entry.processId);
+        }
+        entry.charged = charge;
+    }
+    
     /**
      * Returns a translation entry for a given process and virtual page number.
      * 
@@ -223,27 +355,7 @@ public class PageTable {
      */
     public PageTableEntry getEntry(int processId, long virtualPageNumber) {
         // look in the anchor table
-        String key = buildKey(processId, virtualPageNumber);
-        Integer index = (Integer)anchorTable.get(key);
-        
-        // return entry
-        PageTableEntry entry = null;
-
-        // now, start to look for the entry
-        if (index != null) {
-            PageTableEntry last = pageTable[index.intValue()];
-            while (last != null) {
-                // is this entry the same one we're looking for?
-                if (last.processId == processId && last.translationEntry.virtualPage == virtualPageNumber) {
-                    entry = last;
-                    break;
-                }
-                
-                // look in the next entry
-                last = last.nextPageTableEntry;
-            }
-        }
-        return entry;
+        return (PageTableEntry)anchorTable.get(buildKey(processId, virtualPageNumber));
     }
     
     /**
@@ -258,97 +370,215 @@ public class PageTable {
         Debug.printf('x', "[PageTable.removeCurrentProcess] Deallocating %d pages from process %d\n", 
                           new Integer(numVirtualPages), new Integer(processId));
         
+        // no evictions while we are freeing frames and swap pages
+        PageController.getInstance().getFaultLock().acquire();
+        
         // and start to dealloacate each one of them
         for (int i = 0; i < numVirtualPages; i++) {
-            // get the index in the table
-            String key = buildKey(processId, i);
-            Integer index = (Integer)anchorTable.get(key);
+            // take the entry out of the anchor table
+            PageTableEntry current = (PageTableEntry)anchorTable.remove(buildKey(processId, i));
+            if (current == null) {
+                continue;
+            }
             
-            // now get the first entry
-            PageTableEntry current = pageTable[index.intValue()];
-            PageTableEntry previous = null;
-            while (current != null) {
-                // is this an entry of this process?
-                if (current.processId == processId && current.translationEntry.virtualPage == i) {
-                    // update pointers
-                    if (previous != null) {
-                        // our entry is not the first one
-                        // just update the pointer of the previous entry
-                        previous.nextPageTableEntry = current.nextPageTableEntry;
-                    } else {
-                        // our entry is the first one (since previous == null)
-                        if (current.nextPageTableEntry == null) {
-                            // current is the only entry (since it does not have next entry)
-                            // we need to remove the index from the anchor table if this is the only entry!
-                            anchorTable.remove(key);
-                            // and to actually remove the reference from here
-                            pageTable[index.intValue()] = null;
-                        } else {
-                            // it is the first one, but there are more to come, just update pointers
-                            // to make the next entry the first one in the chain
-                            pageTable[index.intValue()] = current.nextPageTableEntry;
-                        }
-                    }
-
-                    // flag in the memory management that this frame is free in the swap partition
-                    MemoryManagement.getInstance().deallocatePage(current.swapPage, MemoryManagement.MEMORY_TYPE_SWAP);
-                    
-                    // and only if the page also resides on main memory, we need to deallocate it from there
-                    if (current.inMainMemory) {
-                        MemoryManagement.getInstance().deallocatePage(current.translationEntry.physicalPage, MemoryManagement.MEMORY_TYPE_MAIN);
-                    }
-                    
-                    // set the references to null
-                    current.translationEntry = null;
-                    current.nextPageTableEntry = null;
-                    current = null;
-                    
-                    // we're done with this cycle
-                    break;
+            // shared pages stay around until the last process using them is gone
+            current.references--;
+            if (current.references > 0) {
+                // every process sharing a copy-on-write page holds a commitment for its future private copy
+                if (current.copyOnWrite) {
+                    MemoryManagement.getInstance().releaseCommittedSwapPage();
                 }
-                // advance
-                previous = current;
-                current = current.nextPageTableEntry;
+                continue;
+            }
+            if (current.sharedKey != null) {
+                sharedPages.remove(current.sharedKey);
+            }
+            
+            // the page cleaner is writing it to its swap page, it frees the page once the write is done
+            if (current.pinCount > 0) {
+                continue;
             }
+            freePage(current);
         }
+        ResidentSetController.getInstance().processExited(processId);
+        
+        PageController.getInstance().getFaultLock().release();
     }
     
     /**
-     * Sets an entry on the table.
+     * Gives back the swap page and the frame of a page no process maps any more. The caller must hold the fault lock.
      * 
-     * @param processId Process id.
-     * @param virtualPageNumber Page Number
-     * @param entry Entry to set.
+     * @param current The page.
      */
-    public void setEntry(int processId, long virtualPageNumber, PageTableEntry entry) {
-        // first, check in the anchor table
-        String key = buildKey(processId, virtualPageNumber);
-        Integer index = (Integer)anchorTable.get(key);
-        
-        // will there be a colision?
-        if (index == null) {
-            // no, simply store it
-            pageTable[entry.swapPage] = entry;
+    public void freePage(PageTableEntry current) {
+        // flag in the memory management that this page is free in the swap partition... zero-fill
+        // pages that never made it to the swap partition only hold a commitment
+        if (current.swapPage != -1) {
+            SwapPartitionController.getInstance().discardPage(current.swapPage);
+            MemoryManagement.getInstance().deallocatePage(current.swapPage, MemoryManagement.MEMORY_TYPE_SWAP);
+        } else {
+            MemoryManagement.getInstance().releaseCommittedSwapPage();
+        }
+        
+        // and only if the page also resides on main memory, we need to deallocate it from there
+        if (current.inMainMemory) {
+            if (current.largePage != null) {
+                PageController.getInstance().breakLargePage(current.largePage);
+            }
+            setEntriesAt(current.translationEntry.physicalPage, null);
+            MemoryManagement.getInstance().deallocatePage(current.translationEntry.physicalPage, MemoryManagement.MEMORY_TYPE_MAIN);
+        }
+        
+        // set the references to null
+        current.translationEntry.valid = false;
+        current.inMainMemory = false;
+    }
+    
+    /**
+     * Duplicates the address space of the current process for a child process. Nothing is copied: private pages become
+     * copy-on-write pages shared by both processes, read-only until one of them writes on them. Zero-fill pages that
+     * were never touched simply become zero-fill pages of the child too.
+     * 
+     * The child commits a page of the swap partition for each page it might have to copy later on.
+     * 
+     * @param childProcessId The id of the child process.
+     * 
+     * @throws NachosException if there is not enough swap space for the child.
+     */
+    public void forkCurrentProcess(int childProcessId) throws NachosException {
+        int processId = NachosThread.thisThread().getSpaceId();
+        int numVirtualPages = NachosThread.thisThread().getNumVirtualPages();
+        
+        // how much swap are we promising?
+        int neededPages = 0;
+        for (int i = 0; i < numVirtualPages; i++) {
+            if (getEntry(processId, i).sharedKey == null) {
+                neededPages++;
+            }
+        }
+        if (!MemoryManagement.getInstance().enoughPages(neededPages, MemoryManagement.MEMORY_TYPE_SWAP)) {
+            Debug.println('x', "[PageTable.forkCurrentProcess] Not enough free pages! Requested " + neededPages);
+            throw new NachosException("[PageTable.forkCurrentProcess] Not enough free pages! Requested " + neededPages);
+        }
+        ResidentSetController.getInstance().processCreated(childProcessId, NachosThread.thisThread().getExecutableLocation());
+        
+        for (int i = 0; i < numVirtualPages; i++) {
+            PageTableEntry entry = getEntry(processId, i);
             
-            // and make sure that it is not pointing to anybody else
-            entry.nextPageTableEntry = null;
+            if (entry.sharedKey == null) {
+                MemoryManagement.getInstance().commitSwapPage();
+                
+                // copy-on-write breaks pages apart one by one, private large pages go back to base pages for good
+                if (entry.largePage != null) {
+                    PageController.getInstance().breakLargePage(entry.largePage);
+                    entry.largePage = null;
+                }
+            }
             
-            // also, store this info in the anchor table
-            anchorTable.put(key, new Integer(entry.swapPage));
+            if (entry.zeroFill && !entry.inMainMemory && entry.references == 1) {
+                // nothing to share, the child gets its own zero-fill page
+                PageTableEntry child = new PageTableEntry(childProcessId);
+                child.translationEntry.virtualPage = i;
+                child.translationEntry.physicalPage = -1;
+                child.translationEntry.valid = true;
+                child.zeroFill = true;
+                setEntry(childProcessId, i, child);
+                continue;
+            }
             
-        } else {
-            // yes, colision
-            // first we need to find the "last" element in the colision chain
-            PageTableEntry last = pageTable[index.intValue()];
-            while (last.nextPageTableEntry != null) {
-                last = last.nextPageTableEntry;
+            if (entry.sharedKey == null) {
+                // parent and child will share this page until one of them writes on it
+                entry.copyOnWrite = true;
+                entry.translationEntry.readOnly = true;
+                updateCharge(entry);
             }
+            entry.references++;
+            setEntry(childProcessId, i, entry);
+        }
+    }
+    
+    /**
+     * Gives a process its own copy of a copy-on-write page. If the process is the only one left using the page,
+     * the page simply becomes writable again.
+     * 
+     * @param processId Process id.
+     * @param virtualPageNumber Page Number
+     * 
+     * @return The (now private) entry for that page.
+     */
+    public PageTableEntry breakCopyOnWrite(int processId, long virtualPageNumber) {
+        // no evictions while we are moving frames around
+        PageController.getInstance().getFaultLock().acquire();
+        
+        PageTableEntry shared = getEntry(processId, virtualPageNumber);
+        if (shared.copyOnWrite && shared.references == 1) {
+            // everybody else is gone, the page is ours (even if another process brought it in, or mapped it at
+            // another virtual page)
+            shared.copyOnWrite = false;
+            shared.translationEntry.readOnly = false;
+            shared.translationEntry.virtualPage = (int)virtualPageNumber;
+            shared.processId = processId;
+            updateCharge(shared);
+        } else if (shared.copyOnWrite) {
+            PageTableEntry copy = new PageTableEntry(processId);
+            copy.translationEntry.virtualPage = (int)virtualPageNumber;
+            copy.translationEntry.valid = true;
+            
+            // the copy uses the commitment this process made when it started sharing the page
+            PageController.getInstance().copyPage(shared, copy);
+            shared.references--;
+            setEntry(processId, virtualPageNumber, copy);
             
-            // when here, it means that we are at the last element
-            // set the appropiate pointers
-            last.nextPageTableEntry = entry;
-            entry.nextPageTableEntry = null;
+            PageController.getInstance().getFaultLock().release();
+            return copy;
         }
+        
+        PageController.getInstance().getFaultLock().release();
+        return shared;
+    }
+    
+    /**
+     * Folds a private page into another resident page with the same contents, mapped by any process at any virtual
+     * page. The process owning <code>duplicate</code> now maps <code>keep</code> copy-on-write, just like after a
+     * fork, and the frame of the duplicate is freed. The caller must hold the fault lock.
+     *
+     * @param keep The page that stays (it might be shared already).
+     * @param duplicate The private page going away.
+     */
+    public void mergePages(PageTableEntry keep, PageTableEntry duplicate) {
+        Debug.ASSERT(duplicate.references == 1 && !duplicate.copyOnWrite && duplicate.sharedKey == null,
+                     "[PageTable.mergePages] Only private pages can be merged away.");
+        Debug.printf('x', "[PageTable.mergePages] Merging %s into %s\n", duplicate.toString(), keep.toString());
+
+        setEntry(duplicate.processId, duplicate.translationEntry.virtualPage, keep);
+        keep.copyOnWrite = true;
+        keep.translationEntry.readOnly = true;
+        keep.references++;
+        updateCharge(keep);
+
+        // the duplicate keeps a commitment, for the copy it will need if it ever writes on the page
+        if (duplicate.swapPage != -1) {
+            SwapPartitionController.getInstance().discardPage(duplicate.swapPage);
+            MemoryManagement.getInstance().deallocatePage(duplicate.swapPage, MemoryManagement.MEMORY_TYPE_SWAP);
+            MemoryManagement.getInstance().commitSwapPage();
+        }
+
+        setEntriesAt(duplicate.translationEntry.physicalPage, null);
+        MemoryManagement.getInstance().deallocatePage(duplicate.translationEntry.physicalPage, MemoryManagement.MEMORY_TYPE_MAIN);
+        // the TLB might still hold the old translation
+        duplicate.translationEntry.valid = false;
+        duplicate.inMainMemory = false;
+    }
+
+    /**
+     * Sets an entry on the table.
+     * 
+     * @param processId Process id.
+     * @param virtualPageNumber Page Number
+     * @param entry Entry to set.
+     */
+    public void setEntry(int processId, long virtualPageNumber, PageTableEntry entry) {
+        anchorTable.put(buildKey(processId, virtualPageNumber), entry);
     }
     
     /**
@@ -371,12 +601,21 @@ public class PageTable {
      * if the swap partition is somehow damaged, we think that not being able to run a specific program would be the least of the
      * problems because a new swap partition would have to be created somehow.
      * 
+     * Pages that hold nothing from the executable (uninitialized data and the stack) are not copied at all. They are
+     * zero-fill pages: they get a cleared frame on first touch and only take a page of the swap partition once they are
+     * evicted dirty. We still commit swap space for them up front, so we never run out of swap in the middle of an eviction.
+     * 
+     * Pages lying entirely inside the code segment are shared (read-only) among all the processes running the same
+     * executable, so only the first one of them pays for the swap page and the frame.
+     * 
      * @param RandomAccessFile The file with the process code/data.
+     * @param executablePath Where the executable file lives, it identifies the shared code pages.
      * @param processId The id of the process to be allocated.
      * 
      * @returns How many pages were actually allocated on behalf of this process. 
      */
-    public int allocateNewProcess(RandomAccessFile executable, int processId) throws IOException, NachosException {
+    public int allocateNewProcess(RandomAccessFile executable, String executablePath, int processId) 
+        throws IOException, NachosException {
         NoffHeader noffH;
         long size;
         
@@ -391,139 +630,191 @@ public class PageTable {
 
         size = numPages * Machine.PageSize;
 
+        // the executable is identified by its path, plus its size and modification time just in case it was rebuilt
+        File executableFile = new File(executablePath);
+        String image = executableFile.getCanonicalPath() + "|" + executableFile.length() + "|" + executableFile.lastModified();
+        
+        // pages that are already shared by someone else don't need any space on the swap partition
+        int neededPages = numPages;
+        for (int i = 0; i < numPages; i++) {
+            if (isShareable(noffH, i) && sharedPages.containsKey(image + "|" + i)) {
+                neededPages--;
+            }
+        }
+        
         // check we have enough free pages
-        if (!MemoryManagement.getInstance().enoughPages(numPages, MemoryManagement.MEMORY_TYPE_SWAP)) {
+        if (!MemoryManagement.getInstance().enoughPages(neededPages, MemoryManagement.MEMORY_TYPE_SWAP)) {
             // no harm done... just throw an exception
             Debug.println('x', "[PageTable.allocateNewProcess] Not enough free pages! Requested " + numPages);
             throw new NachosException("[PageTable.allocateNewProcess] Not enough free pages! Requested " + numPages);
         }
 
         Debug.println('x', "[PageTable.allocateNewProcess] Loading process, numPages=" + numPages + ", size=" + size);
+        ResidentSetController.getInstance().processCreated(processId, executablePath);
         
-        // some useful zeroes
-        byte[] zeroes = new byte[Machine.PageSize];
+        // buffer to build each page before it goes to the swap partition
+        byte[] buffer = new byte[Machine.PageSize];
 
         // first, set up the translation 
         for (int i = 0; i < numPages; i++) {
+            // is somebody else running this very same code page?
+            PageTableEntry shared = (isShareable(noffH, i) ? (PageTableEntry)sharedPages.get(image + "|" + i) : null);
+            if (shared != null) {
+                Debug.printf('x', "[PageTable.allocateNewProcess] Sharing code page %s\n", shared.toString());
+                shared.references++;
+                setEntry(processId, i, shared);
+                continue;
+            }
+            
             PageTableEntry entry = new PageTableEntry(processId);
             entry.translationEntry.virtualPage = i; 
-            int swapPage = MemoryManagement.getInstance().allocatePage(MemoryManagement.MEMORY_TYPE_SWAP);
-            // before even getting the address space set-up, we should've checked that there
-            // was enough memory, so, this should not create any problems
-            Debug.ASSERT(swapPage != -1, "[PageTable.allocateNewProcess] There are not enough pages available!!!");
             // right now we cannot determine the frame in main memory that this page will be allocated into
             entry.translationEntry.physicalPage = -1;
-            // we can, however, know the swapping page
-            entry.swapPage = swapPage;
             // and, of course, it is NOT in main memory
             entry.inMainMemory = false;
             // set the other bits accordingly
             entry.translationEntry.valid = true;
             entry.translationEntry.use = false;
             entry.translationEntry.dirty = false;
-            entry.translationEntry.readOnly = false;  // if the code segment was entirely on 
-            // a separate page, we could set its 
-            // pages to be read-only
+            entry.translationEntry.readOnly = false;
+            
+            // pages holding only code are read-only, and other processes running this executable can share them
+            if (isShareable(noffH, i)) {
+                entry.translationEntry.readOnly = true;
+                entry.sharedKey = image + "|" + i;
+                sharedPages.put(entry.sharedKey, entry);
+            }
+            
+            // does anything from the executable file go in this page?
+            boolean fromCode = overlaps(noffH.code, i);
+            boolean fromData = overlaps(noffH.initData, i);
+            if (fromCode || fromData) {
+                // yes, so it needs a page in the swap partition right away
+                int swapPage = MemoryManagement.getInstance().allocatePage(MemoryManagement.MEMORY_TYPE_SWAP);
+                // before even getting the address space set-up, we should've checked that there
+                // was enough memory, so, this should not create any problems
+                Debug.ASSERT(swapPage != -1, "[PageTable.allocateNewProcess] There are not enough pages available!!!");
+                entry.swapPage = swapPage;
+                entry.zeroFill = false;
+                
+                // we cannot longer just copy the pages to main memory, we have to copy them to the swap partition...
+                // build the page (code and data might share it) and write it out in one go
+                java.util.Arrays.fill(buffer, (byte)0);
+                if (fromCode) {
+                    copyFromExecutable(executable, noffH.code, i, buffer);
+                }
+                if (fromData) {
+                    copyFromExecutable(executable, noffH.initData, i, buffer);
+                }
+                Debug.printf('x', "[PageTable.allocateNewProcess] Copying code/data to swap partition page [%d] for virtual page [%d].\n", 
+                                  new Long(entry.swapPage), new Long(i));
+                SwapPartitionController.getInstance().writePage(buffer, entry.swapPage);
+            } else {
+                // uninitialized data or stack... zero-fill on demand, we only commit the swap space
+                MemoryManagement.getInstance().commitSwapPage();
+                entry.swapPage = -1;
+                entry.zeroFill = true;
+            }
             
             // the entry has been created, set it on the page table
             setEntry(processId, i, entry);
-            
-            // as we create the entries in the inverted page table, we can zero out the swap partition that will
-            // hold these pages
-            SwapPartitionController.getInstance().writePage(zeroes, entry.swapPage, 0);
         }
         
-        // we cannot longer just copy the pages to main memory, we have to copy them to the swap partition...
-        // copy in the code and data segments into memory
-        // now, rather than do it in one chunk, we need to do this page by page...
-        // we cannot assume anymore that our pages will be adjacent
-        if (noffH.code.size > 0) {
-            Debug.println('x', "[PageTable.allocateNewProcess] Initializing code segment, at " +
-                    noffH.code.virtualAddr + ", size " +
-                    noffH.code.size);
-
-            copyToSwapPartition(
-                    executable, 
-                    noffH.code.inFileAddr, 
-                    (int)noffH.code.size, 
-                    processId, 
-                    (int)noffH.code.virtualAddr / Machine.PageSize, 
-                    (int)noffH.code.virtualAddr % Machine.PageSize);
-
-        }
-      
-        if (noffH.initData.size > 0) {
-            Debug.println('x', "[PageTable.allocateNewProcess] Initializing data segment, at " +
-                    noffH.initData.virtualAddr + ", size " +
-                    noffH.initData.size);
-
-            copyToSwapPartition(
-                    executable, 
-                    noffH.initData.inFileAddr, 
-                    (int)noffH.initData.size, 
-                    processId, 
-                    (int)noffH.initData.virtualAddr / Machine.PageSize,
-                    (int)noffH.initData.virtualAddr % Machine.PageSize);
+        if (largePages) {
+            groupLargePages(processId, numPages);
         }
         
         return numPages;
     }
     
     /**
-     * Copies <code>size</code> bits from <code>executable</code> file into the swapping partition starting at the file offset given by <code>fileOffset</code>
-     * using this inverted page table, offset by <code>virtualPageOffset</code> and <code>bitOffset</code>.
+     * Groups the pages of a new process into large pages. Every aligned run of <code>LARGE_PAGE_PAGES</code>
+     * pages that are either all shared code or all private becomes a large page, so the code segment and big
+     * data regions (the stack included) can be mapped with a single TLB entry. Code pages shared with a process
+     * already running the executable were grouped by that process.
+     * 
+     * @param processId The new process.
+     * @param numPages Size of its address space.
+     */
+    private void groupLargePages(int processId, int numPages) {
+        for (int first = 0; first + LARGE_PAGE_PAGES <= numPages; first += LARGE_PAGE_PAGES) {
+            PageTableEntry[] pages = new PageTableEntry[LARGE_PAGE_PAGES];
+            boolean shared = (getEntry(processId, first).sharedKey != null);
+            boolean eligible = true;
+            for (int i = 0; i < LARGE_PAGE_PAGES && eligible; i++) {
+                pages[i] = getEntry(processId, first + i);
+                eligible = (pages[i].largePage == null && (pages[i].sharedKey != null) == shared);
+            }
+            if (!eligible) {
+                continue;
+            }
+            
+            Debug.printf('x', "[PageTable.groupLargePages] Virtual pages %d to %d form a large page\n", 
+                         new Integer(first), new Integer(first + LARGE_PAGE_PAGES - 1));
+            LargePage largePage = new LargePage(pages);
+            for (int i = 0; i < LARGE_PAGE_PAGES; i++) {
+                pages[i].largePage = largePage;
+            }
+        }
+    }
+    
+    /**
+     * Determines whether a virtual page holds code and nothing else, in which case it can be shared.
+     * 
+     * @param noffH The header of the executable.
+     * @param virtualPage The virtual page.
+     * 
+     * @return <code>true</code> if the page lies entirely inside the code segment.
+     */
+    private boolean isShareable(NoffHeader noffH, int virtualPage) {
+        long pageStart = (long)virtualPage * Machine.PageSize;
+        return (noffH.code.size > 0 
+                && pageStart >= noffH.code.virtualAddr
+                && (pageStart + Machine.PageSize) <= (noffH.code.virtualAddr + noffH.code.size)
+                && !overlaps(noffH.initData, virtualPage)
+                && !overlaps(noffH.uninitData, virtualPage));
+    }
+    
+    /**
+     * Determines whether a segment of the executable has anything to place on the given virtual page.
+     * 
+     * @param segment The segment of the executable.
+     * @param virtualPage The virtual page.
+     * 
+     * @return <code>true</code> if part of the segment lives in the virtual page.
+     */
+    private boolean overlaps(NoffSegment segment, int virtualPage) {
+        if (segment.size <= 0) {
+            return false;
+        }
+        long pageStart = (long)virtualPage * Machine.PageSize;
+        long pageEnd = pageStart + Machine.PageSize;
+        return (segment.virtualAddr < pageEnd && (segment.virtualAddr + segment.size) > pageStart);
+    }
+    
+    /**
+     * Copies the part of the <code>segment</code> that lives in <code>virtualPage</code> from the <code>executable</code>
+     * file into <code>buffer</code>, at the proper offset inside the page.
      * 
      * @param executable Executable file to read from.
-     * @param fileOffset File offset to which we will start to read.
-     * @param size Number of bits to write to main memory.
-     * @param processId Process id that is being loaded into memory.
-     * @param virtualPageOffset Which will be the first translation entry to use.
-     * @param byteOffset How many bytes from the beginning of a page we want to offset.
+     * @param segment Segment being loaded.
+     * @param virtualPage Virtual page being built.
+     * @param buffer Contents of the page.
      * 
      * @throws IOException if something goes wrong
      */
-    void copyToSwapPartition(RandomAccessFile executable, long fileOffset, int size, int processId, int virtualPageOffset, int byteOffset) 
+    private void copyFromExecutable(RandomAccessFile executable, NoffSegment segment, int virtualPage, byte[] buffer) 
         throws IOException {
-        // first off, see how many "full" pages we need to copy from the file to memory
-        int fullPages = size / Machine.PageSize;
-        int remainderBytes = (size % Machine.PageSize);
+        long pageStart = (long)virtualPage * Machine.PageSize;
+        // intersection between the page and the segment
+        long from = Math.max(pageStart, segment.virtualAddr);
+        long to = Math.min(pageStart + Machine.PageSize, segment.virtualAddr + segment.size);
+        int length = (int)(to - from);
         
         // move the pointer in the file
-        executable.seek(fileOffset);
-        
-        // buffer to read from exec file
-        byte[] buffer = new byte[Machine.PageSize];
-        
-        // start copying full pages
-        for (int i = virtualPageOffset, n = virtualPageOffset + fullPages; i < n; i++) {
-            // first, get the page entry for this desired virtual page
-            PageTableEntry entry = getEntry(processId, i);
-            Debug.printf('x', "[PageTable.copyToSwapPartition] Copying code/data (full page) to swap partition page [%d] with [%d] bytes offset.\n", 
-                              new Long(entry.swapPage), new Long(byteOffset));
-            
-            // instead of reading directly into main memory, we will use a buffer to put the data to later write it into the swap partition
-            int read = executable.read(buffer, 0, Machine.PageSize);
-            Debug.ASSERT(read == Machine.PageSize, "[PageTable.copyToSwapPartition] Could not read the entire page from file!!!");
-            
-            // we now have the data from the file, put it on the swap partition
-            SwapPartitionController.getInstance().writePage(buffer, entry.swapPage, byteOffset);
-        }
-        
-        // now, the remainder bytes
-        if (remainderBytes > 0) {
-            PageTableEntry entry = getEntry(processId, virtualPageOffset + fullPages);
-            // now, we can write the remaining bytes
-            Debug.printf('x', "[PageTable.copyToSwapPartition] Copying code/data (%d bytes) to swap parttion page [%d] with [%d] offset inside the page.\n", 
-                              new Object[] {new Long(remainderBytes), new Long(entry.swapPage), new Long(byteOffset)});
-            
-            // read into the buffer
-            int read = executable.read(buffer, 0, remainderBytes);
-            Debug.ASSERT(read == remainderBytes, "[PageTable.copyToSwapPartition] Could not read completely from file!!!");
-            
-            // and write the buffer to the swap partition
-            SwapPartitionController.getInstance().writeData(buffer, remainderBytes, entry.swapPage, byteOffset);
-        }
-        
+        executable.seek(segment.inFileAddr + (from - segment.virtualAddr));
+        int read = executable.read(buffer, (int)(from - pageStart), length);
+        Debug.ASSERT(read == length, "[PageTable.copyFromExecutable] Could not read completely from file!!!");
     }
     
     private String buildKey(int processId, long virtualPageNumber) {
@@ -533,20 +824,40 @@ public class PageTable {
     static class PageTableEntry {
         // process owining this page
         int processId;
-        // page number on swap partition
+        // page number on swap partition, -1 if the page does not have one yet
         int swapPage;
         // where is this page right now?
         boolean inMainMemory;
+        // anonymous page whose contents are all zeroes, it has never been written to the swap partition
+        boolean zeroFill;
+        // how many processes map this page
+        int references;
+        // key in the shared pages cache, null if the page is private
+        String sharedKey;
+        // private page shared after a fork, whoever writes on it first gets a copy
+        boolean copyOnWrite;
+        // read ahead along with a faulting neighbour, and not used since
+        boolean prefetched;
+        // large page this page is part of, null if none
+        LargePage largePage;
+        // kernel I/O in progress on the frame, the page cannot leave it while this is not 0
+        int pinCount;
+        // the frame is charged to processId in the ResidentSetController (only resident private pages are)
+        boolean charged;
+        // merged pages are mapped at several virtual pages, the one in translationEntry is only the first: this is
+        // set once the TLB got a translation of its own for another one
+        boolean aliased;
         // reuse-reuse-REUSE!!!
         TranslationEntry translationEntry;
-        // pointer to the next entry
-        PageTableEntry nextPageTableEntry;
         
         public PageTableEntry(int processId) {
             this.processId = processId;
             swapPage = -1;
+            zeroFill = false;
+            references = 1;
+            sharedKey = null;
+            copyOnWrite = false;
             translationEntry = new TranslationEntry();
-            nextPageTableEntry = null;
         }
         
         public String toString() {
@@ -556,6 +867,12 @@ public class PageTable {
             buffer.append(swapPage);
             buffer.append(", inMainMemory=");
             buffer.append(inMainMemory);
+            buffer.append(", zeroFill=");
+            buffer.append(zeroFill);
+            buffer.append(", references=");
+            buffer.append(references);
+            buffer.append(", copyOnWrite=");
+            buffer.append(copyOnWrite);
             buffer.append(", virtualPage=");
             buffer.append(translationEntry.virtualPage);
             buffer.append(", physicalPage=");
@@ -565,4 +882,31 @@ public class PageTable {
         }
     }
     
+    /**
+     * A run of base pages that can be mapped with a single TLB entry, when they sit on a run of consecutive
+     * frames. The base pages are still paged in and out on their own, evicting any of them breaks the large page.
+     */
+    static class LargePage {
+        // the base pages, in order
+        PageTableEntry[] pages;
+        // whether the base pages are on consecutive frames, mapped by translationEntry
+        boolean assembled;
+        // do not try to assemble it again before this time (there was no free run of frames)
+        int retryAt;
+        // maps the whole run of pages
+        TranslationEntry translationEntry;
+        
+        public LargePage(PageTableEntry[] pages) {
+            this.pages = pages;
+            assembled = false;
+            retryAt = 0;
+            translationEntry = new TranslationEntry();
+            translationEntry.virtualPage = pages[0].translationEntry.virtualPage;
+            translationEntry.physicalPage = -1;
+            translationEntry.pageCount = pages.length;
+            translationEntry.readOnly = pages[0].translationEntry.readOnly;
+            translationEntry.valid = false;
+        }
+    }
+    
 } // class
@@ -0,0 +1,37 @@
+/**
+ * Swap pages kept straight on a range of disk sectors reserved when the disk was formatted. There is no
+ * file system in the way: no file header, no indirect blocks, no intermediate buffers, a page is just
+ * <code>firstSector + pageNumber * SectorsPerPage</code>.
+ */
+public class RawSwapDevice implements SwapDevice {
+    // sectors holding one page
+    public static final int SectorsPerPage = Machine.PageSize / Disk.SectorSize;
+    
+    // the disk and where our area starts
+    private SynchDisk disk;
+    private int firstSector;
+    
+    /**
+     * @param disk The disk holding the swap area.
+     * @param firstSector First sector of the swap area.
+     */
+    public RawSwapDevice(SynchDisk disk, int firstSector) {
+        Debug.ASSERT(Machine.PageSize % Disk.SectorSize == 0, "[RawSwapDevice] Pages must be made of whole sectors.");
+        this.disk = disk;
+        this.firstSector = firstSector;
+    }
+    
+    public void readPages(int firstPageNumber, int count, byte[] pageData) {
+        // the pages are consecutive on disk, one request brings them all
+        disk.readSectors(firstSector + firstPageNumber * SectorsPerPage, count * SectorsPerPage, pageData, 0);
+    }
+    
+    public void writePage(byte[] pageData, int pageNumber) {
+        disk.writeSectors(firstSector + pageNumber * SectorsPerPage, SectorsPerPage, pageData, 0);
+    }
+    
+    public void discardPage(int pageNumber) {
+        // nothing to do, the page will simply be overwritten
+    }
+    
+} // class
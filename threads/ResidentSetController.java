@@ -0,0 +1,175 @@
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of how many frames each process holds, and of the limits of its resident set.
+ *
+ * Every process is guaranteed <code>minimum</code> frames: while it holds that many or less, other processes do
+ * not steal its pages. And it can hold at most <code>maximum</code> frames: once there, it has to evict one of its
+ * own pages to bring in another one (local replacement), even if there are free frames. That way a big batch job
+ * cannot push the pages of a small interactive process out of main memory.
+ *
+ * Frames are charged to the process owning the page living on them. Frames of pages shared by several processes
+ * (code pages, copy-on-write pages) are not charged to any of them, and do not count against any limit. The limits
+ * are set for every process with <code>-rss</code>, and for the processes running a given executable with
+ * <code>-rssx</code>.
+ */
+public class ResidentSetController {
+    // only one instance allowed!
+    private static final ResidentSetController instance = new ResidentSetController();
+
+    // limits for every process
+    private int defaultMinimum = 0;
+    private int defaultMaximum = Machine.NumPhysPages;
+
+    // executable name -> int[] {minimum, maximum}
+    private Map executableLimits = new HashMap();
+    // process id -> int[] {minimum, maximum}, for the processes running
+    private Map processLimits = new HashMap();
+    // process id -> int[] {frames held}
+    private Map residentPages = new HashMap();
+
+    // enforce only one instance
+    private ResidentSetController() {
+
+    } // ctor
+
+    // get the instance
+    public static ResidentSetController getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the limits for every process.
+     *
+     * @param minimum Frames guaranteed to each process.
+     * @param maximum Frames each process can hold at most.
+     */
+    public void setDefaultLimits(int minimum, int maximum) {
+        checkLimits(minimum, maximum);
+        defaultMinimum = minimum;
+        defaultMaximum = maximum;
+    }
+
+    /**
+     * Sets the limits for the processes running an executable.
+     *
+     * @param executable Name of the executable (without directories).
+     * @param minimum Frames guaranteed to each of those processes.
+     * @param maximum Frames each of those processes can hold at most.
+     */
+    public void setExecutableLimits(String executable, int minimum, int maximum) {
+        checkLimits(minimum, maximum);
+        executableLimits.put(executable, new int[] {minimum, maximum});
+    }
+
+    private void checkLimits(int minimum, int maximum) {
+        Debug.ASSERT(minimum >= 0 && maximum >= 1 && minimum <= maximum && maximum <= Machine.NumPhysPages,
+                     "[ResidentSetController.checkLimits] Invalid resident set limits.");
+    }
+
+    /**
+     * Called when a new process is loaded or forked, it picks the limits for it.
+     *
+     * @param processId The new process.
+     * @param executablePath The executable it runs.
+     */
+    public void processCreated(int processId, String executablePath) {
+        int[] limits = (int[])executableLimits.get(new File(executablePath).getName());
+        if (limits == null) {
+            limits = new int[] {defaultMinimum, defaultMaximum};
+        }
+        Debug.printf('x', "[ResidentSetController.processCreated] Process %d gets %d to %d frames\n",
+                     new Object[] {new Integer(processId), new Integer(limits[0]), new Integer(limits[1])});
+        processLimits.put(new Integer(processId), limits);
+    }
+
+    /**
+     * Called when a process is gone.
+     *
+     * @param processId The process.
+     */
+    public void processExited(int processId) {
+        processLimits.remove(new Integer(processId));
+    }
+
+    /**
+     * Charges a frame to a process.
+     *
+     * @param processId The process owning the page that now lives on the frame.
+     */
+    public void frameTaken(int processId) {
+        int[] count = (int[])residentPages.get(new Integer(processId));
+        if (count == null) {
+            count = new int[1];
+            residentPages.put(new Integer(processId), count);
+        }
+        count[0]++;
+    }
+
+    /**
+     * Gives back a frame charged to a process.
+     *
+     * @param processId The process owning the page that used to live on the frame.
+     */
+    public void frameReleased(int processId) {
+        int[] count = (int[])residentPages.get(new Integer(processId));
+        Debug.ASSERT(count != null && count[0] > 0, "[ResidentSetController.frameReleased] Process holds no frames.");
+        count[0]--;
+        if (count[0] == 0) {
+            residentPages.remove(new Integer(processId));
+        }
+    }
+
+    /**
+     * Gets how many frames are charged to a process.
+     *
+     * @param processId The process.
+     *
+     * @return Number of frames.
+     */
+    public int getResidentPages(int processId) {
+        int[] count = (int[])residentPages.get(new Integer(processId));
+        return (count == null ? 0 : count[0]);
+    }
+
+    /**
+     * Determines whether a process has to replace its own pages.
+     *
+     * @param processId The process.
+     *
+     * @return <code>true</code> if the process holds its maximum number of frames (a process allowed to take the
+     *         whole main memory is never limited).
+     */
+    public boolean atMaximum(int processId) {
+        int[] limits = (int[])processLimits.get(new Integer(processId));
+        return (limits != null && limits[1] < Machine.NumPhysPages && getResidentPages(processId) >= limits[1]);
+    }
+
+    /**
+     * Determines whether a process can take some more frames without going over its maximum.
+     *
+     * @param processId The process.
+     * @param frames How many frames.
+     *
+     * @return <code>true</code> if there is room for them.
+     */
+    public boolean roomFor(int processId, int frames) {
+        int[] limits = (int[])processLimits.get(new Integer(processId));
+        return (limits == null || limits[1] >= Machine.NumPhysPages || getResidentPages(processId) + frames <= limits[1]);
+    }
+
+    /**
+     * Determines whether other processes can take frames away from a process.
+     *
+     * @param processId The process.
+     *
+     * @return <code>true</code> if the process holds more frames than it is guaranteed.
+     */
+    public boolean aboveMinimum(int processId) {
+        int[] limits = (int[])processLimits.get(new Integer(processId));
+        return (limits == null || getResidentPages(processId) > limits[0]);
+    }
+
+} // class
@@ -0,0 +1,31 @@
+/**
+ * Where the pages of the swap partition are actually kept. SwapPartitionController takes care of the
+ * bookkeeping, implementations of this interface only move whole pages around.
+ */
+public interface SwapDevice {
+
+    /**
+     * Reads consecutive pages.
+     * 
+     * @param firstPageNumber The first page to read.
+     * @param count How many pages to read.
+     * @param pageData Buffer receiving the pages, one after the other.
+     */
+    public void readPages(int firstPageNumber, int count, byte[] pageData);
+    
+    /**
+     * Writes a page.
+     * 
+     * @param pageData The contents of the page, it is assumed to be at least one page long.
+     * @param pageNumber The page to write.
+     */
+    public void writePage(byte[] pageData, int pageNumber);
+    
+    /**
+     * Lets the device know that the contents of a page are not needed anymore.
+     * 
+     * @param pageNumber The page.
+     */
+    public void discardPage(int pageNumber);
+    
+} // interface
@@ -1,10 +1,9 @@
-import java.io.RandomAccessFile;
-import java.io.File;
 import java.io.IOException;
 
 /**
- * Class wrapping around the swap partition. We call it partition because it sounds cool, but in reality
- * it is just a plain cheap swap file... But partition sounds fancier.
+ * Class wrapping around the swap partition. We call it partition because it sounds cool... and, as long as the
+ * disk was formatted with a swap area, it really is one: a range of sectors reserved by the file system and
+ * accessed directly. Older disks without that area get a plain cheap swap file instead.
  */
 public class SwapPartitionController {
     // size of this partition
@@ -19,12 +18,17 @@ public class SwapPartitionController {
     // whether this has been already initialized
     private boolean alreadyInitialized;
     
-    // the swap partition itself
-    private OpenFile swapPartition;
+    // where the pages are stored
+    private SwapDevice swapDevice;
     
-    // right now, we will use a random access file, later on, when the file system is implemented
-    // this might go away
-    //private RandomAccessFile swapFile;
+    // size of the compressed cache in front of the device, 0 if there is none
+    private int compressedCacheSize = 0;
+    
+    // host file backing the swap partition, null to keep it on the Nachos disk
+    private String mappedFileName = null;
+    // size of the swap partition (only a mapped one can be resized) and latency of each request to a mapped one
+    private int sizePages = SWAP_SIZE_PAGES;
+    private int mappedLatency = 0;
     
     // enforce only one instance of this controller, and of the swap partition too
     private SwapPartitionController() {
@@ -35,27 +39,63 @@ public class SwapPartitionController {
     public void init() {
         Debug.ASSERT(alreadyInitialized == false, "[SwapPartitionController.init] Cannot initialize more than once!");
         
-        Nachos.fileSystem.remove("swap");
-        if (!Nachos.fileSystem.create("swap", SWAP_SIZE_BYTES)) {
-            Debug.println('+', "[SwapPartitionController] Could not reset swap partition. PANIC!");
-            Nachos.Halt();
+        if (mappedFileName != null) {
+            Debug.println('x', "[SwapPartitionController.init] Using host file " + mappedFileName + " with " + sizePages + " pages");
+            try {
+                swapDevice = new MappedSwapDevice(mappedFileName, sizePages, mappedLatency);
+            } catch (IOException e) {
+                Debug.println('+', "[SwapPartitionController] Could not map " + mappedFileName + ". PANIC!");
+                Nachos.Halt();
+            }
+        } else if (Nachos.fileSystem instanceof FileSystemReal && ((FileSystemReal)Nachos.fileSystem).hasSwapArea()) {
+            Debug.println('x', "[SwapPartitionController.init] Using the raw swap area");
+            swapDevice = new RawSwapDevice(Nachos.synchDisk.uncached(), FileSystemReal.swapFirstSector());
+        } else {
+            Debug.println('x', "[SwapPartitionController.init] No swap area on disk, using a swap file");
+            swapDevice = new FileSwapDevice(SWAP_SIZE_BYTES);
         }
-        swapPartition = Nachos.fileSystem.open("swap");
-        
-        // now, we can initialize the swap partition... just write out one byte after seeking
-        // to the end of the file... nice trick!
-        byte[] someByte = new byte[1];
-        someByte[0] = 0;
-        swapPartition.seek(SWAP_SIZE_BYTES - 1);
-        swapPartition.write(someByte, 0, 1);
         
-        // check that the size of the partition is actually correct
-        Debug.ASSERT(swapPartition.length() == SWAP_SIZE_BYTES, "[SwapPartitionController] Could not initialize swap partition. PANIC!");
+        if (compressedCacheSize > 0) {
+            Debug.println('x', "[SwapPartitionController.init] Compressed swap cache of " + compressedCacheSize + " bytes");
+            swapDevice = new CompressedSwapCache(swapDevice, compressedCacheSize);
+        }
         
         // flag as initialized
         alreadyInitialized = true;
     }
     
+    /**
+     * Keeps the swap partition in a memory-mapped host file instead of the Nachos disk. Must be called before <code>init</code>.
+     * 
+     * @param fileName Host file.
+     * @param pages Size of the swap partition, in pages.
+     * @param latency Simulated ticks taken by each request, 0 for none.
+     */
+    public void setMappedFile(String fileName, int pages, int latency) {
+        Debug.ASSERT(alreadyInitialized == false, "[SwapPartitionController.setMappedFile] Swap partition already initialized!");
+        Debug.ASSERT(pages > 0, "[SwapPartitionController.setMappedFile] Invalid size.");
+        mappedFileName = fileName;
+        sizePages = pages;
+        mappedLatency = latency;
+    }
+    
+    /**
+     * @return Size of the swap partition, in pages.
+     */
+    public int getSizePages() {
+        return sizePages;
+    }
+    
+    /**
+     * Sets the size of the compressed cache kept in front of the swap device. Must be called before <code>init</code>.
+     * 
+     * @param sizeBytes Size of the cache, 0 for no cache.
+     */
+    public void setCompressedCacheSize(int sizeBytes) {
+        Debug.ASSERT(alreadyInitialized == false, "[SwapPartitionController.setCompressedCacheSize] Swap partition already initialized!");
+        compressedCacheSize = sizeBytes;
+    }
+    
     public static SwapPartitionController getInstance() {
         return instance;
     }
@@ -66,28 +106,19 @@ public class SwapPartitionController {
      * @param pageData The data to write. It will be read from the first element to the last one. It is assumed that 
      *                 the lenght of this array is exactly the size of the page.
      * @param pageNumber The page number (in the swapping partition) that will be written into.
-     * @param intraPageOffset The offset inside the swapping page that will be used.
      */
-    public void writePage(byte[] pageData, int pageNumber, int intraPageOffset) {
+    public void writePage(byte[] pageData, int pageNumber) {
         Debug.ASSERT(pageData.length >= Machine.PageSize, "[SwapPartitionController.writePage] Buffer must be at least the size of the page size.");
-        // write the data using the file offset
-        int writtenBytes = swapPartition.writeAt(pageData, 0, Machine.PageSize, (pageNumber * Machine.PageSize) + intraPageOffset);
-        Debug.ASSERT(writtenBytes == Machine.PageSize, "[SwapPartitionController.writePage] Could not write all data (or wrote more than needed!)");
+        swapDevice.writePage(pageData, pageNumber);
     }
     
     /**
-     * Writes an arbitrary ammount of data into the swap partition.
+     * Lets the swap partition know that a page is free, so its contents can be thrown away.
      * 
-     * @param data The data to write.
-     * @param size The amount of bytes to write from the buffer.
-     * @param pageNumber The swapping partition page to write into.
-     * @param intraPageOffset The offset inside the swapping page that will be used.
+     * @param pageNumber The swapping page.
      */
-    public void writeData(byte[] data, int size, int pageNumber, int intraPageOffset) {
-        Debug.ASSERT(data.length >= size, "[SwapPartitionController.writeData] Buffer must be at least as big as the desired number of bytes to copy.");
-        // write the data using the provided ofset
-        int writtenBytes = swapPartition.writeAt(data, 0, size, (pageNumber * Machine.PageSize) + intraPageOffset);
-        Debug.ASSERT(writtenBytes == size, "[SwapPartitionController.getwriteData] Could not write all data (or wrote more than needed!)");
+    public void discardPage(int pageNumber) {
+        swapDevice.discardPage(pageNumber);
     }
     
     /**
@@ -98,10 +129,19 @@ public class SwapPartitionController {
      */
     public void getPage(int pageNumber, byte[] pageData) {
         Debug.ASSERT(pageData.length >= Machine.PageSize, "[SwapPartitionController.getPage] Buffer must be at least as big as the page size.");
-        // read the data
-        int readBytes = swapPartition.readAt(pageData, 0, Machine.PageSize, (pageNumber * Machine.PageSize));
-        Debug.ASSERT(readBytes == Machine.PageSize, "[SwapPartitionController.getPage] Could not read all data (or read more than needed!)");
-        
+        swapDevice.readPages(pageNumber, 1, pageData);
+    }
+    
+    /**
+     * Gets several consecutive pages of data with a single read.
+     * 
+     * @param firstPageNumber The first swapping page to get.
+     * @param count How many pages to get.
+     * @param pageData Buffer to use to copy the data contained in the pages, one page after the other.
+     */
+    public void getPages(int firstPageNumber, int count, byte[] pageData) {
+        Debug.ASSERT(pageData.length >= count * Machine.PageSize, "[SwapPartitionController.getPages] Buffer must be big enough for all the pages.");
+        swapDevice.readPages(firstPageNumber, count, pageData);
     }
     
 }
@@ -2,12 +2,20 @@
 //	Class to manage a bitmap -- an array of bits each of which
 //	can be either on or off.  
 //
-//	Represented as an array of unsigned integers, on which we do
-//	modulo arithmetic to find the bit we are interested in.
+//	Represented as an array of 64-bit words, on which we do
+//	modulo arithmetic to find the bit we are interested in.  Searches
+//	skip over whole words at a time, and the number of clear bits is
+//	kept up to date as bits are set and cleared, so asking for it
+//	is free.
 //
 //	The bitmap can be parameterized with with the number of bits being 
 //	managed.
 //
+//	The free-sector map of a big disk is a big file, so writing a
+//	bitmap back can be given a copy of what the file holds, and then
+//	only writes the sectors of the file that changed (see
+//	FileSystemReal::fetchFreeMap).
+//
 // Copyright (c) 1992-1993 The Regents of the University of California.
 // Copyright (c) 1998 Rice University.
 // All rights reserved.  See the COPYRIGHT file for copyright notice and 
@@ -26,13 +34,21 @@ class BitMap {
   // Definitions helpful for representing a bitmap as an array of integers
   public static final int BitsInByte = 8;
   public static final int BitsInWord = 32;
+  public static final int BitsInLong = 64;
 
   private int numBits;			// number of bits in the bitmap
-  private int numWords;			// number of words of bitmap storage
-					// (rounded up if numBits is not a
-					//  multiple of the number of bits in
-					//  a word)
-  private int map[];			// bit storage
+  private int numWords;			// number of 32-bit words the bitmap
+					// takes on disk (rounded up if
+					// numBits is not a multiple of the
+					// number of bits in a word)
+  private int numLongs;			// number of words of bitmap storage
+  private long map[];			// bit storage
+  private int numClear;			// number of bits that are clear
+  private int hint;			// no word before this one has a
+					// clear bit
+  private int runSize;			// no run of "runSize" clear bits
+  private int runAlignment;		// aligned on "runAlignment" starts
+  private int noRunBefore;		// before this bit
 
   //----------------------------------------------------------------------
   // BitMap::BitMap
@@ -46,10 +62,13 @@ class BitMap {
     numBits = nitems;
     numWords = numBits / BitsInWord;
     if (numBits % BitsInWord != 0) numWords++;
+    numLongs = numBits / BitsInLong;
+    if (numBits % BitsInLong != 0) numLongs++;
 
-    map = new int[numWords];
-    for (int i = 0; i < numBits; i++) 
-        clear(i);
+    map = new long[numLongs];
+    numClear = numBits;
+    hint = 0;
+    forgetRuns();
   }
 
 
@@ -62,7 +81,11 @@ class BitMap {
 
   public void mark(int which) { 
     Debug.ASSERT(which >= 0 && which < numBits);
-    map[which / BitsInWord] |= 1 << (which % BitsInWord);
+    long bit = 1L << (which % BitsInLong);
+    if ((map[which / BitsInLong] & bit) == 0) {
+      map[which / BitsInLong] |= bit;
+      numClear--;
+    }
   }
     
   //----------------------------------------------------------------------
@@ -74,7 +97,16 @@ class BitMap {
 
   public void clear(int which) {
     Debug.ASSERT(which >= 0 && which < numBits);
-    map[which / BitsInWord] &= ~(1 << (which % BitsInWord));
+    long bit = 1L << (which % BitsInLong);
+    if ((map[which / BitsInLong] & bit) != 0) {
+      map[which / BitsInLong] &= ~bit;
+      numClear++;
+      if (which / BitsInLong < hint)
+	hint = which / BitsInLong;
+      // a run through this bit starts at "which - runSize + 1" or later
+      if (which < noRunBefore)
+	noRunBefore = Math.max(0, Math.min(noRunBefore, which - runSize + 1));
+    }
   }
 
   //----------------------------------------------------------------------
@@ -87,10 +119,7 @@ class BitMap {
   public boolean test(int which) {
     Debug.ASSERT(which >= 0 && which < numBits);
     
-    if ((map[which / BitsInWord] & (1 << (which % BitsInWord))) != 0)
-	return true;
-    else
-	return false;
+    return ((map[which / BitsInLong] & (1L << (which % BitsInLong))) != 0);
   }
 
   //----------------------------------------------------------------------
@@ -103,12 +132,135 @@ class BitMap {
   //----------------------------------------------------------------------
 
   public int find() {
-    for (int i = 0; i < numBits; i++)
-      if (!test(i)) {
-	mark(i);
-	return i;
+    if (numClear == 0)
+      return -1;
+
+    int which = nextClear(hint * BitsInLong);
+    if (which == -1)
+      return -1;
+    // everything before this word is in use
+    hint = which / BitsInLong;
+    mark(which);
+    return which;
+  }
+
+  //----------------------------------------------------------------------
+  // BitMap::findRun
+  // 	Return the number of the first bit of the first run of "count"
+  //	consecutive clear bits.  As a side effect, set all of them.
+  //
+  //	If there is no such run, return -1.
+  //----------------------------------------------------------------------
+
+  public int findRun(int count) {
+    return findRun(count, 1);
+  }
+
+  //----------------------------------------------------------------------
+  // BitMap::findRun
+  // 	Same, but the run has to start on a multiple of "alignment".
+  //----------------------------------------------------------------------
+
+  public int findRun(int count, int alignment) {
+    Debug.ASSERT(count > 0 && alignment > 0);
+    if (numClear < count)
+      return -1;
+
+    int start = hint * BitsInLong;
+    // skip the part we already know is too fragmented
+    if (alignment == runAlignment && count >= runSize)
+      start = Math.max(start, noRunBefore);
+    else
+      forgetRuns();
+    runSize = count;
+    runAlignment = alignment;
+
+    while (true) {
+      start = nextClear(start);
+      if (start != -1)
+	// round up to the alignment
+	start = (start + alignment - 1) / alignment * alignment;
+      if (start == -1 || start + count > numBits) {
+	noRunBefore = numBits;
+	return -1;
+      }
+
+      int inUse = nextSet(start, start + count);
+      if (inUse == -1) {
+	noRunBefore = start;
+	markRange(start, count);
+	return start;
+      }
+      // the run is broken, keep looking after the bit in use
+      start = inUse + 1;
+    }
+  }
+
+  private void forgetRuns() {
+    runSize = 1;
+    runAlignment = 1;
+    noRunBefore = 0;
+  }
+
+  //----------------------------------------------------------------------
+  // BitMap::nextClear
+  // 	Return the number of the first clear bit at or after "from",
+  //	or -1 if there is none.
+  //----------------------------------------------------------------------
+
+  private int nextClear(int from) {
+    if (from >= numBits)
+      return -1;
+    int w = from / BitsInLong;
+    // pretend the bits before "from" are set
+    long word = ~map[w] & (-1L << (from % BitsInLong));
+    while (true) {
+      if (word != 0) {
+	int which = w * BitsInLong + Long.numberOfTrailingZeros(word);
+	return (which < numBits ? which : -1);
       }
-    return -1;
+      if (++w == numLongs)
+	return -1;
+      word = ~map[w];
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // BitMap::nextSet
+  // 	Return the number of the first set bit in [from, to), or -1
+  //	if they are all clear.
+  //----------------------------------------------------------------------
+
+  private int nextSet(int from, int to) {
+    int w = from / BitsInLong;
+    long word = map[w] & (-1L << (from % BitsInLong));
+    while (true) {
+      if (word != 0) {
+	int which = w * BitsInLong + Long.numberOfTrailingZeros(word);
+	return (which < to ? which : -1);
+      }
+      if (++w * BitsInLong >= to)
+	return -1;
+      word = map[w];
+    }
+  }
+
+  //----------------------------------------------------------------------
+  // BitMap::markRange
+  // 	Set "count" bits starting at "first", which are known to be clear.
+  //----------------------------------------------------------------------
+
+  private void markRange(int first, int count) {
+    int which = first;
+    int end = first + count;
+    while (which < end) {
+      int bit = which % BitsInLong;
+      int n = Math.min(BitsInLong - bit, end - which);
+      long mask = (n == BitsInLong ? -1L : ((1L << n) - 1) << bit);
+      map[which / BitsInLong] |= mask;
+      which += n;
+    }
+    numClear -= count;
   }
 
   //----------------------------------------------------------------------
@@ -118,11 +270,7 @@ class BitMap {
   //----------------------------------------------------------------------
 
   public int numClear() {
-    int count = 0;
-
-    for (int i = 0; i < numBits; i++)
-      if (!test(i)) count++;
-    return count;
+    return numClear;
   }
 
   //----------------------------------------------------------------------
@@ -149,6 +297,9 @@ class BitMap {
   // 	Initialize the contents of a bitmap from a Nachos file.
   //
   //	"file" is the place to read the bitmap from
+  //
+  //	On disk the bitmap is still an array of 32-bit integers, the
+  //	first one holding bits 0 to 31.
   //----------------------------------------------------------------------
 
   public void fetchFrom(OpenFile file) {
@@ -156,24 +307,82 @@ class BitMap {
     // read bitmap
     file.readAt(buffer, 0, numWords * 4, 0);
     // unmarshall
+    for (int i = 0; i < numLongs; i++)
+      map[i] = 0;
     for (int i = 0; i < numWords; i++)
-      map[i] = Disk.intInt(buffer, i*4);
+      map[i / 2] |= (Disk.intInt(buffer, i*4) & 0xffffffffL) << (BitsInWord * (i % 2));
+
+    numClear = numBits;
+    for (int i = 0; i < numLongs; i++)
+      numClear -= Long.bitCount(map[i]);
+    hint = 0;
+    forgetRuns();
    }
 
+  //----------------------------------------------------------------------
+  // BitMap::copyFrom
+  // 	Make this bitmap hold the same bits as "other", which has the
+  //	same size.
+  //----------------------------------------------------------------------
+
+  public void copyFrom(BitMap other) {
+    Debug.ASSERT(other.numBits == numBits);
+    System.arraycopy(other.map, 0, map, 0, numLongs);
+    numClear = other.numClear;
+    hint = 0;
+    forgetRuns();
+  }
+
   //----------------------------------------------------------------------
   // BitMap::writeBack
-  // 	Store the contents of a bitmap to a Nachos file.
+  // 	Store the contents of a bitmap to a Nachos file.  If we know what
+  //	the file holds, only write the runs of sectors that changed.
   //
   //	"file" is the place to write the bitmap to
+  //	"onDisk" is what "file" holds, or null if we do not know
   //----------------------------------------------------------------------
   
   public void writeBack(OpenFile file) {
+    writeBack(file, null);
+  }
+
+  public void writeBack(OpenFile file, BitMap onDisk) {
     byte buffer[] = new byte[numWords*4];
     // marshall
     for (int i = 0; i < numWords; i++)
-      Disk.extInt(map[i], buffer, i*4);
-    // write bitmap
-    file.writeAt(buffer, 0, numWords * 4, 0);
+      Disk.extInt((int) (map[i / 2] >>> (BitsInWord * (i % 2))), buffer, i*4);
+
+    if (onDisk == null || onDisk.numBits != numBits) {
+      // write bitmap
+      file.writeAt(buffer, 0, numWords * 4, 0);
+      return;
+    }
+
+    int longsPerSector = Disk.SectorSize / (BitsInLong / BitsInByte);
+    int runStart = -1;			// first changed sector of the run
+    for (int sector = 0; sector * longsPerSector < numLongs; sector++) {
+      boolean changed = false;
+      for (int i = sector * longsPerSector; 
+	   i < Math.min(numLongs, (sector + 1) * longsPerSector); i++)
+	if (map[i] != onDisk.map[i])
+	  changed = true;
+      if (changed && runStart == -1)
+	runStart = sector;
+      else if (!changed && runStart != -1) {
+	writeSectors(file, buffer, runStart, sector);
+	runStart = -1;
+      }
+    }
+    if (runStart != -1)
+      writeSectors(file, buffer, runStart, (numWords * 4 + Disk.SectorSize - 1) 
+		   / Disk.SectorSize);
+  }
+
+  // write the bytes of sectors [first, last) of the bitmap to "file"
+  private void writeSectors(OpenFile file, byte buffer[], int first, int last) {
+    int start = first * Disk.SectorSize;
+    int end = Math.min(numWords * 4, last * Disk.SectorSize);
+    file.writeAt(buffer, start, end - start, start);
   }
 
 }
@@ -0,0 +1,213 @@
+// BitMapTest.java
+//
+//	Measures how fast a large bitmap hands out bits, the way the
+//	free-sector map of a big disk or the swap partition map would.
+//
+// Copyright (c) 1998 Rice University.
+
+import java.util.Random;
+
+
+class BitMapTest {
+
+  // number of find/clear pairs timed on the nearly full bitmap
+  private static final int Churn = 2000;
+  // size of the runs allocated with findRun
+  private static final int RunSize = 16;
+  // size and alignment of the aligned runs
+  private static final int AlignedSize = 4;
+  private static final int Alignment = 8;
+
+
+  //----------------------------------------------------------------------
+  // BitMapTest.performanceTest()
+  // 	Fill a bitmap of "numBits" bits one bit at a time, then keep
+  //	freeing and allocating bits while it is 90% full, comparing
+  //	against a search that tests one bit at a time.  Finally free
+  //	bits at random and allocate runs of consecutive bits, then check
+  //	findRun against a search one bit at a time.
+  //----------------------------------------------------------------------
+
+  public static void performanceTest(int numBits) {
+    BitMap map = new BitMap(numBits);
+    long start;
+
+    Debug.printf('+', "Bitmap performance test, %d bits\n", new Integer(numBits));
+
+    // sequential fill
+    start = System.currentTimeMillis();
+    for (int i = 0; i < numBits; i++)
+      Debug.ASSERT(map.find() == i);
+    Debug.ASSERT(map.find() == -1 && map.numClear() == 0);
+    report("sequential find", numBits, start);
+
+    // churn at 90% full, the free bit is always past the full part
+    for (int i = numBits - 1; i >= numBits / 10 * 9; i--)
+      map.clear(i);
+    start = System.currentTimeMillis();
+    for (int i = 0; i < Churn; i++) {
+      int which = map.find();
+      map.clear(which);
+    }
+    report("find/clear at 90%", Churn, start);
+
+    start = System.currentTimeMillis();
+    for (int i = 0; i < Churn; i++) {
+      int which = findBitByBit(map, numBits);
+      map.clear(which);
+    }
+    report("same, one bit at a time", Churn, start);
+
+    start = System.currentTimeMillis();
+    int clear = 0;
+    for (int i = 0; i < Churn; i++)
+      clear += map.numClear();
+    Debug.ASSERT(clear == Churn * map.numClear());
+    report("numClear", Churn, start);
+
+    // fragment the map, then allocate runs until there is none left
+    Random random = new Random(1);
+    for (int i = 0; i < numBits / 10 * 9; i++)
+      if (random.nextInt(4) == 0)
+	map.clear(i);
+    int runs = 0;
+    start = System.currentTimeMillis();
+    while (map.findRun(RunSize) != -1)
+      runs++;
+    report("findRun(" + RunSize + ")", runs, start);
+    // nothing was left behind
+    Debug.ASSERT(firstRun(map, numBits, 0, RunSize, 1) == -1);
+
+    runTest(numBits);
+  }
+
+  //----------------------------------------------------------------------
+  // BitMapTest.runTest()
+  // 	Fragment a bitmap of "numBits" bits, then allocate runs, aligned
+  //	or not, until there are none left, each one being the first run
+  //	a search one bit at a time finds.  Then free bits behind the
+  //	point findRun knows has no run before it, and make sure the runs
+  //	they make are found.
+  //----------------------------------------------------------------------
+
+  private static void runTest(int numBits) {
+    BitMap map = new BitMap(numBits);
+    Random random = new Random(2);
+
+    // full, with a stretch of up to 40 clear bits in a third of the words
+    while (map.find() != -1)
+      ;
+    for (int i = 0; i < numBits; i += BitMap.BitsInLong)
+      if (random.nextInt(3) == 0) {
+	int first = i + random.nextInt(BitMap.BitsInLong);
+	int last = Math.min(numBits, first + 1 + random.nextInt(40));
+	for (int j = first; j < last; j++)
+	  map.clear(j);
+      }
+
+    // plain runs until there are none, then aligned ones
+    int firstRun = checkedFindRun(map, numBits, 0, RunSize, 1);
+    Debug.ASSERT(firstRun != -1, "No run in the test bitmap");
+    int from = firstRun;
+    while ((from = checkedFindRun(map, numBits, from, RunSize, 1)) != -1)
+      ;
+    from = 0;
+    while ((from = checkedFindRun(map, numBits, from, AlignedSize, Alignment)) != -1)
+      ;
+
+    // findRun now skips the whole map for plain runs... freeing the first
+    // run, last bit first, has to bring it back
+    Debug.ASSERT(checkedFindRun(map, numBits, 0, RunSize, 1) == -1);
+    for (int i = firstRun + RunSize - 1; i >= firstRun; i--)
+      map.clear(i);
+    Debug.ASSERT(checkedFindRun(map, numBits, 0, RunSize, 1) <= firstRun);
+
+    // a run completed by freeing a bit in its middle, the bits around
+    // it in use
+    int middle = numBits / 2;
+    Debug.ASSERT(checkedFindRun(map, numBits, 0, RunSize, 1) == -1);
+    map.mark(middle - RunSize / 2 - 1);
+    map.mark(middle + RunSize / 2);
+    map.mark(middle);
+    for (int i = middle - RunSize / 2; i < middle + RunSize / 2; i++)
+      if (i != middle)
+	map.clear(i);
+    Debug.ASSERT(checkedFindRun(map, numBits, 0, RunSize, 1) == -1);
+    map.clear(middle);
+    Debug.ASSERT(checkedFindRun(map, numBits, 0, RunSize, 1) == middle - RunSize / 2);
+
+    // a run ending on the last bit
+    map.mark(numBits - RunSize - 1);
+    for (int i = numBits - RunSize; i < numBits; i++)
+      map.clear(i);
+    Debug.ASSERT(checkedFindRun(map, numBits, 0, RunSize, 1) == numBits - RunSize);
+
+    // aligned runs: a free stretch off the alignment is not one, and an
+    // aligned one is found even behind where the last search stopped
+    int aligned = numBits / 4 / Alignment * Alignment;
+    Debug.ASSERT(checkedFindRun(map, numBits, 0, AlignedSize, Alignment) == -1);
+    map.mark(aligned);
+    for (int i = aligned + 1; i < aligned + 1 + AlignedSize; i++)
+      map.clear(i);
+    Debug.ASSERT(checkedFindRun(map, numBits, 0, AlignedSize, Alignment) == -1);
+    map.clear(aligned);
+    Debug.ASSERT(checkedFindRun(map, numBits, 0, AlignedSize, Alignment) == aligned);
+
+    Debug.println('+', "findRun checks passed");
+  }
+
+  // allocate a run with findRun, checking that it is the first run of
+  // clear bits at or after "from" (where the caller knows there is none
+  // before), that it is aligned and inside the map, and that it got set
+  private static int checkedFindRun(BitMap map, int numBits, int from, int count, int alignment) {
+    int expected = firstRun(map, numBits, from, count, alignment);
+    int numClear = map.numClear();
+    int run = (alignment == 1 ? map.findRun(count) : map.findRun(count, alignment));
+
+    Debug.ASSERT(run == expected, "findRun(" + count + ", " + alignment + ") returned "
+		 + run + " instead of " + expected);
+    if (run == -1) {
+      Debug.ASSERT(map.numClear() == numClear);
+      return -1;
+    }
+    Debug.ASSERT(run % alignment == 0 && run >= 0 && run + count <= numBits);
+    for (int i = run; i < run + count; i++)
+      Debug.ASSERT(map.test(i));
+    Debug.ASSERT(map.numClear() == numClear - count);
+    return run;
+  }
+
+  // the first run of "count" clear bits starting on a multiple of
+  // "alignment", at or after "from", searched one bit at a time
+  private static int firstRun(BitMap map, int numBits, int from, int count, int alignment) {
+    for (int start = (from + alignment - 1) / alignment * alignment;
+	 start + count <= numBits; start += alignment) {
+      int i = 0;
+      while (i < count && !map.test(start + i))
+	i++;
+      if (i == count)
+	return start;
+    }
+    return -1;
+  }
+
+  // the search BitMap.find used to do, without allocating the bit
+  private static int findBitByBit(BitMap map, int numBits) {
+    for (int i = 0; i < numBits; i++)
+      if (!map.test(i)) {
+	map.mark(i);
+	return i;
+      }
+    return -1;
+  }
+
+  private static void report(String what, int operations, long start) {
+    long elapsed = System.currentTimeMillis() - start;
+    Debug.printf('+', "%s: %d operations in %d ms", what, new Integer(operations),
+		 new Long(elapsed));
+    if (elapsed > 0)
+      Debug.printf('+', ", %d per second", new Long(operations * 1000L / elapsed));
+    Debug.println('+', "");
+  }
+
+}
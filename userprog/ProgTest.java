@@ -48,7 +48,7 @@ class ProgTest implements Runnable {
 
         try {
             numPages = PageTable.getInstance().allocateNewProcess(executable,
-                    newId);
+                    execName, newId);
         } catch (IOException e) {
             Debug.println('+', "Unable to read executable file: " + execName);
             return;